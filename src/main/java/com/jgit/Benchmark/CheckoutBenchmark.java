@@ -0,0 +1,79 @@
+package com.jgit.Benchmark;
+
+import com.jgit.Blobs.BlobPool;
+import com.jgit.Blobs.Compression;
+import com.jgit.Commits.Tree;
+import com.jgit.Stage.AddPipeline;
+import com.jgit.Stage.Checkout;
+import com.jgit.Stage.Stage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * checkout并行写文件的性能对比：1、4、16个工作线程
+ *
+ * 随机内容的文件先暂存进临时Repo（见TempRepo）的对象库，
+ * 然后每一轮删掉工作目录，从空树checkout出全部文件，打印平均耗时和吞吐量。
+ * 文件刚写过一遍，读快照基本都命中页缓存，测的主要是写工作目录的开销
+ * 用法：java -cp ... com.jgit.Benchmark.CheckoutBenchmark [文件数] [文件大小] [轮数] [none|deflate|zstd]
+ */
+public class CheckoutBenchmark {
+
+    private static final int[] WORKERS = {1, 4, 16};
+    private static final Path WORK_DIR = Paths.get("bench");
+
+    public static void main(String[] args) throws IOException {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        Compression compression = args.length > 3 ? Compression.of(args[3]) : Compression.NONE;
+        if (!TempRepo.create(WORK_DIR))
+            return;
+        try {
+            BlobPool blobPool = new BlobPool();
+            blobPool.setCompression(compression);
+            generate(files, size);
+            Stage staged = new Stage();
+            new AddPipeline(staged, blobPool).run(WORK_DIR);
+            String tree = Tree.write(staged.getTrackingFiles());
+
+            System.out.printf("%d files x %d bytes, compression %s%n", files, size, compression.getConfigName());
+            System.out.printf("%-8s %12s %12s%n", "workers", "time(ms)", "MB/s");
+            for (int workers : WORKERS) {
+                long nanos = 0;
+                for (int i = 0; i < rounds; i++) {
+                    TempRepo.deleteRecursively(WORK_DIR);
+                    long start = System.nanoTime();
+                    List<String> failed = new Checkout(new Stage(), blobPool, workers).run(null, tree);
+                    nanos += System.nanoTime() - start;
+                    if (!failed.isEmpty())
+                        throw new IOException(failed.size() + " file(s) failed");
+                }
+                double ms = nanos / 1e6 / rounds;
+                System.out.printf("%-8d %12.1f %12.1f%n", workers, ms, (double) files * size / (1 << 20) / (ms / 1000));
+            }
+        } finally {
+            TempRepo.delete(WORK_DIR);
+        }
+    }
+
+    /**
+     * 每个文件夹100个文件
+     */
+    private static void generate(int files, int size) throws IOException {
+        Random random = new Random(42);
+        byte[] content = new byte[size];
+        for (int i = 0; i < files; i++) {
+            Path dir = WORK_DIR.resolve("d" + i / 100);
+            if (i % 100 == 0)
+                Files.createDirectories(dir);
+            random.nextBytes(content);
+            Files.write(dir.resolve("f" + i), content);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.jgit.Benchmark;
+
+import com.jgit.Blobs.BlobPool;
+import com.jgit.Commits.CommitChain;
+import com.jgit.Stage.Stage;
+import com.jgit.Utility.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 元数据编码的性能对比：Java序列化和二进制格式（见BinaryWriter）
+ *
+ * 在一个已有Repo的主文件夹下运行，读取其中的commitChain、stage和blobs，
+ * 分别用两种格式反复写入、读取临时文件，打印文件大小和平均耗时
+ * 用法：java -cp ... com.jgit.Benchmark.CodecBenchmark [轮数]
+ */
+public class CodecBenchmark {
+
+    private interface Saver {
+        void save(Path path) throws IOException;
+    }
+
+    private interface Loader {
+        Object load(Path path) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        if (!Files.exists(Utils.getGitDirPath())) {
+            System.err.println("Not in an initialized Git directory.");
+            return;
+        }
+        CommitChain commitChain = CommitChain.deSerialFrom(Utils.getCommitChainPath());
+        Stage stage = Stage.deSerialFrom(Utils.getStageFilePath());
+        BlobPool blobPool = BlobPool.deSerialFrom(Utils.getBlobsPath());
+
+        Path dir = Files.createTempDirectory("jgit-codec-");
+        try {
+            System.out.printf("%-12s %-8s %12s %12s %12s%n", "file", "format", "bytes", "save(ms)", "load(ms)");
+            run("commitchain", commitChain, commitChain::saveTo, CommitChain::deSerialFrom, rounds, dir);
+            run("stage", stage, stage::saveTo, Stage::deSerialFrom, rounds, dir);
+            run("blobs", blobPool, blobPool::saveTo, BlobPool::deSerialFrom, rounds, dir);
+        } finally {
+            TempRepo.deleteRecursively(dir);
+        }
+    }
+
+    private static void run(String name, Object obj, Saver binarySaver, Loader binaryLoader,
+                            int rounds, Path dir) throws Exception {
+        Saver javaSaver = path -> {
+            try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+                out.writeObject(obj);
+            }
+        };
+        Loader javaLoader = path -> {
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                return in.readObject();
+            }
+        };
+        measure(name, "java", javaSaver, javaLoader, dir.resolve(name + ".ser"), rounds);
+        measure(name, "binary", binarySaver, binaryLoader, dir.resolve(name + ".bin"), rounds);
+    }
+
+    private static void measure(String name, String format, Saver saver, Loader loader,
+                                Path path, int rounds) throws Exception {
+        //先跑几轮预热，让JIT编译完再计时
+        for (int i = 0; i < Math.max(1, rounds / 4); i++) {
+            saver.save(path);
+            loader.load(path);
+        }
+        long saveNanos = 0, loadNanos = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            saver.save(path);
+            long mid = System.nanoTime();
+            loader.load(path);
+            loadNanos += System.nanoTime() - mid;
+            saveNanos += mid - start;
+        }
+        System.out.printf("%-12s %-8s %12d %12.3f %12.3f%n", name, format, Files.size(path),
+                saveNanos / 1e6 / rounds, loadNanos / 1e6 / rounds);
+    }
+}
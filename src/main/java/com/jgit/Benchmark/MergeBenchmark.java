@@ -0,0 +1,113 @@
+package com.jgit.Benchmark;
+
+import com.jgit.Blobs.ThreeWayMerge;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * 大文件按行三路合并的性能
+ *
+ * 祖先和两边的三个文本文件生成在当前文件夹下的merge-bench里，测完删掉：两边各自随机改掉一些行（替换、插入或删除），
+ * 改动的位置互不重叠，另外再有几处两边都改了同一行，应当报告为冲突；然后合并到一个文件，
+ * 核对冲突数并打印耗时和吞吐量
+ * 用法：java -cp ... com.jgit.Benchmark.MergeBenchmark [行数] [每边的修改数]
+ */
+public class MergeBenchmark {
+
+    private static final int CONFLICTS = 10;
+
+    public static void main(String[] args) throws IOException {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int edits = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        Path dir = Paths.get("merge-bench");
+        if (!TempRepo.isFree(dir))
+            return;
+        Files.createDirectories(dir);
+        Path base = dir.resolve("base"), ours = dir.resolve("ours"), theirs = dir.resolve("theirs");
+        Path result = dir.resolve("result");
+        try {
+            generate(lines, edits, new Random(42), base, ours, theirs);
+            long bytes = Files.size(base) + Files.size(ours) + Files.size(theirs);
+            //第一轮包括JIT预热，之后几轮取最好的一次
+            int rounds = 4;
+            long best = Long.MAX_VALUE;
+            int conflicts = 0;
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(result))) {
+                    conflicts = ThreeWayMerge.merge(base, ours, theirs, "ours", "theirs", out);
+                }
+                if (round > 0)
+                    best = Math.min(best, System.nanoTime() - start);
+            }
+            if (conflicts != CONFLICTS)
+                throw new AssertionError("expected " + CONFLICTS + " conflicts, got " + conflicts);
+            System.out.printf("%d lines, %d edits per side, %.1f MB in total%n", lines, edits, bytes / 1e6);
+            System.out.printf("%-12s %10s %10s %10s%n", "", "ms", "MB/s", "conflicts");
+            System.out.printf("%-12s %10.1f %10.1f %10d%n", "merge", best / 1e6, bytes / 1e6 / (best / 1e9), conflicts);
+        } finally {
+            TempRepo.deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * 每一行是行号加上一段随机文字，行与行各不相同；把文件分成等长的几段，每段的中间一行被修改，
+     * 两边的修改交替落在不同的段里，保证不重叠也不相邻，最后CONFLICTS段两边都改
+     */
+    private static void generate(int lines, int edits, Random random, Path base, Path ours, Path theirs)
+            throws IOException {
+        int slots = 2 * edits + CONFLICTS;
+        int slotSize = lines / slots;
+        if (slotSize < 3)
+            throw new IllegalArgumentException("too many edits for " + lines + " lines");
+        try (OutputStream b = new BufferedOutputStream(Files.newOutputStream(base), 1 << 16);
+             OutputStream o = new BufferedOutputStream(Files.newOutputStream(ours), 1 << 16);
+             OutputStream t = new BufferedOutputStream(Files.newOutputStream(theirs), 1 << 16)) {
+            for (int i = 0; i < lines; i++) {
+                byte[] line = line(i, random, "");
+                b.write(line);
+                int slot = i / slotSize;
+                boolean edited = i % slotSize == slotSize / 2 && slot < slots;
+                boolean oursEdit = edited && (slot >= 2 * edits || slot % 2 == 0);
+                boolean theirsEdit = edited && (slot >= 2 * edits || slot % 2 == 1);
+                //两边都改的段只做替换，两边都删掉同一行不算冲突
+                int op = oursEdit && theirsEdit ? 0 : random.nextInt(3);
+                writeLine(o, line, oursEdit, op, i, random, "ours");
+                writeLine(t, line, theirsEdit, op, i, random, "theirs");
+            }
+        }
+    }
+
+    private static void writeLine(OutputStream out, byte[] line, boolean edit, int op, int i, Random random,
+                                  String side) throws IOException {
+        if (!edit) {
+            out.write(line);
+            return;
+        }
+        switch (op) {
+            case 0: //替换
+                out.write(line(i, random, side));
+                break;
+            case 1: //插入
+                out.write(line);
+                out.write(line(i, random, side + " inserted"));
+                break;
+            default: //删除
+                break;
+        }
+    }
+
+    private static byte[] line(int i, Random random, String tag) {
+        StringBuilder sb = new StringBuilder(64).append(i).append(' ').append(tag).append(' ');
+        for (int k = 0; k < 40; k++)
+            sb.append((char) ('a' + random.nextInt(26)));
+        return sb.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
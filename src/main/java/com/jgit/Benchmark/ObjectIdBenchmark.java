@@ -0,0 +1,94 @@
+package com.jgit.Benchmark;
+
+import com.jgit.Utility.ObjectId;
+import com.jgit.Utility.ObjectIdMap;
+import com.jgit.Utility.Utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 以十六进制String为键的HashMap和以20字节为键的ObjectIdMap的对比：堆占用和查找耗时
+ *
+ * 生成n个随机hash，分别放进两种表，值都是同一个对象，只比较键和表本身的开销；
+ * 堆占用用GC之后的已用内存估算，建议用-Xmx给足内存再运行
+ * 用法：java -cp ... com.jgit.Benchmark.ObjectIdBenchmark [hash个数]
+ */
+public class ObjectIdBenchmark {
+
+    private static final Object VALUE = new Object();
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        byte[][] raw = new byte[n][Utils.HASH_LENGTH];
+        Random random = new Random(42);
+        for (byte[] r : raw)
+            random.nextBytes(r);
+
+        //查找用的键事先建好，不计入表的堆占用
+        String[] stringKeys = new String[n];
+        ObjectId[] idKeys = new ObjectId[n];
+        for (int i = 0; i < n; i++) {
+            stringKeys[i] = Utils.toHex(raw[i]);
+            idKeys[i] = ObjectId.fromRaw(raw[i]);
+        }
+
+        System.out.printf("%d hashes%n", n);
+        System.out.printf("%-24s %14s %14s%n", "map", "bytes/entry", "lookup(ns)");
+
+        long before = usedHeap();
+        Map<String, Object> strings = new HashMap<>();
+        for (byte[] r : raw)
+            strings.put(Utils.toHex(r), VALUE);
+        long stringBytes = usedHeap() - before;
+        long stringNanos = time(() -> {
+            int hits = 0;
+            for (String key : stringKeys)
+                if (strings.get(key) != null) hits++;
+            return hits;
+        });
+        System.out.printf("%-24s %14.1f %14.1f%n", "HashMap<String, V>", (double) stringBytes / n, (double) stringNanos / n);
+
+        before = usedHeap();
+        ObjectIdMap<Object> ids = new ObjectIdMap<>();
+        for (byte[] r : raw)
+            ids.put(ObjectId.fromRaw(r), VALUE);
+        long idBytes = usedHeap() - before;
+        long idNanos = time(() -> {
+            int hits = 0;
+            for (ObjectId key : idKeys)
+                if (ids.get(key) != null) hits++;
+            return hits;
+        });
+        System.out.printf("%-24s %14.1f %14.1f%n", "ObjectIdMap<V>", (double) idBytes / n, (double) idNanos / n);
+        //保证两张表和查找用的键在测量堆占用时都还活着
+        if (strings.size() + ids.size() + stringKeys.length + idKeys.length != 4 * n)
+            throw new AssertionError();
+    }
+
+    private interface Lookup {
+        int run();
+    }
+
+    /**
+     * 先跑几轮预热，取最后一轮的耗时
+     */
+    private static long time(Lookup lookup) {
+        long nanos = 0;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            if (lookup.run() < 0)
+                throw new AssertionError();
+            nanos = System.nanoTime() - start;
+        }
+        return nanos;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
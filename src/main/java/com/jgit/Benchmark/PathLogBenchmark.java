@@ -0,0 +1,100 @@
+package com.jgit.Benchmark;
+
+import com.jgit.Commits.Commit;
+import com.jgit.Commits.CommitChain;
+import com.jgit.Commits.Tree;
+import com.jgit.Utility.Utils;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * 按路径查历史的性能对比：逐个commit和双亲比较 vs 用changed-path过滤器跳过
+ *
+ * 生成的历史放在临时Repo里（见TempRepo）：除了最初的空commit，每个commit随机改一个文件，只写树和commit，不写文件内容；
+ * 然后对随机挑的几个路径分别用两种方式查历史，核对结果一致并打印平均耗时
+ * 用法：java -cp ... com.jgit.Benchmark.PathLogBenchmark [commit数] [文件数] [查询的路径数]
+ */
+public class PathLogBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        if (!TempRepo.create())
+            return;
+        try {
+            Random random = new Random(42);
+            CommitChain chain = generate(commits, files, random);
+
+            long walkNanos = 0, filterNanos = 0;
+            int hits = 0;
+            for (int q = 0; q < queries; q++) {
+                String path = pathOf(random.nextInt(files));
+                long start = System.nanoTime();
+                List<Commit> expected = walk(chain, path);
+                walkNanos += System.nanoTime() - start;
+                start = System.nanoTime();
+                List<Commit> actual = new ArrayList<>();
+                for (Commit commit : chain.log().setPath(path))
+                    actual.add(commit);
+                filterNanos += System.nanoTime() - start;
+                if (!expected.equals(actual))
+                    throw new AssertionError("results differ for " + path);
+                hits += actual.size();
+            }
+            System.out.printf("%d commits, %d files, %d queries, %.1f matching commits per query%n",
+                    commits, files, queries, (double) hits / queries);
+            System.out.printf("%-24s %12s%n", "method", "time(ms)");
+            System.out.printf("%-24s %12.1f%n", "walk and diff", walkNanos / 1e6 / queries);
+            System.out.printf("%-24s %12.1f%n", "changed-path filters", filterNanos / 1e6 / queries);
+        } finally {
+            TempRepo.delete();
+        }
+    }
+
+    /**
+     * 每个文件夹50个文件，分两层文件夹
+     */
+    private static String pathOf(int i) {
+        return "d" + i / 500 + "/e" + i / 50 + "/f" + i;
+    }
+
+    private static CommitChain generate(int commits, int files, Random random) {
+        Map<String, String> tree = new HashMap<>();
+        for (int i = 0; i < files; i++)
+            tree.put(pathOf(i), Utils.encrypt("0:" + i, "SHA-1"));
+        CommitChain chain = new CommitChain();
+        ZonedDateTime time = ZonedDateTime.now().minusSeconds(commits + 1);
+        //和init一样，第一个commit是空树
+        chain.newCommit(time.minusSeconds(1), "initial commit", Tree.write(new HashMap<>()), "bench");
+        for (int c = 0; c < commits; c++) {
+            int i = random.nextInt(files);
+            tree.put(pathOf(i), Utils.encrypt(c + ":" + i, "SHA-1"));
+            chain.newCommit(time.plusSeconds(c), "commit " + c, Tree.write(tree), "bench");
+        }
+        return chain;
+    }
+
+    /**
+     * 没有过滤器时的做法：沿着历史读取每个commit，和双亲比较这个路径
+     */
+    private static List<Commit> walk(CommitChain chain, String path) {
+        List<Commit> history = new ArrayList<>();
+        for (Commit commit : chain)
+            history.add(commit);
+        List<Commit> found = new ArrayList<>();
+        for (int i = 0; i < history.size(); i++) {
+            String parentTree = i + 1 < history.size() ? history.get(i + 1).getTree() : null;
+            if (!Objects.equals(Tree.lookupPath(parentTree, path), Tree.lookupPath(history.get(i).getTree(), path)))
+                found.add(history.get(i));
+        }
+        return found;
+    }
+}
@@ -0,0 +1,111 @@
+package com.jgit.Benchmark;
+
+import com.jgit.Commits.Commit;
+import com.jgit.Commits.CommitChain;
+import com.jgit.Commits.LogWalk;
+import com.jgit.Commits.Tree;
+import com.jgit.Utility.Exceptions.AlreadyExistBranchException;
+import com.jgit.Utility.Exceptions.NoSuchBranchException;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 分支比较的性能对比：遍历两个分支的全部历史求差 vs 可达位图求差
+ *
+ * master上有一条长历史，每隔几个commit从当前位置拉出一个分支并在上面提交几次，只写空树和commit（见TempRepo）；
+ * 然后分别用两种方式算出每个分支比master多几个、少几个commit，核对结果一致并打印耗时
+ * 用法：java -cp ... com.jgit.Benchmark.ReachabilityBenchmark [master上的commit数] [分支数]
+ */
+public class ReachabilityBenchmark {
+
+    public static void main(String[] args) throws IOException, AlreadyExistBranchException, NoSuchBranchException {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int branchCount = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        if (!TempRepo.create())
+            return;
+        try {
+            CommitChain chain = generate(commits, branchCount, new Random(42));
+            List<String> branches = chain.getBranchNames();
+
+            long start = System.nanoTime();
+            int[][] expected = new int[branches.size()][];
+            Set<String> master = ancestors(chain, "master");
+            for (int i = 0; i < branches.size(); i++) {
+                Set<String> other = ancestors(chain, branches.get(i));
+                expected[i] = new int[]{difference(other, master), difference(master, other)};
+            }
+            long walkNanos = System.nanoTime() - start;
+            chain.changeBranchTo("master");
+
+            //第一轮包括读取位图文件和JIT预热，之后几轮取平均
+            int rounds = 10;
+            long[] bitmapNanos = new long[2];
+            for (int round = 0; round < rounds; round++) {
+                start = System.nanoTime();
+                for (int i = 0; i < branches.size(); i++) {
+                    int[] actual = chain.aheadBehind(branches.get(i), "master");
+                    if (actual[0] != expected[i][0] || actual[1] != expected[i][1])
+                        throw new AssertionError("results differ for " + branches.get(i));
+                }
+                bitmapNanos[Math.min(round, 1)] += System.nanoTime() - start;
+            }
+            System.out.printf("%d commits on master, %d branches%n", commits, branches.size());
+            System.out.printf("%-24s %12s%n", "method", "us/branch");
+            System.out.printf("%-24s %12.1f%n", "walk history", walkNanos / 1e3 / branches.size());
+            System.out.printf("%-24s %12.1f%n", "bitmaps (first run)", bitmapNanos[0] / 1e3 / branches.size());
+            System.out.printf("%-24s %12.1f%n", "bitmaps", bitmapNanos[1] / 1e3 / branches.size() / (rounds - 1));
+        } finally {
+            TempRepo.delete();
+        }
+    }
+
+    private static CommitChain generate(int commits, int branchCount, Random random)
+            throws AlreadyExistBranchException, NoSuchBranchException {
+        String tree = Tree.write(new HashMap<>());
+        CommitChain chain = new CommitChain();
+        ZonedDateTime time = ZonedDateTime.now().minusSeconds(2L * commits * branchCount);
+        chain.newCommit(time, "initial commit", tree, "bench");
+        int every = Math.max(1, commits / branchCount), n = 0;
+        for (int c = 0; c < commits; c++) {
+            time = time.plusSeconds(1);
+            chain.newCommit(time, "commit " + c, tree, "bench");
+            if (c % every == 0 && n < branchCount) {
+                String branch = "b" + n++;
+                chain.addBranch(branch);
+                chain.changeBranchTo(branch);
+                for (int k = random.nextInt(5); k >= 0; k--) {
+                    time = time.plusSeconds(1);
+                    chain.newCommit(time, branch + " commit " + k, tree, "bench");
+                }
+                chain.changeBranchTo("master");
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * 没有位图时的做法：遍历分支的全部历史
+     */
+    private static Set<String> ancestors(CommitChain chain, String branch) throws NoSuchBranchException {
+        chain.changeBranchTo(branch);
+        Set<String> ids = new HashSet<>();
+        for (Commit commit : chain.log().setOrder(LogWalk.Order.TOPO))
+            ids.add(commit.getCommitStr());
+        return ids;
+    }
+
+    private static int difference(Set<String> a, Set<String> b) {
+        int n = 0;
+        for (String id : a) {
+            if (!b.contains(id))
+                n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,74 @@
+package com.jgit.Benchmark;
+
+import com.jgit.Utility.Utils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 基准测试用的临时Repo：在当前文件夹下建.git，测完之后连同生成的其他文件一起删掉
+ *
+ * 只能在空文件夹下运行，要用的路径已经存在时拒绝运行，免得删掉真正的Repo。用法：
+ * <pre>
+ * if (!TempRepo.create()) return;
+ * try { ... } finally { TempRepo.delete(); }
+ * </pre>
+ */
+final class TempRepo {
+
+    private TempRepo() { }
+
+    /**
+     * 建好.git和对象库
+     * @param scratch 除.git之外还要用到的路径，测完一起删掉
+     * @return 有路径已经存在时打印提示并返回false
+     */
+    static boolean create(Path... scratch) throws IOException {
+        if (!isFree(scratch) || !isFree(Utils.getGitDirPath()))
+            return false;
+        Files.createDirectories(Utils.getFilesPath());
+        return true;
+    }
+
+    /**
+     * 删掉.git和create时给出的其他路径
+     */
+    static void delete(Path... scratch) throws IOException {
+        for (Path path : scratch)
+            deleteRecursively(path);
+        deleteRecursively(Utils.getGitDirPath());
+    }
+
+    /**
+     * 检查要用的路径都还不存在，不需要Repo的基准测试也用它
+     * @return 有路径已经存在时打印提示并返回false
+     */
+    static boolean isFree(Path... paths) {
+        for (Path path : paths) {
+            if (Files.exists(path)) {
+                System.err.println("Run the benchmark in an empty directory.");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 删掉文件夹及其中的所有文件，不存在时什么都不做
+     */
+    static void deleteRecursively(Path root) throws IOException {
+        if (!Files.exists(root))
+            return;
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(root)) {
+            paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path path : paths)
+            Files.delete(path);
+    }
+}
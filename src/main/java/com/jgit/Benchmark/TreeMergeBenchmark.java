@@ -0,0 +1,95 @@
+package com.jgit.Benchmark;
+
+import com.jgit.Blobs.BlobPool;
+import com.jgit.Blobs.ContentMerger;
+import com.jgit.Commits.Tree;
+import com.jgit.Commits.TreeMerge;
+import com.jgit.Utility.Hasher;
+import com.jgit.Utility.ObjectId;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 两边都改了很多文件时合并的性能：1、4、16个线程并行合并文件内容
+ *
+ * 祖先的树里有很多文件，两边各改其中一部分文件的不同行，一部分文件两边都改，快照都写进临时Repo（见TempRepo）；
+ * 然后用不同的线程数合并三棵树，核对没有冲突、结果一致，打印平均耗时
+ * 用法：java -cp ... com.jgit.Benchmark.TreeMergeBenchmark [文件数] [两边都改的文件数] [每个文件的行数] [轮数]
+ */
+public class TreeMergeBenchmark {
+
+    private static final int[] WORKERS = {1, 4, 16};
+
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int changed = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int lines = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        if (!TempRepo.create())
+            return;
+        try {
+            BlobPool blobPool = new BlobPool();
+            Random random = new Random(42);
+            Map<String, String> base = new HashMap<>(), ours = new HashMap<>(), theirs = new HashMap<>();
+            for (int i = 0; i < files; i++) {
+                String path = "d" + i / 100 + Tree.SEPARATOR + "f" + i;
+                String[] content = new String[lines];
+                for (int k = 0; k < lines; k++)
+                    content[k] = i + " " + k + " " + random.nextInt();
+                String hash = put(blobPool, content);
+                base.put(path, hash);
+                ours.put(path, hash);
+                theirs.put(path, hash);
+                //前changed个文件两边都改：当前分支改前半部分的一行，另一边改后半部分的一行
+                if (i < changed) {
+                    content[random.nextInt(lines / 2)] += " ours";
+                    ours.put(path, put(blobPool, content));
+                    content[lines / 2 + random.nextInt(lines / 2)] += " theirs";
+                    theirs.put(path, put(blobPool, content));
+                }
+            }
+            String baseTree = Tree.write(base), oursTree = Tree.write(ours), theirsTree = Tree.write(theirs);
+
+            System.out.printf("%d files, %d changed on both sides, %d lines each%n", files, changed, lines);
+            System.out.printf("%-8s %12s %12s%n", "workers", "time(ms)", "files/s");
+            String expected = null;
+            for (int workers : WORKERS) {
+                long nanos = 0;
+                for (int i = 0; i < rounds; i++) {
+                    long start = System.nanoTime();
+                    TreeMerge.Result result = new TreeMerge(new ContentMerger(blobPool, "ours", "theirs"), workers)
+                            .run(baseTree, oursTree, theirsTree);
+                    nanos += System.nanoTime() - start;
+                    if (!result.getConflicts().isEmpty())
+                        throw new AssertionError(result.getConflicts().size() + " unexpected conflict(s)");
+                    if (expected == null)
+                        expected = result.getTree();
+                    else if (!expected.equals(result.getTree()))
+                        throw new AssertionError("results differ with " + workers + " workers");
+                }
+                double ms = nanos / 1e6 / rounds;
+                System.out.printf("%-8d %12.1f %12.1f%n", workers, ms, changed / (ms / 1000));
+            }
+        } finally {
+            TempRepo.delete();
+        }
+    }
+
+    private static String put(BlobPool blobPool, String[] lines) throws IOException, NoSuchAlgorithmException {
+        byte[] data = (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8);
+        Path tempObject = blobPool.createTempObject();
+        try (OutputStream out = blobPool.openObjectOutput(tempObject)) {
+            out.write(data);
+        }
+        ObjectId id = ObjectId.fromRaw(Hasher.digest("SHA-1").digest(data));
+        blobPool.addObject(tempObject, id, tempObject);
+        return id.name();
+    }
+}
@@ -1,6 +1,15 @@
 package com.jgit.Blobs;
 
+import com.jgit.Utility.BinaryReader;
+import com.jgit.Utility.BinaryWriter;
+import com.jgit.Utility.ObjectId;
+import com.jgit.Utility.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
@@ -8,19 +17,69 @@ import java.nio.file.Paths;
  * 抽象文件的类，用于表示git内每个快照
  */
 public class Blob implements Serializable {
-    //在.git文件夹内该快照的位置
+
+    //与最初版本保持一致，增加字段之后老Repo的序列化文件依然可以读取；
+    //BlobPool、Commit、CommitChain和Stage的serialVersionUID也是这样固定下来的
+    private static final long serialVersionUID = 7119910591104850421L;
+    //在.git文件夹内该快照的位置，是默认的objects/源文件路径/hash时为null，用到时再拼出来
     private String dirGit;
     //在工作目录内源文件的地址
     private String dirRaw;
+    //快照写入时使用的压缩方式，老版本Repo的Blob没有这个字段，为null
+    private Compression compression;
 
-    Blob(String dirGit, String dirRaw) {
+    Blob(String dirGit, String dirRaw, Compression compression) {
         this.dirGit = dirGit;
         this.dirRaw = dirRaw;
+        this.compression = compression;
+    }
+
+    /**
+     * 二进制格式：源文件路径、压缩方式，快照位置不是默认的objects/源文件路径/hash时（老版本的hash可能丢了前导0）再写出快照位置
+     */
+    void encode(ObjectId id, BinaryWriter out) {
+        out.writeString(dirRaw);
+        out.writeByte(getCompression().ordinal());
+        out.writeString(dirGit == null || dirGit.equals(defaultPathGit(dirRaw, id)) ? null : dirGit);
+    }
+
+    static Blob decode(BinaryReader in) throws IOException {
+        String dirRaw = in.readString();
+        int compression = in.readByte();
+        if (compression >= Compression.values().length)
+            throw new IOException("unknown compression " + compression);
+        return new Blob(in.readString(), dirRaw, Compression.values()[compression]);
+    }
+
+    /**
+     * 快照位置写成完整路径的副本，用于老版本的Java序列化格式
+     */
+    Blob withPathGit(ObjectId id) {
+        return new Blob(getPathGit(id).toString(), dirRaw, compression);
+    }
+
+    //直接拼接字符串，和Path.resolve的结果一致，但每个快照都要算一次，拼接快得多
+    private static final String FILES_PREFIX = Utils.getFilesPath().toString() + File.separator;
+
+    private static String defaultPathGit(String dirRaw, ObjectId id) {
+        return FILES_PREFIX + dirRaw + File.separator + id.name();
     }
 
-    public Path getPathGit() {
-        return Paths.get(dirGit);
+    /**
+     * @param id 这个快照的hash，快照位置是默认位置时由它拼出文件名
+     */
+    public Path getPathGit(ObjectId id) {
+        return Paths.get(dirGit != null ? dirGit : defaultPathGit(dirRaw, id));
     }
 
     public Path getPathRaw() { return Paths.get(dirRaw); }
+
+    public Compression getCompression() { return compression == null ? Compression.NONE : compression; }
+
+    /**
+     * 打开快照的输入流，读出的是解压后的原始文件内容
+     */
+    public InputStream openStream(ObjectId id) throws IOException {
+        return getCompression().wrap(Files.newInputStream(getPathGit(id)));
+    }
 }
@@ -1,52 +1,354 @@
 package com.jgit.Blobs;
 
+import com.jgit.Blobs.Pack.PackFile;
+import com.jgit.Blobs.Pack.PackWriter;
+import com.jgit.Utility.BinaryReader;
+import com.jgit.Utility.BinaryWriter;
+import com.jgit.Utility.ObjectId;
+import com.jgit.Utility.ObjectIdMap;
 import com.jgit.Utility.Utils;
 
-import java.io.FileInputStream;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 public class BlobPool implements Serializable {
 
+    private static final long serialVersionUID = 1863836518306923668L;
+
+    //二进制格式的魔数"JBLB"和版本号，见BinaryWriter
+    private static final int MAGIC = 0x4a424c42;
+    private static final int VERSION = 1;
+
     //blob pool: map sha-1 to the blob of file.
-    private Map<String, Blob> pool = new HashMap<>();
+    //快照多的Repo里这是最大的一块元数据，键直接以20字节保存在开放寻址表里
+    private transient ObjectIdMap<Blob> blobs = new ObjectIdMap<>();
+    //老版本的Java序列化格式保存的是"十六进制hash -> Blob"的Map，只在读写这种格式时使用，见readObject
+    private Map<String, Blob> pool;
+    //新快照写入对象库时使用的压缩方式，由配置文件决定，不参与序列化
+    private transient Compression compression = Compression.NONE;
+    //.git/packs下已有的pack文件，第一次用到时才打开
+    private transient List<PackFile> packs;
+    //登记或者删除过快照，需要写回blobs
+    private transient boolean dirty = true;
 
+    /**
+     * 读取快照池文件，老版本Repo的Java序列化格式也能读，读出来之后标记为修改过，下次写回时转换成二进制格式
+     */
     public static BlobPool deSerialFrom(Path path) {
         try {
-            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(path.toString()));
-            return (BlobPool) ois.readObject();
+            ByteBuffer buf = BinaryReader.readFile(path);
+            if (BinaryReader.isJavaSerialized(buf)) {
+                BlobPool bp = (BlobPool) new ObjectInputStream(BinaryReader.asStream(buf)).readObject();
+                bp.dirty = true;
+                return bp;
+            }
+            return decode(new BinaryReader(buf, MAGIC, VERSION));
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
             return null;
         }
     }
 
-    public void addFile(List<Path> files) throws IOException{
-        for (Path file : files) {
-            Path destDir = Utils.getFilesPath().resolve(Utils.getRelativeDir(file));
-            String hash = Utils.encrypt(file, "SHA-1");
-            if (!Files.exists(destDir)) Files.createDirectories(destDir);
-            if (!pool.containsKey(hash)) {
-                Path destFile = destDir.resolve(hash);
-                Files.copy(file, destFile);
-                pool.put(hash, new Blob(destFile.toString(), file.toString()));
-            }
+    /**
+     * 二进制格式：快照数，然后每个快照依次为20字节hash和Blob
+     */
+    public void saveTo(Path path) throws IOException {
+        BinaryWriter out = new BinaryWriter(MAGIC, VERSION);
+        out.writeVarInt(blobs.size());
+        blobs.forEach((id, blob) -> {
+            out.writeObjectId(id);
+            blob.encode(id, out);
+        });
+        out.writeTo(path);
+    }
+
+    private static BlobPool decode(BinaryReader in) throws IOException {
+        BlobPool bp = new BlobPool();
+        int n = in.readInt();
+        bp.blobs = new ObjectIdMap<>(n);
+        for (int i = 0; i < n; i++)
+            bp.blobs.put(in.readObjectId(), Blob.decode(in));
+        bp.dirty = false;
+        return bp;
+    }
+
+    /**
+     * 老版本的hash丢掉了前导0，转换成ObjectId时会补齐，保证和现在计算出的定长hash一致
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        blobs = new ObjectIdMap<>(pool.size());
+        pool.forEach((hash, blob) -> blobs.put(ObjectId.fromString(hash), blob));
+        pool = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        Map<String, Blob> legacy = new HashMap<>(blobs.size() * 2);
+        blobs.forEach((id, blob) -> legacy.put(id.name(), blob.withPathGit(id)));
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("pool", legacy);
+        out.writeFields();
+    }
+
+    /**
+     * 在对象库里新建一个临时快照文件，写完之后用addObject改名为正式的快照
+     */
+    public Path createTempObject() throws IOException {
+        return Files.createTempFile(Utils.getFilesPath(), "tmp-", null);
+    }
+
+    /**
+     * 打开快照文件的输出流，写入的内容按当前配置的压缩方式压缩
+     */
+    public OutputStream openObjectOutput(Path tempObject) throws IOException {
+        return compression.wrap(Files.newOutputStream(tempObject));
+    }
+
+    public boolean contains(String hash) {
+        return blobs.containsKey(ObjectId.fromString(hash));
+    }
+
+    /**
+     * 快照表的副本，供其他线程只读地判断快照是否已经存在
+     */
+    public ObjectIdMap<Blob> getObjectsSnapshot() {
+        return blobs.copy();
+    }
+
+    /**
+     * 把写好的临时快照登记进快照池
+     *
+     * 快照已经存在时只删除临时文件，每个版本仍然只占一份磁盘空间
+     * @param file 工作目录中的源文件
+     * @param hash 源文件内容的hash
+     * @param tempObject createTempObject创建并写好的临时快照
+     */
+    public void addObject(Path file, String hash, Path tempObject) throws IOException {
+        addObject(file, ObjectId.fromString(hash), tempObject);
+    }
+
+    public void addObject(Path file, ObjectId id, Path tempObject) throws IOException {
+        if (blobs.containsKey(id)) {
+            Files.deleteIfExists(tempObject);
+            return;
         }
+        Blob blob = new Blob(null, file.toString(), compression);
+        Path destFile = blob.getPathGit(id);
+        Files.createDirectories(destFile.getParent());
+        Files.move(tempObject, destFile, StandardCopyOption.REPLACE_EXISTING);
+        blobs.put(id, blob);
+        dirty = true;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression;
     }
 
     public Blob getFile(String hash) {
-        return pool.get(hash);
+        return blobs.get(ObjectId.fromString(hash));
+    }
+
+    /**
+     * 打开指定快照的输入流，读出的是原始文件内容
+     *
+     * 松散快照文件存在时直接读取，否则说明它已经被repack打包，到pack索引里查找
+     */
+    public InputStream openStream(String hash) throws IOException {
+        ObjectId id = ObjectId.fromString(hash);
+        Blob blob = blobs.get(id);
+        if (blob == null)
+            throw new NoSuchFileException(hash, null, "missing object " + hash);
+        if (Files.exists(blob.getPathGit(id)))
+            return blob.openStream(id);
+        byte[] data = loadPacked(id.getRaw());
+        if (data == null)
+            throw new NoSuchFileException(blob.getPathGit(id).toString());
+        return new ByteArrayInputStream(data);
+    }
+
+    private byte[] loadPacked(byte[] id) throws IOException {
+        for (PackFile pack : getPacks()) {
+            byte[] data = pack.load(id);
+            if (data != null)
+                return data;
+        }
+        return null;
+    }
+
+    private PackFile findPack(byte[] id) throws IOException {
+        for (PackFile pack : getPacks()) {
+            if (pack.contains(id))
+                return pack;
+        }
+        return null;
+    }
+
+    /**
+     * 把快照的原始内容写到dest，覆盖已有文件
+     *
+     * 没有压缩的松散快照用FileChannel.transferTo直接在内核里复制，不经过用户态缓冲区；
+     * 压缩过的或者已经打包的快照只能边解压边写
+     */
+    public void copyObject(String hash, Path dest) throws IOException {
+        ObjectId id = ObjectId.fromString(hash);
+        Blob blob = blobs.get(id);
+        if (blob == null)
+            throw new NoSuchFileException(dest.toString(), null, "missing object " + hash);
+        if (blob.getCompression() == Compression.NONE) {
+            try (FileChannel src = FileChannel.open(blob.getPathGit(id), StandardOpenOption.READ);
+                 FileChannel dst = FileChannel.open(dest, StandardOpenOption.WRITE,
+                         StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long size = src.size();
+                for (long pos = 0; pos < size; )
+                    pos += src.transferTo(pos, size - pos, dst);
+                return;
+            } catch (NoSuchFileException e) {
+                //松散快照已经被打包了，按下面的方式读取
+            }
+        }
+        try (InputStream in = openStream(hash)) {
+            Files.copy(in, dest, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private synchronized List<PackFile> getPacks() throws IOException {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            if (Files.isDirectory(Utils.getPacksPath())) {
+                try (DirectoryStream<Path> idxFiles = Files.newDirectoryStream(Utils.getPacksPath(), "pack-*.idx")) {
+                    for (Path idx : idxFiles)
+                        packs.add(PackFile.open(idx));
+                }
+            }
+        }
+        return packs;
+    }
+
+    /**
+     * 把所有快照（松散的和已经在pack里的）重新打包成一个pack文件
+     *
+     * 新的pack和索引都写完之后，才删除松散快照文件和旧的pack，中途失败不会丢失任何快照
+     * @return 新pack的索引文件路径，没有任何快照时返回null
+     */
+    public Path repack() throws IOException {
+        List<PackWriter.Entry> entries = new ArrayList<>();
+        List<Path> looseFiles = new ArrayList<>();
+        List<ObjectId> ids = new ArrayList<>(blobs.size());
+        blobs.forEach((id, blob) -> ids.add(id));
+        for (ObjectId objectId : ids) {
+            byte[] id = objectId.getRaw();
+            Blob blob = blobs.get(objectId);
+            Path loose = blob.getPathGit(objectId);
+            String name = blob.getPathRaw().toString();
+            if (Files.exists(loose)) {
+                looseFiles.add(loose);
+                entries.add(new PackWriter.Entry(id, name, Files.size(loose), () -> {
+                    try (InputStream in = blob.openStream(objectId)) {
+                        return IOUtils.toByteArray(in);
+                    }
+                }));
+            } else {
+                PackFile pack = findPack(id);
+                if (pack != null)
+                    entries.add(new PackWriter.Entry(id, name, pack.getSize(id), () -> pack.load(id)));
+            }
+        }
+        if (entries.isEmpty())
+            return null;
+        Path idx = new PackWriter(Utils.getPacksPath()).write(entries);
+
+        for (Path loose : looseFiles)
+            Files.deleteIfExists(loose);
+        deleteEmptyDirectories(Utils.getFilesPath());
+        for (PackFile pack : getPacks()) {
+            pack.close();
+            if (!pack.getIndexPath().equals(idx)) {
+                Files.deleteIfExists(pack.getIndexPath());
+                Files.deleteIfExists(pack.getPackPath());
+            }
+        }
+        packs = null;
+        return idx;
+    }
+
+    private static void deleteEmptyDirectories(Path root) throws IOException {
+        List<Path> dirs;
+        try (Stream<Path> walk = Files.walk(root)) {
+            dirs = walk.filter(Files::isDirectory).filter(p -> !p.equals(root))
+                    .sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path dir : dirs) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                if (!children.iterator().hasNext())
+                    Files.delete(dir);
+            }
+        }
+    }
+
+    /**
+     * 清理快照池：不在live里、并且在expire之前写入的快照从池里删掉，松散快照文件一起删除，只由gc调用
+     *
+     * 已经打包的快照按pack文件的时间判断，删掉的只是池里的记录，pack里的数据在下次repack时丢掉（repack只打包池里的快照）
+     * @param live 还有commit或者暂存区用到的快照
+     * @return 删除的快照个数
+     */
+    public int prune(Set<ObjectId> live, Instant expire) throws IOException {
+        List<ObjectId> dead = new ArrayList<>();
+        blobs.forEach((id, blob) -> {
+            if (!live.contains(id))
+                dead.add(id);
+        });
+        int removed = 0;
+        for (ObjectId id : dead) {
+            Path loose = blobs.get(id).getPathGit(id);
+            Path stored = Files.exists(loose) ? loose : null;
+            if (stored == null) {
+                PackFile pack = findPack(id.getRaw());
+                stored = pack == null ? null : pack.getPackPath();
+            }
+            if (stored != null && !Files.getLastModifiedTime(stored).toInstant().isBefore(expire))
+                continue;
+            if (stored == loose)
+                Files.delete(loose);
+            blobs.remove(id);
+            removed++;
+        }
+        if (removed > 0) {
+            deleteEmptyDirectories(Utils.getFilesPath());
+            dirty = true;
+        }
+        return removed;
     }
 
-    public void rmFile(String hash) throws IOException{
-        Files.delete(pool.get(hash).getPathRaw());
-        pool.remove(hash);
+    /**
+     * 读取之后是否被修改过，没有修改过就不需要写回磁盘
+     */
+    public boolean isDirty() {
+        return dirty;
     }
 }
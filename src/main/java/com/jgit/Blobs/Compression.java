@@ -0,0 +1,66 @@
+package com.jgit.Blobs;
+
+import org.apache.commons.compress.compressors.deflate.DeflateCompressorInputStream;
+import org.apache.commons.compress.compressors.deflate.DeflateCompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 对象库中快照文件的压缩方式
+ *
+ * 每个Blob记录自己写入时使用的压缩方式，所以同一个Repo里可以混合存在不同压缩方式的快照，
+ * 老版本Repo里的Blob没有这个字段，反序列化之后为null，按NONE处理
+ */
+public enum Compression {
+
+    NONE("none"),
+    DEFLATE("deflate"),
+    ZSTD("zstd");
+
+    private final String configName;
+
+    Compression(String configName) {
+        this.configName = configName;
+    }
+
+    public String getConfigName() {
+        return configName;
+    }
+
+    /**
+     * 从配置文件中的名称解析压缩方式
+     * @param name 配置值，例如deflate
+     * @throws IllegalArgumentException 不认识的名称，或者当前环境不支持zstd
+     */
+    public static Compression of(String name) {
+        for (Compression c : values()) {
+            if (c.configName.equalsIgnoreCase(name)) {
+                if (c == ZSTD && !ZstdUtils.isZstdCompressionAvailable())
+                    throw new IllegalArgumentException("zstd compression is not available in this environment");
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("unknown compression: " + name);
+    }
+
+    public OutputStream wrap(OutputStream out) throws IOException {
+        switch (this) {
+            case DEFLATE: return new DeflateCompressorOutputStream(out);
+            case ZSTD: return new ZstdCompressorOutputStream(out);
+            default: return out;
+        }
+    }
+
+    public InputStream wrap(InputStream in) throws IOException {
+        switch (this) {
+            case DEFLATE: return new DeflateCompressorInputStream(in);
+            case ZSTD: return new ZstdCompressorInputStream(in);
+            default: return in;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.jgit.Blobs;
+
+import com.jgit.Commits.FileMerger;
+import com.jgit.Utility.Hasher;
+import com.jgit.Utility.ObjectId;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 用快照池里的快照做按行的三路合并，结果作为新快照登记进快照池，见ThreeWayMerge
+ *
+ * 没有压缩的松散快照直接从对象库里读，其余的先复制成临时文件，合并时按行的位置整段读取；
+ * 结果一边写进临时快照一边算hash，写完再登记，和add一样不会留下写了一半的快照。
+ * 多个文件并行合并时，工作线程只读快照池和写临时快照，登记放到finish里由调用线程统一做，快照池不需要加锁
+ */
+public class ContentMerger implements FileMerger {
+
+    private final BlobPool blobPool;
+    private final String oursLabel, theirsLabel;
+    //已经写好、等待登记的合并结果
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+
+    private static class Pending {
+        private final Path file;
+        private final ObjectId id;
+        private final Path tempObject;
+
+        Pending(Path file, ObjectId id, Path tempObject) {
+            this.file = file;
+            this.id = id;
+            this.tempObject = tempObject;
+        }
+    }
+
+    /**
+     * @param oursLabel 冲突标记里当前分支的名字
+     * @param theirsLabel 冲突标记里要合并进来的分支的名字
+     */
+    public ContentMerger(BlobPool blobPool, String oursLabel, String theirsLabel) {
+        this.blobPool = blobPool;
+        this.oursLabel = oursLabel;
+        this.theirsLabel = theirsLabel;
+    }
+
+    @Override
+    public Result merge(String path, String base, String ours, String theirs) throws IOException {
+        List<Path> temps = new ArrayList<>(4);
+        Path tempObject = null;
+        try {
+            Path baseFile = source(base, temps), oursFile = source(ours, temps), theirsFile = source(theirs, temps);
+            tempObject = blobPool.createTempObject();
+            MessageDigest md = Hasher.digest("SHA-1");
+            int conflicts;
+            try (OutputStream out = new DigestOutputStream(blobPool.openObjectOutput(tempObject), md)) {
+                conflicts = ThreeWayMerge.merge(baseFile, oursFile, theirsFile, oursLabel, theirsLabel, out);
+            }
+            //二进制文件没法按行合并，保留当前分支的版本
+            if (conflicts == ThreeWayMerge.BINARY)
+                return new Result(ours, true);
+            ObjectId id = ObjectId.fromRaw(md.digest());
+            pending.add(new Pending(Paths.get(path), id, tempObject));
+            tempObject = null;
+            return new Result(id.name(), conflicts > 0);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        } finally {
+            for (Path temp : temps)
+                deleteQuietly(temp);
+            deleteQuietly(tempObject);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        for (Pending p; (p = pending.poll()) != null; )
+            blobPool.addObject(p.file, p.id, p.tempObject);
+    }
+
+    /**
+     * 没有压缩的松散快照直接读原文件，其余的（压缩过的、已经打包的、祖先里没有的）先复制成临时文件
+     * @param temps 创建的临时文件，用完之后删除
+     * @return 内容是这个快照的文件，hash为null时是空文件
+     */
+    private Path source(String hash, List<Path> temps) throws IOException {
+        if (hash != null) {
+            Blob blob = blobPool.getFile(hash);
+            if (blob != null && blob.getCompression() == Compression.NONE) {
+                Path loose = blob.getPathGit(ObjectId.fromString(hash));
+                if (Files.isRegularFile(loose))
+                    return loose;
+            }
+        }
+        Path file = blobPool.createTempObject();
+        temps.add(file);
+        if (hash != null)
+            blobPool.copyObject(hash, file);
+        return file;
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) return;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) { }
+    }
+}
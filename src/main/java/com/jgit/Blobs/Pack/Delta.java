@@ -0,0 +1,129 @@
+package com.jgit.Blobs.Pack;
+
+import com.jgit.Utility.VarInt;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 二进制增量编码，用于pack文件中同一文件相邻版本之间的压缩
+ *
+ * 格式：基准长度(varint)，结果长度(varint)，然后是一串指令：
+ * 最高位为1的字节表示复制指令，后跟基准中的偏移和长度(都是varint)；
+ * 1~127表示插入指令，后跟对应个数的字面字节；0保留不用
+ */
+public class Delta {
+
+    //基准对象按这个大小分块建立索引，匹配长度小于它的片段直接插入
+    private static final int BLOCK = 16;
+    //每个哈希桶最多比较的候选块数，避免高度重复的内容退化成平方复杂度
+    private static final int MAX_CHAIN = 64;
+    private static final int MAX_INSERT = 127;
+
+    private Delta() { }
+
+    /**
+     * 计算把base变成target的增量
+     */
+    public static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 4 + 16);
+        VarInt.write(out, base.length);
+        VarInt.write(out, target.length);
+        int blocks = base.length / BLOCK;
+        if (blocks == 0) {
+            insert(out, target, 0, target.length);
+            return out.toByteArray();
+        }
+        int mask = Integer.highestOneBit(blocks) * 2 - 1;
+        int[] head = new int[mask + 1], next = new int[blocks];
+        Arrays.fill(head, -1);
+        for (int b = 0; b < blocks; b++) {
+            int h = hash(base, b * BLOCK) & mask;
+            next[b] = head[h];
+            head[h] = b;
+        }
+
+        int pos = 0, pending = 0;
+        while (pos + BLOCK <= target.length) {
+            int bestOff = 0, bestLen = 0, tries = 0;
+            for (int b = head[hash(target, pos) & mask]; b != -1 && tries < MAX_CHAIN; b = next[b], tries++) {
+                int off = b * BLOCK;
+                int len = matchLength(base, off, target, pos);
+                if (len > bestLen) {
+                    bestLen = len;
+                    bestOff = off;
+                }
+            }
+            if (bestLen < BLOCK) {
+                pos++;
+                continue;
+            }
+            //匹配是从块边界开始找的，再往前吃掉一些还没输出的插入字节
+            while (bestOff > 0 && pos > pending && base[bestOff - 1] == target[pos - 1]) {
+                bestOff--;
+                pos--;
+                bestLen++;
+            }
+            insert(out, target, pending, pos);
+            out.write(0x80);
+            VarInt.write(out, bestOff);
+            VarInt.write(out, bestLen);
+            pos += bestLen;
+            pending = pos;
+        }
+        insert(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * 把增量作用在base上，还原出目标内容
+     * @throws IllegalArgumentException 增量和base不匹配或者增量已损坏
+     */
+    public static byte[] apply(byte[] base, byte[] delta) {
+        ByteBuffer in = ByteBuffer.wrap(delta);
+        if (VarInt.readInt(in) != base.length)
+            throw new IllegalArgumentException("delta base length mismatch");
+        byte[] result = new byte[VarInt.readInt(in)];
+        int o = 0;
+        while (in.hasRemaining()) {
+            int cmd = in.get() & 0xFF;
+            if ((cmd & 0x80) != 0) {
+                int off = VarInt.readInt(in), len = VarInt.readInt(in);
+                System.arraycopy(base, off, result, o, len);
+                o += len;
+            } else if (cmd != 0) {
+                in.get(result, o, cmd);
+                o += cmd;
+            } else {
+                throw new IllegalArgumentException("corrupt delta");
+            }
+        }
+        if (o != result.length)
+            throw new IllegalArgumentException("delta result length mismatch");
+        return result;
+    }
+
+    private static void insert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        while (from < to) {
+            int len = Math.min(MAX_INSERT, to - from);
+            out.write(len);
+            out.write(data, from, len);
+            from += len;
+        }
+    }
+
+    private static int matchLength(byte[] base, int off, byte[] target, int pos) {
+        int max = Math.min(base.length - off, target.length - pos), len = 0;
+        while (len < max && base[off + len] == target[pos + len])
+            len++;
+        return len;
+    }
+
+    private static int hash(byte[] data, int off) {
+        int h = 0;
+        for (int i = 0; i < BLOCK; i++)
+            h = h * 31 + data[off + i];
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,182 @@
+package com.jgit.Blobs.Pack;
+
+import com.jgit.Utility.VarInt;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * 一个pack文件及其索引
+ *
+ * pack格式：魔数、版本号、对象个数，然后是各个对象，最后是前面全部内容的SHA-1校验和。
+ * 每个对象为：类型(1字节)，原始长度(varint)，如果是增量对象则跟着与基准对象的偏移差(varint)，
+ * 压缩后长度(varint)，最后是deflate压缩的数据（完整内容或者增量）
+ */
+public class PackFile implements Closeable {
+
+    static final int MAGIC = 0x4a50434b; // "JPCK"
+    static final int VERSION = 1;
+    static final int TYPE_FULL = 1;
+    static final int TYPE_DELTA = 2;
+    //对象头的最大长度：类型 + 三个varint
+    private static final int MAX_HEADER_SIZE = 1 + 3 * 10;
+    //解开增量链时缓存的基准对象总大小上限
+    private static final long BASE_CACHE_LIMIT = 32L << 20;
+
+    private final Path packPath;
+    private final PackIndex index;
+    private final FileChannel channel;
+    private final Map<Long, byte[]> baseCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long baseCacheSize;
+
+    private PackFile(Path packPath, PackIndex index) throws IOException {
+        this.packPath = packPath;
+        this.index = index;
+        this.channel = FileChannel.open(packPath, StandardOpenOption.READ);
+    }
+
+    /**
+     * 根据索引文件路径打开pack，pack文件和索引同名，扩展名不同
+     */
+    public static PackFile open(Path idxPath) throws IOException {
+        String name = idxPath.getFileName().toString();
+        Path packPath = idxPath.resolveSibling(name.substring(0, name.length() - ".idx".length()) + ".pack");
+        return new PackFile(packPath, PackIndex.open(idxPath));
+    }
+
+    public Path getPackPath() {
+        return packPath;
+    }
+
+    public Path getIndexPath() {
+        String name = packPath.getFileName().toString();
+        return packPath.resolveSibling(name.substring(0, name.length() - ".pack".length()) + ".idx");
+    }
+
+    public PackIndex getIndex() {
+        return index;
+    }
+
+    public boolean contains(byte[] id) {
+        return index.findOffset(id) >= 0;
+    }
+
+    /**
+     * 读出对象解压并解开增量之后的完整内容
+     * @param id 20字节对象id
+     * @return 对象内容，不在本pack中时返回null
+     */
+    public synchronized byte[] load(byte[] id) throws IOException {
+        long offset = index.findOffset(id);
+        return offset < 0 ? null : load(offset);
+    }
+
+    /**
+     * 读出对象的原始长度，只解析对象头，不解压数据
+     * @return 对象长度，不在本pack中时返回-1
+     */
+    public synchronized long getSize(byte[] id) throws IOException {
+        long offset = index.findOffset(id);
+        return offset < 0 ? -1 : readHeader(offset).size;
+    }
+
+    private byte[] load(long offset) throws IOException {
+        byte[] cached = baseCache.get(offset);
+        if (cached != null)
+            return cached;
+        Header header = readHeader(offset);
+        byte[] data = inflate(read(offset + header.length, header.compressedSize),
+                header.type == TYPE_DELTA ? -1 : (int) header.size);
+        if (header.type == TYPE_FULL)
+            return data;
+        if (header.type != TYPE_DELTA)
+            throw new IOException("corrupt pack object at " + offset + " in " + packPath);
+        byte[] base = load(offset - header.baseDistance);
+        cacheBase(offset - header.baseDistance, base);
+        return Delta.apply(base, data);
+    }
+
+    private void cacheBase(long offset, byte[] base) {
+        if (base.length > BASE_CACHE_LIMIT / 4 || baseCache.containsKey(offset))
+            return;
+        baseCache.put(offset, base);
+        baseCacheSize += base.length;
+        Iterator<byte[]> it = baseCache.values().iterator();
+        while (baseCacheSize > BASE_CACHE_LIMIT && it.hasNext()) {
+            baseCacheSize -= it.next().length;
+            it.remove();
+        }
+    }
+
+    private Header readHeader(long offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        channel.read(buf, offset);
+        buf.flip();
+        Header header = new Header();
+        header.type = buf.get();
+        header.size = VarInt.read(buf);
+        if (header.type == TYPE_DELTA)
+            header.baseDistance = VarInt.read(buf);
+        header.compressedSize = VarInt.readInt(buf);
+        header.length = buf.position();
+        return header;
+    }
+
+    private byte[] read(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0)
+                throw new EOFException("truncated pack " + packPath);
+        }
+        return buf.array();
+    }
+
+    /**
+     * @param expectedSize 解压后的长度，未知时传-1
+     */
+    private static byte[] inflate(byte[] compressed, int expectedSize) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] out = new byte[expectedSize >= 0 ? expectedSize : Math.max(64, compressed.length * 4)];
+            int n = 0;
+            while (!inflater.finished()) {
+                if (n == out.length)
+                    out = Arrays.copyOf(out, Math.max(64, out.length * 2));
+                int r = inflater.inflate(out, n, out.length - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("truncated compressed data in pack");
+                n += r;
+            }
+            return n == out.length ? out : Arrays.copyOf(out, n);
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed data in pack", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static class Header {
+        int type;
+        long size;
+        long baseDistance;
+        int compressedSize;
+        int length;
+    }
+}
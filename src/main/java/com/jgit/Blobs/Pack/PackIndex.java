@@ -0,0 +1,124 @@
+package com.jgit.Blobs.Pack;
+
+import com.jgit.Utility.Utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * pack文件的索引(.idx)，以只读内存映射的方式访问
+ *
+ * 格式：魔数、版本号，256项的fan-out表（第i项为首字节不大于i的对象个数），
+ * 按字节序排好的20字节对象id，与id一一对应的8字节pack内偏移，最后是对应pack文件的校验和。
+ * 查找时先用首字节在fan-out表里确定区间，再在映射内存上二分，不需要把索引反序列化到堆里
+ */
+public class PackIndex {
+
+    static final int MAGIC = 0x4a494458; // "JIDX"
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int FANOUT_SIZE = 256 * 4;
+
+    private final MappedByteBuffer buf;
+    private final int count;
+    private final int idsStart;
+    private final int offsetsStart;
+
+    private PackIndex(MappedByteBuffer buf) throws IOException {
+        this.buf = buf;
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+            throw new IOException("not a supported pack index");
+        count = buf.getInt(HEADER_SIZE + FANOUT_SIZE - 4);
+        idsStart = HEADER_SIZE + FANOUT_SIZE;
+        offsetsStart = idsStart + count * Utils.HASH_LENGTH;
+    }
+
+    public static PackIndex open(Path path) throws IOException {
+        //映射建立之后即使关闭channel也依然有效
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new PackIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int getObjectCount() {
+        return count;
+    }
+
+    public byte[] getId(int i) {
+        byte[] id = new byte[Utils.HASH_LENGTH];
+        for (int k = 0; k < id.length; k++)
+            id[k] = buf.get(idsStart + i * Utils.HASH_LENGTH + k);
+        return id;
+    }
+
+    public long getOffset(int i) {
+        return buf.getLong(offsetsStart + i * 8);
+    }
+
+    /**
+     * 查找对象在pack文件中的偏移
+     * @param id 20字节对象id
+     * @return 偏移，找不到时返回-1
+     */
+    public long findOffset(byte[] id) {
+        int first = id[0] & 0xFF;
+        int lo = first == 0 ? 0 : buf.getInt(HEADER_SIZE + (first - 1) * 4);
+        int hi = buf.getInt(HEADER_SIZE + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareAt(mid, id);
+            if (cmp < 0) lo = mid + 1;
+            else if (cmp > 0) hi = mid - 1;
+            else return getOffset(mid);
+        }
+        return -1;
+    }
+
+    private int compareAt(int i, byte[] id) {
+        int base = idsStart + i * Utils.HASH_LENGTH;
+        for (int k = 0; k < id.length; k++) {
+            int c = (buf.get(base + k) & 0xFF) - (id[k] & 0xFF);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+
+    /**
+     * 写出索引文件
+     * @param ids 已经按无符号字节序排好的对象id
+     * @param offsets 与ids一一对应的偏移
+     * @param packChecksum 对应pack文件的校验和
+     */
+    static void write(Path path, byte[][] ids, long[] offsets, byte[] packChecksum) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            int[] fanout = new int[256];
+            for (byte[] id : ids)
+                fanout[id[0] & 0xFF]++;
+            for (int i = 0, total = 0; i < 256; i++) {
+                total += fanout[i];
+                out.writeInt(total);
+            }
+            for (byte[] id : ids)
+                out.write(id);
+            for (long offset : offsets)
+                out.writeLong(offset);
+            out.write(packChecksum);
+        }
+    }
+
+    static int compare(byte[] a, byte[] b) {
+        for (int k = 0; k < a.length; k++) {
+            int c = (a[k] & 0xFF) - (b[k] & 0xFF);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+}
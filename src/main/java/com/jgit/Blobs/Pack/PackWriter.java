@@ -0,0 +1,194 @@
+package com.jgit.Blobs.Pack;
+
+import com.jgit.Utility.Utils;
+import com.jgit.Utility.VarInt;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * 把一批对象写成一个pack文件和对应的索引
+ *
+ * 对象先按文件路径分组、组内按大小从大到小排序，这样同一个文件的各个版本会挨在一起；
+ * 然后用一个滑动窗口，尝试把每个对象表示成窗口里某个对象的增量，只有增量明显更小时才采用
+ */
+public class PackWriter {
+
+    //滑动窗口里保留的候选基准对象个数
+    private static final int WINDOW = 10;
+    //增量链的最大深度，太深的话读取时要解开的增量太多
+    private static final int MAX_DEPTH = 50;
+
+    /**
+     * 读取对象内容，对象可能来自松散文件，也可能来自已有的pack
+     */
+    public interface ObjectSource {
+        byte[] read() throws IOException;
+    }
+
+    public static class Entry {
+        private final byte[] id;
+        private final String name;
+        private final long sizeHint;
+        private final ObjectSource source;
+
+        /**
+         * @param id 20字节对象id
+         * @param name 对象对应的文件路径，用于把同一文件的各个版本排在一起
+         * @param sizeHint 对象大小的估计值，只用于排序
+         * @param source 读取对象内容
+         */
+        public Entry(byte[] id, String name, long sizeHint, ObjectSource source) {
+            this.id = id;
+            this.name = name;
+            this.sizeHint = sizeHint;
+            this.source = source;
+        }
+    }
+
+    private static class Slot {
+        final byte[] data;
+        final long offset;
+        final int depth;
+
+        Slot(byte[] data, long offset, int depth) {
+            this.data = data;
+            this.offset = offset;
+            this.depth = depth;
+        }
+    }
+
+    private final Path packDir;
+    private final Deflater deflater = new Deflater();
+
+    public PackWriter(Path packDir) {
+        this.packDir = packDir;
+    }
+
+    /**
+     * 写出pack文件和索引，先写临时文件，全部写完再改名，索引最后出现，
+     * 所以只要索引存在，对应的pack就是完整的
+     * @return 新pack的索引文件路径
+     */
+    public Path write(List<Entry> entries) throws IOException {
+        Files.createDirectories(packDir);
+        entries.sort(Comparator.comparing((Entry e) -> e.name)
+                .thenComparing(Comparator.comparingLong((Entry e) -> e.sizeHint).reversed()));
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        Path tmpPack = Files.createTempFile(packDir, "tmp-", ".pack");
+        byte[][] ids = new byte[entries.size()][];
+        long[] offsets = new long[entries.size()];
+        byte[] checksum;
+        try {
+            CountingOutputStream counter = new CountingOutputStream(new DigestOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmpPack)), md));
+            try (DataOutputStream out = new DataOutputStream(counter)) {
+                out.writeInt(PackFile.MAGIC);
+                out.writeInt(PackFile.VERSION);
+                out.writeInt(entries.size());
+                Deque<Slot> window = new ArrayDeque<>();
+                for (int i = 0; i < entries.size(); i++) {
+                    Entry entry = entries.get(i);
+                    byte[] data = entry.source.read();
+                    ids[i] = entry.id;
+                    offsets[i] = counter.getByteCount();
+                    Slot slot = writeEntry(out, offsets[i], data, window);
+                    window.addLast(slot);
+                    if (window.size() > WINDOW)
+                        window.removeFirst();
+                }
+                checksum = md.digest();
+                out.write(checksum);
+            }
+            String name = "pack-" + Utils.toHex(checksum);
+            Path packPath = packDir.resolve(name + ".pack"), idxPath = packDir.resolve(name + ".idx");
+            if (Files.exists(idxPath)) {
+                //内容完全相同的pack已经存在
+                Files.delete(tmpPack);
+                return idxPath;
+            }
+            Files.move(tmpPack, packPath, StandardCopyOption.REPLACE_EXISTING);
+            sortById(ids, offsets);
+            Path tmpIdx = Files.createTempFile(packDir, "tmp-", ".idx");
+            PackIndex.write(tmpIdx, ids, offsets, checksum);
+            Files.move(tmpIdx, idxPath, StandardCopyOption.ATOMIC_MOVE);
+            return idxPath;
+        } finally {
+            Files.deleteIfExists(tmpPack);
+            deflater.end();
+        }
+    }
+
+    private Slot writeEntry(DataOutputStream out, long offset, byte[] data, Deque<Slot> window) throws IOException {
+        Slot base = null;
+        byte[] bestDelta = null;
+        for (Slot candidate : window) {
+            //大小相差太多的对象几乎不可能有好的增量
+            if (candidate.depth >= MAX_DEPTH || candidate.data.length < data.length / 4
+                    || data.length < candidate.data.length / 4)
+                continue;
+            byte[] delta = Delta.create(candidate.data, data);
+            if (delta.length < data.length / 2 && (bestDelta == null || delta.length < bestDelta.length)) {
+                bestDelta = delta;
+                base = candidate;
+            }
+        }
+        byte[] compressed = deflate(bestDelta != null ? bestDelta : data);
+        out.writeByte(bestDelta != null ? PackFile.TYPE_DELTA : PackFile.TYPE_FULL);
+        VarInt.write((OutputStream) out, data.length);
+        if (bestDelta != null)
+            VarInt.write((OutputStream) out, offset - base.offset);
+        VarInt.write((OutputStream) out, compressed.length);
+        out.write(compressed);
+        return new Slot(data, offset, base == null ? 0 : base.depth + 1);
+    }
+
+    private byte[] deflate(byte[] data) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void sortById(byte[][] ids, long[] offsets) {
+        Integer[] order = new Integer[ids.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> PackIndex.compare(ids[a], ids[b]));
+        byte[][] sortedIds = new byte[ids.length][];
+        long[] sortedOffsets = new long[offsets.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedIds[i] = ids[order[i]];
+            sortedOffsets[i] = offsets[order[i]];
+        }
+        System.arraycopy(sortedIds, 0, ids, 0, ids.length);
+        System.arraycopy(sortedOffsets, 0, offsets, 0, offsets.length);
+    }
+}
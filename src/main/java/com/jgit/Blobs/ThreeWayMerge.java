@@ -0,0 +1,338 @@
+package com.jgit.Blobs;
+
+import com.jgit.Utility.MyersDiff;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 文件内容的按行三路合并
+ *
+ * 三个文件各读一遍，边读边算每一行的64位hash，内存里每行只留一个编号和结束位置，不保存行的内容；
+ * 内容相同的行编号相同，用MyersDiff分别求祖先到两边的修改。两边的修改按在祖先里的位置排序，
+ * 重叠或者相邻的修改归为一组：只有一边改过的组直接取那一边，两边改得一样的也直接取，其余的是冲突，
+ * 两边的内容都写出来，用冲突标记隔开。所有冲突都写进结果，不会遇到第一个就停止。
+ * 写结果时按行的位置从源文件整段复制（FileChannel.transferTo），几百MB的文件也不需要读进内存。
+ *
+ * 前8000个字节里有0的文件当作二进制文件，不按行合并
+ */
+public class ThreeWayMerge {
+
+    //二进制文件，没有写出任何内容
+    public static final int BINARY = -1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    //和git一样，只检查开头这么多字节
+    private static final int BINARY_CHECK_BYTES = 8000;
+
+    private ThreeWayMerge() { }
+
+    /**
+     * @param oursLabel 冲突标记里当前一边的名字
+     * @param theirsLabel 冲突标记里另一边的名字
+     * @param out 合并的结果，不会被关闭
+     * @return 冲突的个数；有一个是二进制文件时返回BINARY，什么都不写
+     */
+    public static int merge(Path base, Path ours, Path theirs, String oursLabel, String theirsLabel,
+                            OutputStream out) throws IOException {
+        LineInterner interner = new LineInterner();
+        try (Lines b = Lines.read(base, interner);
+             Lines o = Lines.read(ours, interner);
+             Lines t = Lines.read(theirs, interner)) {
+            if (b.binary || o.binary || t.binary)
+                return BINARY;
+            int[] baseIds = b.ids();
+            List<MyersDiff.Edit> oursEdits = MyersDiff.diff(baseIds, o.ids());
+            List<MyersDiff.Edit> theirsEdits = MyersDiff.diff(baseIds, t.ids());
+            Writer w = new Writer(Channels.newChannel(out));
+            int conflicts = 0, basePos = 0, i = 0, j = 0;
+            while (i < oursEdits.size() || j < theirsEdits.size()) {
+                //从位置最靠前的修改开始，把和当前组重叠或相邻的修改都并进来
+                boolean oursFirst = j == theirsEdits.size()
+                        || (i < oursEdits.size() && oursEdits.get(i).getBeginA() <= theirsEdits.get(j).getBeginA());
+                int lo = (oursFirst ? oursEdits.get(i) : theirsEdits.get(j)).getBeginA(), hi = lo;
+                int firstO = i, firstT = j;
+                while (true) {
+                    if (i < oursEdits.size() && oursEdits.get(i).getBeginA() <= hi) {
+                        hi = Math.max(hi, oursEdits.get(i++).getEndA());
+                    } else if (j < theirsEdits.size() && theirsEdits.get(j).getBeginA() <= hi) {
+                        hi = Math.max(hi, theirsEdits.get(j++).getEndA());
+                    } else {
+                        break;
+                    }
+                }
+                w.copy(b, basePos, lo);
+                basePos = hi;
+                if (firstT == j) {
+                    w.copy(o, oursEdits.get(firstO).getBeginB(), oursEdits.get(i - 1).getEndB());
+                } else if (firstO == i) {
+                    w.copy(t, theirsEdits.get(firstT).getBeginB(), theirsEdits.get(j - 1).getEndB());
+                } else {
+                    int oLo = lo + oursEdits.get(firstO).getBeginB() - oursEdits.get(firstO).getBeginA();
+                    int oHi = hi + oursEdits.get(i - 1).getEndB() - oursEdits.get(i - 1).getEndA();
+                    int tLo = lo + theirsEdits.get(firstT).getBeginB() - theirsEdits.get(firstT).getBeginA();
+                    int tHi = hi + theirsEdits.get(j - 1).getEndB() - theirsEdits.get(j - 1).getEndA();
+                    if (o.sameLines(oLo, oHi, t, tLo, tHi)) {
+                        w.copy(o, oLo, oHi);
+                    } else {
+                        conflicts++;
+                        w.marker("<<<<<<< " + oursLabel);
+                        w.copy(o, oLo, oHi);
+                        w.marker("=======");
+                        w.copy(t, tLo, tHi);
+                        w.marker(">>>>>>> " + theirsLabel);
+                    }
+                }
+            }
+            w.copy(b, basePos, b.count);
+            return conflicts;
+        }
+    }
+
+    /**
+     * 一个文件按行切分的结果：每行的编号和结束位置，内容留在文件里
+     */
+    private static class Lines implements AutoCloseable {
+        private final FileChannel channel;
+        //比较行的内容时直接读映射内存，文件太大映射不了时为null，改用按位置读取
+        private MappedByteBuffer map;
+        private int[] ids = new int[1024];
+        //第i行在文件中的结束位置（不含），包括行尾的\n
+        private long[] ends = new long[1024];
+        private int count;
+        //最后一行是否以\n结尾，空文件也算
+        private boolean terminated = true;
+        private boolean binary;
+
+        private Lines(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        static Lines read(Path file, LineInterner interner) throws IOException {
+            Lines lines = new Lines(FileChannel.open(file, StandardOpenOption.READ));
+            try {
+                long size = lines.channel.size();
+                if (size <= Integer.MAX_VALUE)
+                    lines.map = lines.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+                long pos = 0, lineStart = 0;
+                long hash = LineInterner.EMPTY;
+                boolean inLine = false;
+                while (lines.channel.read(buf) >= 0) {
+                    buf.flip();
+                    byte[] array = buf.array();
+                    for (int k = 0, n = buf.limit(); k < n; k++, pos++) {
+                        byte c = array[k];
+                        if (c == 0 && pos < BINARY_CHECK_BYTES)
+                            lines.binary = true;
+                        hash = LineInterner.update(hash, c);
+                        inLine = true;
+                        if (c == '\n') {
+                            lines.add(interner.intern(hash, lines, lineStart, pos + 1), pos + 1);
+                            lineStart = pos + 1;
+                            hash = LineInterner.EMPTY;
+                            inLine = false;
+                        }
+                    }
+                    buf.clear();
+                }
+                if (inLine) {
+                    lines.add(interner.intern(hash, lines, lineStart, pos), pos);
+                    lines.terminated = false;
+                }
+                return lines;
+            } catch (IOException | RuntimeException e) {
+                lines.close();
+                throw e;
+            }
+        }
+
+        private void add(int id, long end) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            ids[count] = id;
+            ends[count++] = end;
+        }
+
+        int[] ids() {
+            return Arrays.copyOf(ids, count);
+        }
+
+        long start(int line) {
+            return line == 0 ? 0 : ends[line - 1];
+        }
+
+        /**
+         * @return 文件中[start, start + length)的内容，映射过的文件不用复制
+         */
+        ByteBuffer slice(long start, int length) throws IOException {
+            if (map != null) {
+                ByteBuffer slice = map.duplicate();
+                slice.position((int) start);
+                slice.limit((int) start + length);
+                return slice;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            while (buf.hasRemaining() && channel.read(buf, start + buf.position()) >= 0)
+                ;
+            buf.flip();
+            return buf;
+        }
+
+        boolean sameLines(int from, int to, Lines other, int otherFrom, int otherTo) {
+            if (to - from != otherTo - otherFrom)
+                return false;
+            //行尾的\n也算在hash里，最后一行有没有\n不同时编号也不同
+            for (int k = 0; k < to - from; k++) {
+                if (ids[from + k] != other.ids[otherFrom + k])
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * 按行从源文件整段复制到结果
+     */
+    private static class Writer {
+        private final WritableByteChannel out;
+        //已经写出的内容是否以\n结尾，冲突标记必须从新的一行开始
+        private boolean atLineStart = true;
+
+        Writer(WritableByteChannel out) {
+            this.out = out;
+        }
+
+        void copy(Lines lines, int from, int to) throws IOException {
+            if (from >= to)
+                return;
+            long pos = lines.start(from), end = lines.ends[to - 1];
+            while (pos < end)
+                pos += lines.channel.transferTo(pos, end - pos, out);
+            atLineStart = to < lines.count || lines.terminated;
+        }
+
+        void marker(String text) throws IOException {
+            String line = (atLineStart ? "" : "\n") + text + "\n";
+            ByteBuffer buf = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining())
+                out.write(buf);
+            atLineStart = true;
+        }
+    }
+
+    /**
+     * 行的64位hash到编号的开放寻址表，三个文件共用，内容相同的行得到同一个编号
+     *
+     * 每个编号记下第一次出现的位置；hash相同时再到文件里比较两行的内容，
+     * 撞上hash的不同行分到不同的编号，所以同一个hash可能占好几个槽
+     */
+    private static class LineInterner {
+        //FNV-1a的初始值和乘数
+        static final long EMPTY = 0xcbf29ce484222325L;
+        private static final long PRIME = 0x100000001b3L;
+
+        private long[] keys = new long[1 << 12];
+        private int[] values = new int[1 << 12];
+        private boolean[] used = new boolean[1 << 12];
+        private int size;
+        //编号 -> 第一次出现的文件、起始位置和长度（包括行尾的\n）
+        private Lines[] owners = new Lines[1 << 11];
+        private long[] starts = new long[1 << 11];
+        private long[] lengths = new long[1 << 11];
+
+        static long update(long hash, byte c) {
+            return (hash ^ (c & 0xFF)) * PRIME;
+        }
+
+        /**
+         * @param start 行在lines所在文件中的起始位置
+         * @param end 行的结束位置（不含）
+         */
+        int intern(long hash, Lines lines, long start, long end) throws IOException {
+            if (size * 2 >= keys.length)
+                grow();
+            int mask = keys.length - 1;
+            int slot = slotOf(hash, mask);
+            for (; used[slot]; slot = (slot + 1) & mask) {
+                if (keys[slot] == hash && sameLine(values[slot], lines, start, end - start))
+                    return values[slot];
+            }
+            if (size == owners.length) {
+                owners = Arrays.copyOf(owners, size * 2);
+                starts = Arrays.copyOf(starts, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            owners[size] = lines;
+            starts[size] = start;
+            lengths[size] = end - start;
+            used[slot] = true;
+            keys[slot] = hash;
+            values[slot] = size;
+            return size++;
+        }
+
+        /**
+         * 超过2GB的行不比较，直接当作不同的行，最多多报冲突，不会合并错
+         */
+        private boolean sameLine(int id, Lines lines, long start, long length) throws IOException {
+            if (lengths[id] != length || length > Integer.MAX_VALUE)
+                return false;
+            Lines owner = owners[id];
+            if (owner.map == null || lines.map == null)
+                return owner.slice(starts[id], (int) length).equals(lines.slice(start, (int) length));
+            //两边都映射过时直接按8个字节一组比较，不创建新的ByteBuffer
+            int a = (int) starts[id], b = (int) start, n = (int) length, k = 0;
+            for (; k + 8 <= n; k += 8) {
+                if (owner.map.getLong(a + k) != lines.map.getLong(b + k))
+                    return false;
+            }
+            for (; k < n; k++) {
+                if (owner.map.get(a + k) != lines.map.get(b + k))
+                    return false;
+            }
+            return true;
+        }
+
+        private static int slotOf(long hash, int mask) {
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int k = 0; k < oldKeys.length; k++) {
+                if (oldUsed[k]) {
+                    int slot = slotOf(oldKeys[k], mask);
+                    while (used[slot])
+                        slot = (slot + 1) & mask;
+                    used[slot] = true;
+                    keys[slot] = oldKeys[k];
+                    values[slot] = oldValues[k];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.jgit.Commits;
+
+import com.jgit.Utility.BloomFilter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 每个commit相对于第一双亲变化过的路径的Bloom过滤器，保存在.git/commit-bloom
+ *
+ * 过滤器里放了变化过的文件和它们所在的各层文件夹，按路径查历史时，过滤器说不包含的commit一定没有改过这个路径，
+ * 连commit本身都不用读取。过滤器在提交时算好追加到文件末尾；变化的路径太多时不建过滤器，这个commit总要实际比较。
+ * 文件格式：魔数、版本号，然后每个commit一条记录：commitStr、过滤器字节数（没有过滤器为-1）、过滤器
+ */
+public class ChangedPathFilters {
+
+    private static final int MAGIC = 0x4a43424c; // "JCBL"
+    private static final int VERSION = 1;
+    private static final int NO_FILTER = -1;
+    //变化的路径超过这个数就不建过滤器，过滤器太大反而不如直接比较
+    private static final int MAX_CHANGED_PATHS = 512;
+    //读取时用来判断记录是否损坏，正常的过滤器远小于这个值
+    private static final int MAX_FILTER_BYTES = 64 * 1024;
+
+    private final Path path;
+    //commitStr -> 过滤器，没有过滤器的commit对应null
+    private final Map<String, BloomFilter> filters = new HashMap<>();
+
+    private ChangedPathFilters(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * 读取过滤器文件，文件不存在时返回空的对象。
+     * 文件损坏时删掉它，过滤器之后在按路径查历史时重新计算，见LogWalk
+     */
+    public static ChangedPathFilters load(Path path) {
+        ChangedPathFilters filters = new ChangedPathFilters(path);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("not a supported commit-bloom file");
+            while (true) {
+                String id;
+                try {
+                    id = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                int n = in.readInt();
+                if (n == NO_FILTER) {
+                    filters.filters.put(id, null);
+                } else if (n <= 0 || n > MAX_FILTER_BYTES) {
+                    throw new IOException("bad commit-bloom record: " + id);
+                } else {
+                    byte[] bits = new byte[n];
+                    in.readFully(bits);
+                    filters.filters.put(id, BloomFilter.fromBytes(bits));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return filters;
+        } catch (IOException e) {
+            filters.filters.clear();
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) { }
+        }
+        return filters;
+    }
+
+    /**
+     * @return 这个commit是否已经算过过滤器（包括变化太多而没有建过滤器的情况）
+     */
+    public boolean contains(String commitStr) {
+        return filters.containsKey(commitStr);
+    }
+
+    /**
+     * @return 这个commit一定没有改过path时返回true；没有过滤器时返回false
+     */
+    public boolean definitelyUnchanged(String commitStr, String path) {
+        BloomFilter filter = filters.get(commitStr);
+        return filter != null && !filter.mightContain(path);
+    }
+
+    /**
+     * 计算commit相对于第一双亲的过滤器，加入当前对象并追加到文件
+     * @param parentTree 第一双亲的根树hash，根commit为null
+     */
+    public void add(String commitStr, String parentTree, String tree) throws IOException {
+        if (contains(commitStr))
+            return;
+        BloomFilter filter = compute(parentTree, tree);
+        filters.put(commitStr, filter);
+        append(path, commitStr, filter);
+    }
+
+    /**
+     * 只把一条记录追加到文件，不需要先读取整个文件，提交时用
+     * @param filter compute的结果，可以为null
+     */
+    public static void append(Path path, String commitStr, BloomFilter filter) throws IOException {
+        boolean exists = Files.exists(path);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+            if (!exists) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            writeRecord(out, commitStr, filter);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, String commitStr, BloomFilter filter) throws IOException {
+        out.writeUTF(commitStr);
+        if (filter == null) {
+            out.writeInt(NO_FILTER);
+        } else {
+            byte[] bits = filter.toBytes();
+            out.writeInt(bits.length);
+            out.write(bits);
+        }
+    }
+
+    /**
+     * 重写文件，只保留live里的commit的记录，gc删掉commit之后调用
+     */
+    public void retain(Set<String> live) throws IOException {
+        filters.keySet().retainAll(live);
+        if (!Files.exists(path))
+            return;
+        Path tmp = Files.createTempFile(path.getParent(), "tmp-", null);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, BloomFilter> entry : filters.entrySet())
+                writeRecord(out, entry.getKey(), entry.getValue());
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return 变化过的文件和它们所在的各层文件夹的过滤器，变化太多时返回null
+     */
+    static BloomFilter compute(String parentTree, String tree) {
+        Set<String> paths = new LinkedHashSet<>();
+        for (TreeDiff.Change change : TreeDiff.diff(parentTree, tree)) {
+            String p = change.getPath();
+            for (int slash = p.indexOf(Tree.SEPARATOR); slash >= 0; slash = p.indexOf(Tree.SEPARATOR, slash + 1))
+                paths.add(p.substring(0, slash));
+            paths.add(p);
+            if (paths.size() > MAX_CHANGED_PATHS)
+                return null;
+        }
+        return BloomFilter.of(paths);
+    }
+}
@@ -2,9 +2,27 @@ package com.jgit.Commits;
 
 
 
+import com.jgit.Utility.BinaryReader;
+import com.jgit.Utility.BinaryWriter;
+import com.jgit.Utility.Hasher;
 import com.jgit.Utility.Utils;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.*;
 
@@ -14,69 +32,285 @@ import java.util.*;
 
 public class Commit implements Serializable {
 
+    private static final long serialVersionUID = -6054945747556075008L;
+
+    //二进制格式的魔数"JCMT"和版本号，见BinaryWriter
+    static final int MAGIC = 0x4a434d54;
+    //版本2起按内容寻址的commit不保存SHA-1，读取时根据内容重新计算，见computeId；版本3起双亲写成20字节hash，见writeId
+    static final int VERSION = 3;
+    private static final int LEGACY_ID = 0, CONTENT_ID = 1;
+    //writeId写入的标记字节：null、根commit的双亲"null"、完整的hash、老版本的短commitStr
+    private static final int REF_NULL = 0, REF_ROOT = 1, REF_HASH = 2, REF_STRING = 3;
+
+    //计算id时只需要摘要，写进去的字节直接丢掉
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) { }
+
+        @Override
+        public void write(byte[] b, int off, int len) { }
+    };
+
     //the commitStr of parent commit.
+    //老版本的commitStr只有hash的后六位，读取commitChain时统一转换成完整的hash，见CommitChain.relink
     private String parent;
     //第二个双亲结点的commitStr，主要在merge时起作用
     private String secondParent;
-    //holds the commitStrs of son commits.
-    private List<String> sons = new LinkedList<>();
-
     private ZonedDateTime timestamp;
     private String log;
     private String SHA1;
     private String author;
-    //holds the hash values of commited files.
+    //hash of the root tree object, which holds the hash values of commited files.
     //files can be retrieved using hash value through the Gitlet.Gitlet.Blobs.BlobPool object.
-    //filename -> sha-1 of file
+    private String tree;
+    //老版本的commit直接保存了filename -> sha-1 of file的完整映射，第一次用到时转换成树对象
     private Map<String, String> files;
+    //展开后的文件映射，只在需要完整文件列表时才展开
+    private transient Map<String, String> flatFiles;
+    //SHA-1是否由内容计算得到；老版本的SHA-1只是提交时间的hash，和内容无关
+    private transient boolean contentAddressed;
 
-    Commit(ZonedDateTime timestamp, String log, Map<String, String> commitFiles,
+    Commit(ZonedDateTime timestamp, String log, String tree,
                     String SHA1, String author, String parent) {
         this.timestamp = timestamp;
         this.log = log;
         this.SHA1 = SHA1;
         this.author = author;
 
-        this.files = commitFiles;
+        this.tree = tree;
         this.parent = parent;
     }
 
-    Commit(ZonedDateTime timestamp, String log, Map<String, String> commitFiles,
+    Commit(ZonedDateTime timestamp, String log, String tree,
                   String SHA1, String author, String parent, String secondParent) {
-        this(timestamp, log, commitFiles, SHA1, author, parent);
+        this(timestamp, log, tree, SHA1, author, parent);
         this.secondParent = secondParent;
     }
 
-    public Set<Map.Entry<String, String>> getFileEntries() { return files.entrySet(); }
+    /**
+     * 新建一个commit，id由内容计算，见computeId
+     * @param parent 第一双亲的commitStr，根commit为"null"
+     * @param secondParent 第二双亲的commitStr，没有时为null
+     */
+    static Commit create(ZonedDateTime timestamp, String log, String tree,
+                         String author, String parent, String secondParent) {
+        Commit commit = new Commit(timestamp, log, tree,
+                computeId(tree, parent, secondParent, author, timestamp, log), author, parent, secondParent);
+        commit.contentAddressed = true;
+        return commit;
+    }
+
+    /**
+     * 按规范编码计算commit的id
+     *
+     * 规范编码和git的commit对象类似：tree 根树hash、每个双亲一行parent hash、
+     * author 作者 秒.纳秒 时区、一个空行，最后是log，都是UTF-8，每行以'\n'结尾（log除外）。
+     * 各部分依次流式写进摘要，不拼出完整的字符串。同样的内容总是得到同样的id，
+     * 同一时刻提交的不同内容也不会撞在一起
+     */
+    static String computeId(String tree, String parent, String secondParent,
+                            String author, ZonedDateTime timestamp, String log) {
+        try {
+            MessageDigest md = Hasher.digest("SHA-1");
+            try (Writer out = new OutputStreamWriter(new DigestOutputStream(DISCARD, md), StandardCharsets.UTF_8)) {
+                out.write("tree ");
+                out.write(tree);
+                out.write('\n');
+                for (String p : new String[]{parent, secondParent}) {
+                    if (p == null || p.equals("null"))
+                        continue;
+                    out.write("parent ");
+                    out.write(p);
+                    out.write('\n');
+                }
+                out.write("author ");
+                out.write(author == null ? "" : author);
+                out.write(' ');
+                out.write(Long.toString(timestamp.toEpochSecond()));
+                out.write('.');
+                out.write(Integer.toString(timestamp.getNano()));
+                out.write(' ');
+                out.write(timestamp.getZone().getId());
+                out.write("\n\n");
+                out.write(log);
+            }
+            return Utils.toHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            //DISCARD不会抛出异常
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 老版本的hash丢掉了前导0，反序列化时补齐，保证和现在计算出的定长hash一致
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        SHA1 = Utils.padHash(SHA1);
+        if (files != null)
+            files.replaceAll((name, hash) -> Utils.padHash(hash));
+    }
+
+    /**
+     * 二进制格式：两个双亲的commitStr（见writeId）、时间戳（秒、纳秒、时区）、log、id的来源、作者、20字节根树hash。
+     * id由内容计算时不保存，否则在id的来源后面保存20字节SHA-1；版本1总是保存SHA-1，没有id的来源；
+     * 版本3之前双亲写在字符串表里
+     */
+    void encode(BinaryWriter out) {
+        writeId(out, parent);
+        writeId(out, secondParent);
+        out.writeSignedVarLong(timestamp.toEpochSecond());
+        out.writeVarInt(timestamp.getNano());
+        out.writeString(timestamp.getZone().getId());
+        out.writeString(log);
+        out.writeByte(contentAddressed ? CONTENT_ID : LEGACY_ID);
+        if (!contentAddressed)
+            out.writeHash(SHA1);
+        out.writeString(author);
+        out.writeHash(getTree());
+    }
+
+    static Commit decode(BinaryReader in) throws IOException {
+        boolean hashes = in.getVersion() >= 3;
+        String parent = hashes ? readId(in) : in.readString(), secondParent = hashes ? readId(in) : in.readString();
+        long seconds = in.readSignedVarLong();
+        int nanos = in.readInt();
+        ZonedDateTime timestamp;
+        try {
+            timestamp = ZonedDateTime.ofInstant(Instant.ofEpochSecond(seconds, nanos), ZoneId.of(in.readString()));
+        } catch (DateTimeException | NullPointerException e) {
+            throw new IOException("bad timestamp", e);
+        }
+        String log = in.readString();
+        boolean contentAddressed = in.getVersion() >= 2 && in.readByte() == CONTENT_ID;
+        String SHA1 = contentAddressed ? null : in.readHash();
+        String author = in.readString(), tree = in.readHash();
+        if (contentAddressed)
+            return create(timestamp, log, tree, author, parent, secondParent);
+        return new Commit(timestamp, log, tree, SHA1, author, parent, secondParent);
+    }
+
+    /**
+     * 写入一个commitStr：标记字节，完整的hash后面跟20字节，老版本的短commitStr后面跟字符串表的下标，
+     * null和根commit的双亲"null"只有标记字节。commitChain里分支指向的commitStr也这样写
+     */
+    static void writeId(BinaryWriter out, String commitStr) {
+        if (commitStr == null) {
+            out.writeByte(REF_NULL);
+        } else if (commitStr.equals("null")) {
+            out.writeByte(REF_ROOT);
+        } else if (CommitStore.isFullId(commitStr)) {
+            out.writeByte(REF_HASH);
+            out.writeHash(commitStr);
+        } else {
+            out.writeByte(REF_STRING);
+            out.writeString(commitStr);
+        }
+    }
+
+    static String readId(BinaryReader in) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case REF_NULL:
+                return null;
+            case REF_ROOT:
+                return "null";
+            case REF_HASH:
+                return in.readHash();
+            case REF_STRING:
+                return in.readString();
+            default:
+                throw new IOException("bad commit reference " + tag);
+        }
+    }
+
+    /**
+     * 换掉双亲的commitStr，其余内容不变，用于把老版本的短commitStr转换成完整的hash
+     */
+    Commit withParents(String parent, String secondParent) {
+        Commit commit = new Commit(timestamp, log, getTree(), SHA1, author, parent, secondParent);
+        commit.flatFiles = flatFiles;
+        commit.contentAddressed = contentAddressed;
+        return commit;
+    }
+
+    /**
+     * 本commit根树的hash
+     */
+    public String getTree() {
+        if (tree == null) {
+            tree = Tree.write(files);
+            files = null;
+        }
+        return tree;
+    }
 
-    public boolean containsFileName(String filename) { return files.containsKey(filename);}
+    /**
+     * 本commit的完整文件映射：filename -> sha-1 of file
+     */
+    public Map<String, String> getFiles() {
+        if (flatFiles == null)
+            flatFiles = Collections.unmodifiableMap(Tree.flatten(getTree()));
+        return flatFiles;
+    }
 
-    public Set<String> getFileNames() { return files.keySet(); }
+    public Set<Map.Entry<String, String>> getFileEntries() { return getFiles().entrySet(); }
 
-    public String getHashOfFile(String filename) { return files.get(filename); }
+    public boolean containsFileName(String filename) { return getHashOfFile(filename) != null;}
 
-    public Collection<String> getFileHashes() { return files.values(); }
+    public Set<String> getFileNames() { return getFiles().keySet(); }
+
+    public String getHashOfFile(String filename) {
+        return flatFiles != null ? flatFiles.get(filename) : Tree.lookup(getTree(), filename);
+    }
+
+    public Collection<String> getFileHashes() { return getFiles().values(); }
 
     public String getLog() {
         return log;
     }
 
+    public String getAuthor() {
+        return author;
+    }
+
+    public ZonedDateTime getTimestamp() {
+        return timestamp;
+    }
+
     public String getParentCommitStr() { return parent; }
 
-    public String getCommitStr() { return Utils.fromHash2DirName(SHA1); }
+    public String getSecondParentCommitStr() { return secondParent; }
 
-    List<String> getSons() { return sons; }
+    /**
+     * commit的id，即完整的40位SHA-1；用户输入的缩写见CommitChain.resolveCommitId
+     */
+    public String getCommitStr() { return SHA1; }
 
-    void addSonCommit(String commitStr) {
-        sons.add(commitStr);
+    /**
+     * 和toString的内容一样，但直接逐项写进out，打印大量commit时不用为每个commit拼出完整的字符串
+     */
+    public void printTo(PrintWriter out) {
+        out.print("Hash: ");
+        out.print(SHA1);
+        out.print('\n');
+        out.print("time: ");
+        out.print(timestamp);
+        out.print('\n');
+        out.print("log: ");
+        out.print(log);
+        out.print('\n');
+        out.print("Author: ");
+        out.print(author);
     }
 
     @Override
     public String toString() {
-        return "Hash: "+SHA1+"\n"+
-                "time: "+timestamp.toString()+"\n"+
-                "log: "+log+"\n"+
-                "Author: "+author;
+        StringWriter out = new StringWriter();
+        printTo(new PrintWriter(out));
+        return out.toString();
     }
 
     @Override
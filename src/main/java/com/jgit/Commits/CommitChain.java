@@ -2,73 +2,207 @@ package com.jgit.Commits;
 
 
 
+import com.jgit.Utility.BinaryReader;
+import com.jgit.Utility.BinaryWriter;
 import com.jgit.Utility.Exceptions.*;
+import com.jgit.Utility.ObjectId;
+import com.jgit.Utility.RoaringBitmap;
+import com.jgit.Utility.Utils;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.*;
 
 /**
  * commitChain的数据结构操作类
  *
- * commitChain是一个链表表示的K叉树
+ * commitChain是一个链表表示的K叉树。这里只保存分支和head，commit本身保存在CommitStore里，用到时才读取
  */
 
 public class CommitChain implements Serializable , Iterable<Commit>{
 
-    //commit pool: map a commitStr to a Gitlet.Commits.Commit Object
-    private Map<String, Commit> commits = new HashMap<>();
-    //branch pool: map a branch name to the commitStr of the Gitlet.Commits.Commit the branch point at.
+    private static final long serialVersionUID = 342033916358798999L;
+
+    //二进制格式的魔数"JCCH"和版本号，见BinaryWriter
+    private static final int MAGIC = 0x4a434348;
+    //版本2起分支指向的commitStr写成20字节hash，见Commit.writeId
+    private static final int VERSION = 2;
+    //前缀有歧义时最多列出这么多个候选commit
+    private static final int MAX_AMBIGUOUS_CANDIDATES = 10;
+
+    //老版本把所有commit都放在这里一起序列化，读取时转存到CommitStore，之后一直为null
+    private Map<String, Commit> commits;
+    //branch pool: map a branch name to the commitStr (full hash) of the Gitlet.Commits.Commit the branch point at.
     private Map<String, String> branches = new HashMap<>();
-    //the commit tree's root node.
+    //老版本保存的根commit，和commits一起转存
     private Commit chain;
     //head is the name of current working branch.
     private String head;
+    //commit图，记录双亲下标和世代号，单独保存在.git/commit-graph
+    private transient CommitGraph graph;
+    //log和作者的检索索引，单独保存在.git/commit-index，只在查询时读取
+    private transient CommitIndex index;
+    //各分支的可达位图，单独保存在.git/commit-bitmaps，第一次用到时读取
+    private transient ReachabilityBitmaps bitmaps;
+    //head或者分支指向变过，需要写回commitchain
+    private transient boolean dirty = true;
 
     /**
      * 从指定路径反序列化commitChain对象
      *
-     * 如果读不到，就实例化一个新的commitChain返回
+     * 如果读不到，就实例化一个新的commitChain返回。
+     * 老版本Repo的Java序列化格式也能读，读出来之后标记为修改过，下次写回时转换成二进制格式。
+     * 老版本以hash后六位作为commitStr，读取时一次性转换成完整的hash，见relink
      * @param ccPath 指定路径
      * @return 反序列化/新生成的commitChain对象的引用
      */
     public static CommitChain deSerialFrom(Path ccPath) {
+        CommitChain cc;
         try {
-            ObjectInputStream in = new ObjectInputStream(new FileInputStream(ccPath.toString()));
-            return (CommitChain) in.readObject();
+            ByteBuffer buf = BinaryReader.readFile(ccPath);
+            if (!BinaryReader.isJavaSerialized(buf)) {
+                cc = decode(new BinaryReader(buf, MAGIC, VERSION));
+            } else {
+                cc = (CommitChain) new ObjectInputStream(BinaryReader.asStream(buf)).readObject();
+                cc.migrateLegacyCommits();
+                cc.dirty = true;
+            }
         } catch (IOException | ClassNotFoundException e) {
             return new CommitChain();
         }
+        if (cc.hasShortIds())
+            cc.migrateShortIds(ccPath);
+        return cc;
+    }
+
+    /**
+     * 二进制格式：head，分支数，然后每个分支依次为分支名和指向的commitStr（见Commit.writeId，版本1写成字符串）
+     */
+    public void saveTo(Path path) throws IOException {
+        BinaryWriter out = new BinaryWriter(MAGIC, VERSION);
+        out.writeString(head);
+        out.writeVarInt(branches.size());
+        for (Map.Entry<String, String> e : branches.entrySet()) {
+            out.writeString(e.getKey());
+            Commit.writeId(out, e.getValue());
+        }
+        out.writeTo(path);
+    }
+
+    private static CommitChain decode(BinaryReader in) throws IOException {
+        CommitChain cc = new CommitChain();
+        cc.head = in.readString();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++)
+            cc.branches.put(in.readString(), in.getVersion() >= 2 ? Commit.readId(in) : in.readString());
+        cc.dirty = false;
+        return cc;
+    }
+
+    /**
+     * 把老版本一起序列化的commit逐个转存到CommitStore
+     *
+     * 转存到一半失败也没关系，commitChain文件还没有重写，下次读取时会重新转存
+     */
+    private void migrateLegacyCommits() {
+        if (commits == null)
+            return;
+        relink(commits);
+        commits = null;
+        chain = null;
+        dirty = true;
+    }
+
+    /**
+     * 分支是否还指向老版本的短commitStr
+     */
+    private boolean hasShortIds() {
+        for (String commitStr : branches.values()) {
+            if (!CommitStore.isFullId(commitStr))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * 把CommitStore里老版本以短commitStr为名的记录转换成以完整hash为名
+     *
+     * 先写回commitChain再删除老记录：中途失败时分支还指向短commitStr，下次读取会重新转换；
+     * 写回之后没删掉的老记录不会再被读到，见CommitStore.loadAll
+     */
+    private void migrateShortIds(Path ccPath) {
+        try {
+            Map<String, Commit> legacy = CommitStore.loadLegacy();
+            relink(legacy);
+            saveTo(ccPath);
+            dirty = false;
+            CommitStore.deleteLegacy(legacy.keySet());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 老版本的commitStr只有hash的后六位，不同commit可能撞在一起。
+     * 把这些commit连同它们指向双亲的commitStr都换成完整的hash重新保存，分支也改为指向完整的hash。
+     * commit图里还是短commitStr，和分支对不上，下次用到时会重新生成，见getGraph
+     * @param legacy 短commitStr -> Commit
+     */
+    private void relink(Map<String, Commit> legacy) {
+        Map<String, String> fullIds = new HashMap<>();
+        for (Map.Entry<String, Commit> e : legacy.entrySet())
+            fullIds.put(e.getKey(), e.getValue().getCommitStr());
+        for (Commit commit : legacy.values()) {
+            String parent = commit.getParentCommitStr(), secondParent = commit.getSecondParentCommitStr();
+            CommitStore.put(commit.withParents(fullIds.getOrDefault(parent, parent),
+                    secondParent == null ? null : fullIds.getOrDefault(secondParent, secondParent)));
+        }
+        branches.replaceAll((branch, commitStr) -> fullIds.getOrDefault(commitStr, commitStr));
+        dirty = true;
     }
 
     /**
      * 向commitChain的head指针后添加一个新的Commit对象，然后head指向这个新的对象
      * 同时当前branch也要指向这个新的对象
      *
-     * 处理了当前chain指向为空，即当前commitChain为空（刚初始化）的特殊情况
+     * 处理了当前还没有任何分支，即当前commitChain为空（刚初始化）的特殊情况。
+     * 上一次合并有冲突还没提交时（见mergeWithBranch），这次提交就是那次合并的提交，以要合并进来的commit为第二双亲。
+     * commit的id由内容计算，见Commit.computeId
      * @param timestamp 时间戳信息
      * @param log log信息
-     * @param commitFiles 本commit保存的目录名
-     * @param SHA1 sha-1字符串
+     * @param tree 本commit根树的hash，见Tree.write
      * @param author commit的作者
      */
-    public void newCommit(ZonedDateTime timestamp, String log, Map<String, String> commitFiles,
-                          String SHA1, String author) {
+    public void newCommit(ZonedDateTime timestamp, String log, String tree, String author) {
+        String[] merge = readPendingMerge();
+        if (merge != null) {
+            newMergeCommit(timestamp, log, tree, author, merge[0], merge[1]);
+            clearPendingMerge();
+            return;
+        }
         Commit commit;
-        if (chain == null) {
-            commit = new Commit(timestamp, log, commitFiles, SHA1, author, "null");
-            chain = commit;
+        if (branches.isEmpty()) {
+            commit = Commit.create(timestamp, log, tree, author, "null", null);
             head = "master";
         } else {
-            commit = new Commit(timestamp, log, commitFiles, SHA1, author, branches.get(head));
-            getHeadCommit().addSonCommit(commit.getCommitStr());
+            commit = Commit.create(timestamp, log, tree, author, branches.get(head), null);
         }
-        commits.put(commit.getCommitStr(), commit);
+        CommitStore.put(commit);
+        addToGraph(commit);
+        addToIndex(commit);
+        addToPathFilters(commit);
+        addToBitmaps(commit);
         branches.put(head, commit.getCommitStr());
+        dirty = true;
     }
 
     /**
@@ -96,19 +230,19 @@ public class CommitChain implements Serializable , Iterable<Commit>{
 
     /**
      * 使用commitStr获得对应的Commit对象
-     * @param commitStr 六位commitStr字符串
+     * @param commitStr 完整的commitStr，即40位hash
      * @return
      * @throws NoSuchCommitException 如果找不到对应Commit对象，抛出此异常
      */
     private Commit getCommit(String commitStr) throws NoSuchCommitException {
-        Commit temp = commits.get(commitStr);
+        Commit temp = CommitStore.get(commitStr);
         if (temp == null)
             throw new NoSuchCommitException();
         return temp;
     }
 
     public boolean isHead(Commit commit) {
-        return commit == getHeadCommit();
+        return commit.getCommitStr().equals(branches.get(head));
     }
 
     public String getCurBranchName() {
@@ -119,6 +253,7 @@ public class CommitChain implements Serializable , Iterable<Commit>{
         if (branches.containsKey(branch))
             throw new AlreadyExistBranchException();
         branches.put(branch, branches.get(head));
+        dirty = true;
     }
 
     /**
@@ -133,16 +268,38 @@ public class CommitChain implements Serializable , Iterable<Commit>{
         if (head.equals(branch))
             throw new DeleteCurrentBranchException();
         branches.remove(branch);
+        dirty = true;
+    }
+
+    /**
+     * 把用户输入的commit id解析成完整的commitStr
+     *
+     * 可以输入任意长度的前缀，用commit图上的有序前缀索引查找，不需要读取任何commit
+     * @param prefix 十六进制的完整hash或者前缀，不区分大小写
+     * @throws NoSuchCommitException 没有以prefix开头的commit
+     * @throws AmbiguousCommitException 以prefix开头的commit不止一个，异常里带着其中的前几个
+     */
+    public String resolveCommitId(String prefix) throws NoSuchCommitException, AmbiguousCommitException {
+        List<String> matches = getGraph().findByPrefix(prefix, MAX_AMBIGUOUS_CANDIDATES);
+        if (matches.isEmpty())
+            throw new NoSuchCommitException();
+        if (matches.size() > 1)
+            throw new AmbiguousCommitException(matches);
+        return matches.get(0);
     }
 
     /**
      * 将head指针指向commitStr对应的Commit对象
+     * @param commitStr 完整的commitStr，缩写先用resolveCommitId解析
      * @throws NoSuchCommitException
      */
     public void resetTo(String commitStr) throws NoSuchCommitException{
-        if (!commits.containsKey(commitStr))
+        if (!CommitStore.contains(commitStr))
             throw new NoSuchCommitException();
         branches.put(head, commitStr);
+        dirty = true;
+        //和git reset --hard一样，放弃还没提交的合并
+        clearPendingMerge();
     }
 
     /**
@@ -152,10 +309,50 @@ public class CommitChain implements Serializable , Iterable<Commit>{
         if (!branches.containsKey(branch))
             throw new NoSuchBranchException();
         head = branch;
+        dirty = true;
+    }
+    /**
+     * 读取之后是否被修改过，没有修改过就不需要写回磁盘
+     */
+    public boolean isDirty() {
+        return dirty;
     }
 
-    public Iterator<Map.Entry<String,Commit>> getAllCommitsIterator() {
-        return commits.entrySet().iterator();
+
+    /**
+     * 按创建顺序遍历所有commit，commit在遍历到时才读取
+     */
+    public Iterator<Commit> getAllCommitsIterator() {
+        Iterator<String> ids = getGraph().getIds().iterator();
+        return new Iterator<Commit>() {
+            @Override
+            public boolean hasNext() {
+                return ids.hasNext();
+            }
+
+            @Override
+            public Commit next() {
+                try {
+                    return getCommit(ids.next());
+                } catch (NoSuchCommitException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * 从head往回遍历历史，可以设置顺序、时间范围、条数和路径，见LogWalk
+     */
+    public LogWalk log() {
+        return new LogWalk(this, branches.get(head));
+    }
+
+    /**
+     * 遍历所有commit，可以设置顺序、时间范围和条数，见LogWalk
+     */
+    public LogWalk globalLog() {
+        return new LogWalk(this, null);
     }
 
     /**
@@ -196,35 +393,331 @@ public class CommitChain implements Serializable , Iterable<Commit>{
         }
     }
 
+    /**
+     * 求两个commit的最佳公共祖先
+     *
+     * 交叉合并的历史中可能有多个最佳公共祖先，这里取世代号最大的一个
+     */
     public Commit findLCACommitByCommitStr(String commitStrA, String commitStrB) throws NoSuchCommitException {
-        Commit a = getCommit(commitStrA), b = getCommit(commitStrB);
-        if (commitStrA.equals(commitStrB))
-            return a;
-        LCAHelper(chain, a, b);
-        return LCA;
+        List<Commit> bases = findMergeBases(commitStrA, commitStrB);
+        return bases.isEmpty() ? null : bases.get(0);
     }
 
-    private Commit LCA;
+    /**
+     * 求两个commit的所有最佳公共祖先，按世代号从大到小排序，见CommitGraph.mergeBases
+     */
+    public List<Commit> findMergeBases(String commitStrA, String commitStrB) throws NoSuchCommitException {
+        getCommit(commitStrA);
+        getCommit(commitStrB);
+        List<Commit> bases = new ArrayList<>();
+        for (String commitStr : getGraph().mergeBases(commitStrA, commitStrB))
+            bases.add(getCommit(commitStr));
+        return bases;
+    }
 
-    private int LCAHelper(Commit root, Commit a, Commit b) {
-        List<String> sons = root.getSons();
-        int point = 0;
-        if (root==a || root==b)
-            point++;
-        for (String son : sons) {
+    /**
+     * 获取commit图，第一次用到时从文件读取
+     *
+     * 文件不存在、已损坏或者缺少某个分支指向的commit（例如上次写入失败）时，读取所有commit重新生成，同时删掉可达位图。
+     * commit总是先于commit图写入，所以分支指向的commit都在图里，图里就有全部的commit
+     */
+    CommitGraph getGraph() {
+        if (graph == null) {
             try {
-                Commit temp = getCommit(son);
-                point += LCAHelper(temp, a, b);
-            } catch (NoSuchCommitException ignored) {}
+                graph = CommitGraph.load(Utils.getCommitGraphPath());
+            } catch (IOException e) {
+                graph = null;
+            }
+            if (graph == null || !graph.containsAll(branches.values()))
+                rebuildGraph();
+        }
+        return graph;
+    }
+
+    /**
+     * 根据CommitStore里的所有commit重新生成commit图
+     */
+    private void rebuildGraph() {
+        try {
+            //可达位图记录的是旧图的下标
+            Files.deleteIfExists(Utils.getCommitBitmapsPath());
+            bitmaps = null;
+            graph = CommitGraph.rebuild(Utils.getCommitGraphPath(), CommitStore.loadAll());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 把新commit加入commit图
+     *
+     * 双亲不在图里（图已经过期）或者追加失败时重新生成整个图，新commit已经存进CommitStore，
+     * 不能让它缺席：后面的可达位图要用到它在图里的下标
+     */
+    private void addToGraph(Commit commit) {
+        String parent = commit.getParentCommitStr(), secondParent = commit.getSecondParentCommitStr();
+        boolean root = parent.equals("null");
+        try {
+            CommitGraph graph = getGraph();
+            if ((root || graph.contains(parent)) && (secondParent == null || graph.contains(secondParent))) {
+                graph.append(commit.getCommitStr(), root ? null : parent, secondParent);
+                return;
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
         }
-        if (point == 2) {
-            LCA = root;
-            return 0;
+        rebuildGraph();
+    }
+
+    /**
+     * 获取可达位图，第一次用到时映射文件，旧记录太多时顺便压缩文件
+     */
+    private ReachabilityBitmaps getBitmaps() {
+        if (bitmaps == null) {
+            bitmaps = ReachabilityBitmaps.load(Utils.getCommitBitmapsPath());
+            try {
+                bitmaps.compact(getGraph(), new HashSet<>(branches.values()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
-        return point;
+        return bitmaps;
+    }
+
+    /**
+     * 从commit出发可达的所有commit的位图，元素是commit图的下标
+     */
+    RoaringBitmap reachableFrom(String commitStr) {
+        return getBitmaps().get(getGraph(), commitStr);
     }
 
-    public void mergeWithBranch(ZonedDateTime timestamp, String hash, String author, String branch) throws NoSuchBranchException, ReverseMergeException, MergeException {
+    /**
+     * 从任意一个分支出发可达的所有commit的位图
+     */
+    RoaringBitmap reachableFromBranches() {
+        RoaringBitmap reachable = new RoaringBitmap();
+        for (String commitStr : new HashSet<>(branches.values()))
+            reachable = reachable.or(reachableFrom(commitStr));
+        return reachable;
+    }
+
+    /**
+     * @return 从某个分支出发能否走到这个commit
+     */
+    public boolean isReachable(String commitStr) {
+        return getGraph().contains(commitStr) && reachableFromBranches().contains(getGraph().getPosition(commitStr));
+    }
+
+    /**
+     * 比较两个分支
+     * @return 两个元素：branchA有而branchB没有的commit数，branchB有而branchA没有的commit数
+     */
+    public int[] aheadBehind(String branchA, String branchB) throws NoSuchBranchException {
+        String commitStrA = branches.get(branchA), commitStrB = branches.get(branchB);
+        if (commitStrA == null || commitStrB == null)
+            throw new NoSuchBranchException();
+        RoaringBitmap a = reachableFrom(commitStrA), b = reachableFrom(commitStrB);
+        return new int[]{a.andNotCardinality(b), b.andNotCardinality(a)};
+    }
+
+    /**
+     * @return 已经合并进branch的分支（包括branch自己），即指向的commit从branch可达，按名称排序
+     */
+    public List<String> getMergedBranches(String branch) throws NoSuchBranchException {
+        if (!branches.containsKey(branch))
+            throw new NoSuchBranchException();
+        RoaringBitmap reachable = reachableFrom(branches.get(branch));
+        List<String> merged = new ArrayList<>();
+        for (Map.Entry<String, String> entry : branches.entrySet()) {
+            if (reachable.contains(getGraph().getPosition(entry.getValue())))
+                merged.add(entry.getKey());
+        }
+        Collections.sort(merged);
+        return merged;
+    }
+
+    /**
+     * @return 所有分支的名称，按名称排序
+     */
+    public List<String> getBranchNames() {
+        List<String> names = new ArrayList<>(branches.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * gc：删掉从任何分支都走不到的commit和只有它们用到的树对象
+     *
+     * 还没提交的合并记在MERGE_HEAD里的第二双亲也算根：它所在的分支可能已经被删掉，
+     * 合并提交时还要用到它
+     *
+     * 标记阶段只访问存活的对象：存活的commit直接由各分支的可达位图求并得到，不用遍历历史；
+     * 树从存活commit的根树往下走，已经走过的树（包括没有变化、在commit之间共享的子树）不再重复展开。
+     * 走不到的commit在expire之后才写入的（例如刚被reset掉的）也保留，连同它的祖先一起，以免误删还想找回的commit。
+     * 删完之后重新生成commit图和可达位图，检索索引在下次查询时重新生成，changed-path过滤器只保留存活commit的记录
+     * @param expire 保留期的起点，在它之后写入的commit和树对象都不删
+     * @param liveBlobs 存活commit用到的所有文件hash都会放进来，用于之后清理快照池
+     * @return 两个元素：删除的commit数，删除的树对象数
+     */
+    public int[] prune(Instant expire, Set<ObjectId> liveBlobs) throws IOException {
+        CommitGraph graph = getGraph();
+        RoaringBitmap live = reachableFromBranches();
+        String[] merge = readPendingMerge();
+        if (merge != null)
+            live = live.or(reachableFrom(merge[0]));
+        RoaringBitmap all = new RoaringBitmap();
+        for (int i = 0; i < graph.size(); i++)
+            all.add(i);
+        List<String> unreachable = new ArrayList<>();
+        all.andNot(live).forEach(i -> unreachable.add(graph.getId(i)));
+        for (String commitStr : unreachable) {
+            try {
+                if (!CommitStore.lastModified(commitStr).isBefore(expire))
+                    live = live.or(reachableFrom(commitStr));
+            } catch (NoSuchFileException e) {
+                //文件已经不在了，从commit图里去掉就行
+            }
+        }
+
+        Set<String> liveIds = new HashSet<>(), liveTrees = new HashSet<>();
+        Deque<String> trees = new ArrayDeque<>();
+        live.forEach(i -> liveIds.add(graph.getId(i)));
+        for (String commitStr : liveIds) {
+            String tree = treeOf(commitStr);
+            if (tree != null && liveTrees.add(tree))
+                trees.push(tree);
+        }
+        while (!trees.isEmpty()) {
+            for (Tree.Entry entry : TreeStore.get(trees.pop()).getEntries()) {
+                if (!entry.isTree())
+                    liveBlobs.add(ObjectId.fromString(entry.getHash()));
+                else if (liveTrees.add(entry.getHash()))
+                    trees.push(entry.getHash());
+            }
+        }
+
+        int removedCommits = 0;
+        for (String commitStr : graph.getIds()) {
+            if (!liveIds.contains(commitStr)) {
+                CommitStore.delete(commitStr);
+                removedCommits++;
+            }
+        }
+        int removedTrees = TreeStore.prune(liveTrees, expire);
+        if (removedCommits > 0) {
+            //commit图、可达位图和检索索引都按下标记录，删掉commit之后重新生成
+            Files.deleteIfExists(Utils.getCommitGraphPath());
+            Files.deleteIfExists(Utils.getCommitIndexPath());
+            this.graph = null;
+            index = null;
+            getGraph();
+            reachableFromBranches();
+            ChangedPathFilters.load(Utils.getCommitBloomPath()).retain(liveIds);
+        }
+        return new int[]{removedCommits, removedTrees};
+    }
+
+    /**
+     * 新commit的可达位图就是双亲的位图加上它自己，提交时算好，之后比较分支时不用再往回走
+     */
+    private void addToBitmaps(Commit commit) {
+        reachableFrom(commit.getCommitStr());
+    }
+
+    /**
+     * 获取检索索引，第一次用到时映射文件，追加的记录太多时顺便重写文件
+     *
+     * 文件不存在、已损坏或者commit数和commit图对不上（例如追加记录失败）时，读取所有commit重新生成。
+     * 两边的commit数分别在索引的文件头和commit图每一层的头部，比较时不需要解析任何记录
+     */
+    CommitIndex getIndex() {
+        if (index == null) {
+            try {
+                index = CommitIndex.load(Utils.getCommitIndexPath());
+            } catch (IOException e) {
+                index = null;
+            }
+            try {
+                if (index == null || index.size() != getGraph().size())
+                    index = CommitIndex.rebuild(Utils.getCommitIndexPath(), getAllCommitsIterator());
+                else
+                    index.compact();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 把新commit追加到检索索引，不需要读取整个索引；写入失败时下次查询会发现数量对不上而重新生成
+     */
+    private void addToIndex(Commit commit) {
+        try {
+            CommitIndex.append(Utils.getCommitIndexPath(), commit);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (index != null)
+            index.add(commit);
+    }
+
+    /**
+     * 计算新commit相对于第一双亲变化过的路径的过滤器，追加到.git/commit-bloom，见ChangedPathFilters
+     */
+    private void addToPathFilters(Commit commit) {
+        try {
+            String parentTree = treeOf(commit.getParentCommitStr());
+            ChangedPathFilters.append(Utils.getCommitBloomPath(), commit.getCommitStr(),
+                    ChangedPathFilters.compute(parentTree, commit.getTree()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return commit的根树hash，commitStr为null或者"null"（根commit的双亲）时返回null
+     */
+    private String treeOf(String commitStr) {
+        if (commitStr == null || commitStr.equals("null"))
+            return null;
+        try {
+            return getCommit(commitStr).getTree();
+        } catch (NoSuchCommitException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 用检索索引查找commit，条件之间是"并且"的关系，见CommitIndex.search
+     * @return 命中的commit，按提交时间从新到旧排序
+     */
+    public List<Commit> findCommits(Collection<String> words, Collection<String> prefixes, String author) {
+        List<Commit> found = new ArrayList<>();
+        for (String commitStr : getIndex().search(words, prefixes, author)) {
+            try {
+                found.add(getCommit(commitStr));
+            } catch (NoSuchCommitException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 查找log和message完全相同的commit：先用索引找出包含其中所有词的commit，只读取这些commit比较；
+     * message里分不出词时只能逐个比较
+     */
+    public List<Commit> findCommitsByMessage(String message) {
+        List<String> words = CommitIndex.tokenize(message).isEmpty()
+                ? Collections.emptyList() : Collections.singletonList(message);
+        List<Commit> found = findCommits(words, Collections.emptyList(), null);
+        found.removeIf(commit -> !commit.getLog().equals(message));
+        return found;
+    }
+
+    public void mergeWithBranch(ZonedDateTime timestamp, String author, String branch, FileMerger merger)
+            throws NoSuchBranchException, ReverseMergeException, MergeException, IOException {
         //不存在要合并的branch，异常
         if (!branches.containsKey(branch))
             throw new NoSuchBranchException();
@@ -232,14 +725,15 @@ public class CommitChain implements Serializable , Iterable<Commit>{
         Commit lca = findLCACommitByBranch(head, branch);
         Commit cur = getHeadCommit();
         Commit object = getCommitByBranch(branch);
-        if (cur == object)
+        if (cur.getCommitStr().equals(object.getCommitStr()))
             return;
         //如果目标分支是当前分支的祖先，合并失败
-        if (lca == object)
+        if (lca.getCommitStr().equals(object.getCommitStr()))
             throw new ReverseMergeException();
         //如果当前分支是目标分支的祖先，快进调整当前branch指针即可
-        if (lca == cur) {
+        if (lca.getCommitStr().equals(cur.getCommitStr())) {
             branches.put(head, branches.get(branch));
+            dirty = true;
             return;
         }
         //其余情况就是分叉了，目标分支和当前分支不在一条线上
@@ -248,59 +742,76 @@ public class CommitChain implements Serializable , Iterable<Commit>{
         2. 祖先和obj一样，但是head不一样的，按照head来
         3. Obj和head一样，但是和祖先不一样的，按照obj来（不动）
         4. Obj和head都无，但是祖先有的文件，删掉
-        5. Obj，head，祖先都有的文件（名），但是版本都不一样，冲突，不动并报错
+        5. 一边删掉了，另一边改过，保留改过的版本
+        6. Obj，head，祖先都有的文件（名），但是版本都不一样，交给merger按行合并，两边改的是同一处时冲突
         操你妈，傻逼逻辑，写死我了
          */
-        Set<String> lcaFileNames = lca.getFileNames(), curFileNames = cur.getFileNames(), objFileNames = object.getFileNames();
-        Map<String, String> mergeResultFiles = new HashMap<>();
-        for(String filename : lcaFileNames) {
-            if (cur.containsFileName(filename) && object.containsFileName(filename)) {
-                String curHash = cur.getHashOfFile(filename),
-                        lcaHash = lca.getHashOfFile(filename),
-                        objHash = object.getHashOfFile(filename);
-                if (curHash.equals(lcaHash) && objHash.equals(lcaHash))
-                    mergeResultFiles.put(filename, lcaHash);
-                else if (curHash.equals(lcaHash) && !objHash.equals(lcaHash))
-                    mergeResultFiles.put(filename, objHash);
-                else if (!curHash.equals(lcaHash) && objHash.equals(lcaHash))
-                    mergeResultFiles.put(filename, curHash);
-                else
-                    throw new MergeException(filename);
-            } else if (cur.containsFileName(filename) && !object.containsFileName(filename))
-                mergeResultFiles.put(filename, cur.getHashOfFile(filename));
-            else if (!cur.containsFileName(filename) && object.containsFileName(filename))
-                mergeResultFiles.put(filename, object.getHashOfFile(filename));
+        //三棵树一起逐层归并一遍，两边都改过的文件并行按内容合并，见TreeMerge
+        TreeMerge.Result result = new TreeMerge(merger).run(lca.getTree(), cur.getTree(), object.getTree());
+        //所有文件都合并完再报告冲突，不提交，冲突标记留给用户处理；记下第二双亲，用户改好之后的提交就是合并提交
+        if (!result.getConflicts().isEmpty()) {
+            savePendingMerge(object.getCommitStr(), branch);
+            throw new MergeException(result.getConflicts(), result.getTree());
         }
+        newMergeCommit(timestamp, "merged by "+head+" and "+branch, result.getTree(), author,
+                object.getCommitStr(), branch);
+    }
 
-        for(String filename : curFileNames) {
-            if (!lcaFileNames.contains(filename)) {
-                if (!objFileNames.contains(filename) || object.getHashOfFile(filename).equals(cur.getHashOfFile(filename)))
-                    mergeResultFiles.put(filename, cur.getHashOfFile(filename));
-                else
-                    throw new MergeException(filename);
-            }
-        }
+    /**
+     * @param secondParent 要合并进来的commit
+     * @param objectBranch 要合并进来的分支，还指向secondParent时也改为指向合并提交
+     */
+    private void newMergeCommit(ZonedDateTime timestamp, String log, String tree,
+                           String author, String secondParent, String objectBranch) {
+        Commit commit = Commit.create(timestamp, log, tree, author, branches.get(head), secondParent);
+        CommitStore.put(commit);
+        addToGraph(commit);
+        addToIndex(commit);
+        addToPathFilters(commit);
+        addToBitmaps(commit);
+        branches.put(head, commit.getCommitStr());
+        if (secondParent.equals(branches.get(objectBranch)))
+            branches.put(objectBranch, commit.getCommitStr());
+        dirty = true;
+    }
 
-        for(String filename : objFileNames) {
-            if (!lcaFileNames.contains(filename)) {
-                if (!curFileNames.contains(filename) || cur.getHashOfFile(filename).equals(object.getHashOfFile(filename)))
-                    mergeResultFiles.put(filename, object.getHashOfFile(filename));
-                else
-                    throw new MergeException(filename);
-            }
+    /**
+     * 是否有一次合并因为冲突还没提交
+     */
+    public boolean isMerging() {
+        return readPendingMerge() != null;
+    }
+
+    /**
+     * 把有冲突的合并的第二双亲和分支名写进.git/MERGE_HEAD，各占一行
+     */
+    private static void savePendingMerge(String commitStr, String branch) throws IOException {
+        byte[] data = (commitStr + "\n" + branch + "\n").getBytes(StandardCharsets.UTF_8);
+        Utils.writeAtomically(Utils.getMergeHeadPath(), ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @return {第二双亲的commitStr, 分支名}，没有还没提交的合并时返回null
+     */
+    private static String[] readPendingMerge() {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Utils.getMergeHeadPath(), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        newMergeCommit(timestamp, "merged by "+head+" and "+branch, mergeResultFiles, hash, author, branch);
+        if (lines.size() < 2 || !CommitStore.contains(lines.get(0)))
+            throw new IllegalStateException("corrupt " + Utils.getMergeHeadPath());
+        return new String[]{lines.get(0), lines.get(1)};
     }
 
-    private void newMergeCommit(ZonedDateTime timestamp, String log, Map<String, String> commitFiles,
-                           String SHA1, String author, String objectBranch) {
-        Commit commit = new Commit(timestamp, log, commitFiles, SHA1, author, branches.get(head), branches.get(objectBranch));
-        getHeadCommit().addSonCommit(commit.getCommitStr());
+    private static void clearPendingMerge() {
         try {
-            getCommitByBranch(objectBranch).addSonCommit(commit.getCommitStr());
-        } catch (NoSuchBranchException ignored) { }
-        commits.put(commit.getCommitStr(), commit);
-        branches.put(head, commit.getCommitStr());
-        branches.put(objectBranch, commit.getCommitStr());
+            Files.deleteIfExists(Utils.getMergeHeadPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,545 @@
+package com.jgit.Commits;
+
+import com.jgit.Utility.AbbreviationIndex;
+import com.jgit.Utility.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * commit图：保存每个commit的双亲下标和世代号，保存在.git/commit-graph
+ *
+ * 世代号是commit到根commit的最长距离加一，根commit为1，任何commit的世代号都大于它所有祖先的世代号。
+ * 按世代号从大到小遍历，可以保证处理一个commit时它所有的后代都已经处理过，
+ * 世代号比目标小的commit也不可能是目标的后代，可以提前停止遍历。
+ *
+ * commit的下标是加入的顺序，双亲一定排在孩子前面，可达位图等也按这个下标记录。
+ * 文件以只读内存映射的方式访问，读取时不做任何解析，和PackIndex一样直接在映射内存上二分查找。
+ * 文件格式：魔数、版本号，然后是若干层，每一层是下标连续的一段commit：
+ * commit数、第一个commit的下标、256项的fan-out表（第i项为首字节不大于i的commit个数）、
+ * 按字节序排好的(20字节commitStr、层内下标)、按下标排列的定长记录(第一双亲下标、第二双亲下标（没有为-1）、世代号、在有序表里的位置)。
+ * 新commit作为只有一条记录的新层追加到文件末尾，倒数第二层不到最后一层的两倍大时把它们合并重写，
+ * 层数保持在O(log n)，每个commit平均只被重写O(log n)次，查找时逐层二分
+ */
+public class CommitGraph {
+
+    private static final int MAGIC = 0x4a434752; // "JCGR"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int LAYER_HEADER_SIZE = 8;
+    private static final int FANOUT_SIZE = 256 * 4;
+    //有序表的一项：commitStr、层内下标
+    private static final int SORTED_ENTRY_SIZE = Utils.HASH_LENGTH + 4;
+    //定长记录：第一双亲、第二双亲、世代号、在有序表里的位置
+    private static final int RECORD_SIZE = 16;
+    private static final int MERGE_FACTOR = 2;
+    private static final int NO_PARENT = -1;
+
+    private static final int PARENT1 = 1;
+    private static final int PARENT2 = 2;
+    private static final int STALE = 4;
+    private static final int RESULT = 8;
+
+    /**
+     * 一层在文件里的位置
+     */
+    private static class Layer {
+        private final int offset, count, start;
+
+        Layer(int offset, int count, int start) {
+            this.offset = offset;
+            this.count = count;
+            this.start = start;
+        }
+
+        int sortedAt() { return offset + LAYER_HEADER_SIZE + FANOUT_SIZE; }
+
+        int recordsAt() { return sortedAt() + count * SORTED_ENTRY_SIZE; }
+
+        int end() { return recordsAt() + count * RECORD_SIZE; }
+    }
+
+    private final Path path;
+    private MappedByteBuffer buf;
+    private List<Layer> layers = new ArrayList<>();
+    private int size;
+
+    private CommitGraph(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * 映射commit图文件，只读取每一层的头部
+     * @throws IOException 文件不存在或者已经损坏
+     */
+    public static CommitGraph load(Path path) throws IOException {
+        CommitGraph graph = new CommitGraph(path);
+        graph.map();
+        return graph;
+    }
+
+    private void map() throws IOException {
+        //映射建立之后即使关闭channel也依然有效
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+            throw new IOException("not a supported commit-graph file");
+        List<Layer> layers = new ArrayList<>();
+        int offset = HEADER_SIZE, size = 0;
+        while (offset < buf.capacity()) {
+            if (offset + LAYER_HEADER_SIZE > buf.capacity())
+                throw new IOException("truncated commit-graph file");
+            Layer layer = new Layer(offset, buf.getInt(offset), buf.getInt(offset + 4));
+            if (layer.count <= 0 || layer.start != size || (long) layer.end() > buf.capacity())
+                throw new IOException("corrupt commit-graph file");
+            layers.add(layer);
+            size += layer.count;
+            offset = layer.end();
+        }
+        this.layers = layers;
+        this.size = size;
+    }
+
+    /**
+     * 根据所有commit重新生成commit图并写入文件，所有commit写成一层
+     * @param commits commitStr -> Commit
+     */
+    public static CommitGraph rebuild(Path path, Map<String, Commit> commits) throws IOException {
+        //非递归的后序遍历，保证双亲先于孩子加入
+        List<String> order = new ArrayList<>(commits.size());
+        Map<String, Integer> positions = new HashMap<>();
+        int[] parent1 = new int[commits.size()], parent2 = new int[commits.size()], generation = new int[commits.size()];
+        for (String start : commits.keySet()) {
+            Deque<String> stack = new ArrayDeque<>();
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                String id = stack.peek();
+                if (positions.containsKey(id)) {
+                    stack.pop();
+                    continue;
+                }
+                Commit c = commits.get(id);
+                String p1 = parentOf(c.getParentCommitStr(), commits), p2 = parentOf(c.getSecondParentCommitStr(), commits);
+                boolean ready = true;
+                if (p1 != null && !positions.containsKey(p1)) { stack.push(p1); ready = false; }
+                if (p2 != null && !positions.containsKey(p2)) { stack.push(p2); ready = false; }
+                if (ready) {
+                    stack.pop();
+                    int i = order.size();
+                    order.add(id);
+                    positions.put(id, i);
+                    parent1[i] = p1 == null ? NO_PARENT : positions.get(p1);
+                    parent2[i] = p2 == null ? NO_PARENT : positions.get(p2);
+                    generation[i] = 1 + Math.max(parent1[i] == NO_PARENT ? 0 : generation[parent1[i]],
+                            parent2[i] == NO_PARENT ? 0 : generation[parent2[i]]);
+                }
+            }
+        }
+        byte[][] ids = new byte[order.size()][];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = Utils.fromHex(order.get(i));
+        Path tmp = Files.createTempFile(path.getParent(), "tmp-", null);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            writeFully(channel, header);
+            if (ids.length > 0)
+                writeFully(channel, encodeLayer(0, ids, parent1, parent2, generation));
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        return load(path);
+    }
+
+    private static String parentOf(String commitStr, Map<String, Commit> commits) {
+        return commitStr == null || !commits.containsKey(commitStr) ? null : commitStr;
+    }
+
+    /**
+     * 编码一层
+     * @param start 第一个commit的下标
+     * @param ids 按下标排列的20字节commitStr
+     */
+    private static ByteBuffer encodeLayer(int start, byte[][] ids, int[] parent1, int[] parent2, int[] generation) {
+        int count = ids.length;
+        Integer[] sorted = new Integer[count];
+        for (int i = 0; i < count; i++)
+            sorted[i] = i;
+        Arrays.sort(sorted, (x, y) -> compare(ids[x], ids[y]));
+        int[] rank = new int[count];
+        for (int k = 0; k < count; k++)
+            rank[sorted[k]] = k;
+        ByteBuffer out = ByteBuffer.allocate(LAYER_HEADER_SIZE + FANOUT_SIZE + count * (SORTED_ENTRY_SIZE + RECORD_SIZE));
+        out.putInt(count).putInt(start);
+        int[] fanout = new int[256];
+        for (byte[] id : ids)
+            fanout[id[0] & 0xFF]++;
+        for (int b = 0, total = 0; b < 256; b++) {
+            total += fanout[b];
+            out.putInt(total);
+        }
+        for (int i : sorted)
+            out.put(ids[i]).putInt(i);
+        for (int i = 0; i < count; i++)
+            out.putInt(parent1[i]).putInt(parent2[i]).putInt(generation[i]).putInt(rank[i]);
+        out.flip();
+        return out;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining())
+            channel.write(data);
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int k = 0; k < a.length; k++) {
+            int c = (a[k] & 0xFF) - (b[k] & 0xFF);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(String id) {
+        return find(id) >= 0;
+    }
+
+    public boolean containsAll(Collection<String> ids) {
+        for (String id : ids) {
+            if (!contains(id))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 逐层用首字节在fan-out表里确定区间，再二分查找
+     * @return commit的下标，不在图里（包括不是合法的commitStr）时返回-1
+     */
+    private int find(String id) {
+        if (id == null || id.length() != Utils.HASH_HEX_LENGTH)
+            return -1;
+        byte[] raw;
+        try {
+            raw = Utils.fromHex(id);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+        int first = raw[0] & 0xFF;
+        for (int l = layers.size() - 1; l >= 0; l--) {
+            Layer layer = layers.get(l);
+            int fanoutAt = layer.offset + LAYER_HEADER_SIZE;
+            int lo = first == 0 ? 0 : buf.getInt(fanoutAt + (first - 1) * 4);
+            int hi = buf.getInt(fanoutAt + first * 4) - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = compareAt(layer.sortedAt() + mid * SORTED_ENTRY_SIZE, raw);
+                if (cmp < 0) lo = mid + 1;
+                else if (cmp > 0) hi = mid - 1;
+                else return layer.start + buf.getInt(layer.sortedAt() + mid * SORTED_ENTRY_SIZE + Utils.HASH_LENGTH);
+            }
+        }
+        return -1;
+    }
+
+    private int compareAt(int offset, byte[] id) {
+        for (int k = 0; k < id.length; k++) {
+            int c = (buf.get(offset + k) & 0xFF) - (id[k] & 0xFF);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+
+    private int positionOf(String id) {
+        int i = find(id);
+        if (i < 0)
+            throw new IllegalArgumentException("commit not in commit-graph: " + id);
+        return i;
+    }
+
+    /**
+     * @return 下标所在的层，按起始下标二分查找
+     */
+    private Layer layerOf(int position) {
+        int lo = 0, hi = layers.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (layers.get(mid).start <= position) lo = mid;
+            else hi = mid - 1;
+        }
+        return layers.get(lo);
+    }
+
+    private int record(int position, int field) {
+        Layer layer = layerOf(position);
+        return buf.getInt(layer.recordsAt() + (position - layer.start) * RECORD_SIZE + field * 4);
+    }
+
+    private int parent1(int position) { return record(position, 0); }
+
+    private int parent2(int position) { return record(position, 1); }
+
+    private int generation(int position) { return record(position, 2); }
+
+    private byte[] rawId(int position) {
+        Layer layer = layerOf(position);
+        int rank = buf.getInt(layer.recordsAt() + (position - layer.start) * RECORD_SIZE + 12);
+        byte[] id = new byte[Utils.HASH_LENGTH];
+        int at = layer.sortedAt() + rank * SORTED_ENTRY_SIZE;
+        for (int k = 0; k < id.length; k++)
+            id[k] = buf.get(at + k);
+        return id;
+    }
+
+    /**
+     * @return commit在图里的下标，即加入的顺序，从0开始
+     */
+    int getPosition(String id) {
+        return positionOf(id);
+    }
+
+    String getId(int position) {
+        return Utils.toHex(rawId(position));
+    }
+
+    /**
+     * 所有commit的commitStr，按加入的顺序，访问到时才从映射内存里读出
+     */
+    public List<String> getIds() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return getId(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * 加入一个新commit并写入文件，commit已经在图里时（例如图刚根据CommitStore重新生成过）什么都不做
+     *
+     * 新commit作为新的一层；倒数第二层不到新层两倍大时合并进来，一直合并到不满足为止，
+     * 只重新编码合并的这几层，前面的层原样复制
+     * @param parent 第一双亲，没有时为null
+     * @param secondParent 第二双亲，没有时为null
+     */
+    public void append(String id, String parent, String secondParent) throws IOException {
+        if (contains(id))
+            return;
+        int p1 = parent == null ? NO_PARENT : positionOf(parent);
+        int p2 = secondParent == null ? NO_PARENT : positionOf(secondParent);
+        int gen = 1 + Math.max(p1 == NO_PARENT ? 0 : generation(p1), p2 == NO_PARENT ? 0 : generation(p2));
+        int from = layers.size(), count = 1;
+        while (from > 0 && layers.get(from - 1).count < MERGE_FACTOR * count) {
+            from--;
+            count += layers.get(from).count;
+        }
+        int start = from == layers.size() ? size : layers.get(from).start;
+        byte[][] ids = new byte[count][];
+        int[] parent1 = new int[count], parent2 = new int[count], generation = new int[count];
+        for (int i = 0; i < count - 1; i++) {
+            ids[i] = rawId(start + i);
+            parent1[i] = parent1(start + i);
+            parent2[i] = parent2(start + i);
+            generation[i] = generation(start + i);
+        }
+        ids[count - 1] = Utils.fromHex(id);
+        parent1[count - 1] = p1;
+        parent2[count - 1] = p2;
+        generation[count - 1] = gen;
+        int offset = from < layers.size() ? layers.get(from).offset : from == 0 ? HEADER_SIZE : layers.get(from - 1).end();
+        //保留的层连同新层写进临时文件再改名覆盖，不能原地截断：buf还映射着原文件，
+        //其他进程也可能正映射着它
+        ByteBuffer kept = buf.duplicate();
+        kept.position(0);
+        kept.limit(offset);
+        Utils.writeAtomically(path, kept, encodeLayer(start, ids, parent1, parent2, generation));
+        map();
+    }
+    /**
+     * 查找commitStr以prefix开头的commit
+     *
+     * 每一层的fan-out表和有序表就是一个AbbreviationIndex，直接在映射内存上逐层查找，
+     * 各层的commit互不重复，合并之后按顺序取前limit个
+     * @param limit 最多返回这么多个
+     * @return 按顺序排列的commitStr
+     */
+    public List<String> findByPrefix(String prefix, int limit) {
+        TreeSet<String> matches = new TreeSet<>();
+        for (Layer layer : layers) {
+            AbbreviationIndex index = new AbbreviationIndex(buf, layer.offset + LAYER_HEADER_SIZE, layer.sortedAt(),
+                    SORTED_ENTRY_SIZE);
+            matches.addAll(index.resolve(prefix, limit));
+        }
+        List<String> result = new ArrayList<>(limit);
+        for (String id : matches) {
+            if (result.size() == limit)
+                break;
+            result.add(id);
+        }
+        return result;
+    }
+
+    /**
+     * @return 第一双亲的commitStr，根commit返回null
+     */
+    public String getFirstParent(String id) {
+        int p = parent1(positionOf(id));
+        return p == NO_PARENT ? null : getId(p);
+    }
+
+    /**
+     * @return 所有双亲的commitStr，第一双亲在前
+     */
+    public List<String> getParents(String id) {
+        int i = positionOf(id), p1 = parent1(i), p2 = parent2(i);
+        List<String> parents = new ArrayList<>(2);
+        if (p1 != NO_PARENT) parents.add(getId(p1));
+        if (p2 != NO_PARENT) parents.add(getId(p2));
+        return parents;
+    }
+
+    public int getGeneration(String id) {
+        return generation(positionOf(id));
+    }
+
+    /**
+     * 求两个commit的所有最佳公共祖先
+     *
+     * 从两个commit出发，按世代号从大到小往祖先方向染色，两种颜色都染上的就是公共祖先，
+     * 它的祖先都标记为"过时"，队列里只剩过时的commit时停止。
+     * 交叉合并的历史中最佳公共祖先可能不止一个，所以返回列表，按世代号从大到小排序
+     * @return 最佳公共祖先的commitStr，两者没有公共祖先时为空列表
+     */
+    public List<String> mergeBases(String a, String b) {
+        int ia = positionOf(a), ib = positionOf(b);
+        if (ia == ib)
+            return new ArrayList<>(Arrays.asList(a));
+        List<Integer> candidates = paintDownToCommon(ia, ib);
+        List<String> bases = new ArrayList<>();
+        for (int c : removeRedundant(candidates))
+            bases.add(getId(c));
+        return bases;
+    }
+
+    /**
+     * 判断ancestor是否是descendant的祖先（或者就是它自己）
+     */
+    public boolean isAncestor(String ancestor, String descendant) {
+        return reachable(positionOf(descendant), positionOf(ancestor));
+    }
+
+    private List<Integer> paintDownToCommon(int a, int b) {
+        Map<Integer, Integer> flags = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(this::compareByGeneration);
+        flags.put(a, PARENT1);
+        flags.put(b, PARENT2);
+        queue.add(a);
+        queue.add(b);
+        List<Integer> result = new ArrayList<>();
+        while (hasNonStale(queue, flags)) {
+            int c = queue.poll();
+            int f = flags.get(c);
+            int paint = f & (PARENT1 | PARENT2 | STALE);
+            if (paint == (PARENT1 | PARENT2)) {
+                if ((f & RESULT) == 0) {
+                    flags.put(c, f | RESULT);
+                    result.add(c);
+                }
+                paint |= STALE;
+            }
+            for (int p : new int[]{parent1(c), parent2(c)}) {
+                if (p == NO_PARENT)
+                    continue;
+                int pf = flags.getOrDefault(p, 0);
+                if ((pf & paint) == paint)
+                    continue;
+                flags.put(p, pf | paint);
+                queue.add(p);
+            }
+        }
+        //后来被其他公共祖先染成过时的，说明它是另一个公共祖先的祖先
+        result.removeIf(c -> (flags.get(c) & STALE) != 0);
+        return result;
+    }
+
+    private static boolean hasNonStale(PriorityQueue<Integer> queue, Map<Integer, Integer> flags) {
+        for (int c : queue) {
+            if ((flags.get(c) & STALE) == 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * 去掉是其他候选者祖先的候选者
+     */
+    private List<Integer> removeRedundant(List<Integer> candidates) {
+        List<Integer> result = new ArrayList<>();
+        for (int x : candidates) {
+            boolean redundant = false;
+            for (int y : candidates) {
+                if (x != y && reachable(y, x)) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant)
+                result.add(x);
+        }
+        result.sort(this::compareByGeneration);
+        return result;
+    }
+
+    /**
+     * 从from出发能否走到to，世代号比to小的commit不可能通向to，直接剪掉
+     */
+    private boolean reachable(int from, int to) {
+        int cutoff = generation(to);
+        Deque<Integer> stack = new ArrayDeque<>();
+        Set<Integer> seen = new HashSet<>();
+        stack.push(from);
+        while (!stack.isEmpty()) {
+            int c = stack.pop();
+            if (c == to)
+                return true;
+            if (!seen.add(c) || generation(c) <= cutoff)
+                continue;
+            int p1 = parent1(c), p2 = parent2(c);
+            if (p1 != NO_PARENT) stack.push(p1);
+            if (p2 != NO_PARENT) stack.push(p2);
+        }
+        return false;
+    }
+
+    private int compareByGeneration(int x, int y) {
+        int cmp = Integer.compare(generation(y), generation(x));
+        return cmp != 0 ? cmp : Integer.compare(y, x);
+    }
+}
@@ -0,0 +1,525 @@
+package com.jgit.Commits;
+
+import com.jgit.Utility.Utils;
+import com.jgit.Utility.VarInt;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * commit的检索索引：log中的词和作者 -> commit的倒排表，保存在.git/commit-index
+ *
+ * 文件以只读内存映射的方式访问，读取时只解析文件头和追加区，查询时在有序的词典上二分查找，只解码命中的倒排表，
+ * 不需要读取任何commit。多个条件的查询就是倒排表求交，前缀查询在词典上取以它开头的一段求并。
+ * commit按提交时间从新到旧排好序，倒排表里记的是这个顺序里的下标，查询结果和global-log（见LogWalk）都不用再排序。
+ *
+ * 分词：log转成小写，连续的字母和数字为一个词，汉字等表意文字每个字单独为一个词，其余字符都是分隔符。
+ * 文件格式：魔数、版本号、commit总数、有序部分的commit数、词典的位置、作者词典的位置、追加区的位置，
+ * 然后是有序部分：按时间从新到旧的(20字节commitStr、提交时间（秒）)，各个倒排表（下标递增，存相邻下标的差，见VarInt），
+ * 词典和作者词典（词数、每个词的位置，然后按字典序排列的(词的UTF-8长度和内容、倒排表的位置、倒排表的长度)）；
+ * 最后是追加区：新commit的记录直接追加到文件末尾，并把文件头里的commit总数加一，见append。
+ * 每条记录是20字节commitStr、提交时间、作者、词数、各个词(modified UTF-8)。
+ * 追加区读取时整个解析，太长时把整个文件重写成有序部分，见compact
+ */
+public class CommitIndex {
+
+    private static final int MAGIC = 0x4a434958; // "JCIX"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 28;
+    //文件头里commit总数的位置
+    private static final int COUNT_AT = 8;
+    //有序部分的一项：commitStr、提交时间
+    private static final int ID_ENTRY_SIZE = Utils.HASH_LENGTH + 8;
+    //超过这个长度的词不进索引，一般是粘贴进来的长串
+    private static final int MAX_WORD_LENGTH = 128;
+    //追加区超过这么多条、并且超过有序部分的四分之一时重写文件
+    private static final int MAX_TAIL = 256;
+
+    /**
+     * 一个commit的索引记录
+     */
+    private static class Entry {
+        final String id;
+        final long time;
+        final String author;
+        final List<String> tokens;
+
+        Entry(String id, long time, String author, List<String> tokens) {
+            this.id = id;
+            this.time = time;
+            this.author = author;
+            this.tokens = tokens;
+        }
+
+        static Entry of(Commit commit) {
+            return new Entry(commit.getCommitStr(), commit.getTimestamp().toEpochSecond(),
+                    commit.getAuthor() == null ? "" : commit.getAuthor(), tokenize(commit.getLog()));
+        }
+    }
+
+    private final Path path;
+    private MappedByteBuffer buf;
+    //commit总数，包括追加区
+    private int count;
+    //有序部分的commit数
+    private int baseCount;
+    private int wordsAt, authorsAt;
+    //追加区的记录按加入的顺序，查询时下标排在有序部分后面
+    private final List<Entry> tail = new ArrayList<>();
+    private final TreeMap<String, List<Integer>> tailWords = new TreeMap<>();
+    private final Map<String, List<Integer>> tailAuthors = new HashMap<>();
+
+    private CommitIndex(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * 映射索引文件，只解析文件头和追加区
+     * @throws IOException 文件不存在或者已经损坏
+     */
+    public static CommitIndex load(Path path) throws IOException {
+        CommitIndex index = new CommitIndex(path);
+        index.map();
+        return index;
+    }
+
+    private void map() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+            throw new IOException("not a supported commit-index file");
+        count = buf.getInt(COUNT_AT);
+        baseCount = buf.getInt(12);
+        wordsAt = buf.getInt(16);
+        authorsAt = buf.getInt(20);
+        int tailAt = buf.getInt(24);
+        if (baseCount < 0 || count < baseCount || HEADER_SIZE + (long) baseCount * ID_ENTRY_SIZE > wordsAt
+                || (long) wordsAt + 4 > authorsAt || (long) authorsAt + 4 > tailAt || tailAt > buf.capacity()
+                || wordsAt + 4 + 4L * buf.getInt(wordsAt) > authorsAt || authorsAt + 4 + 4L * buf.getInt(authorsAt) > tailAt)
+            throw new IOException("corrupt commit-index file");
+        tail.clear();
+        tailWords.clear();
+        tailAuthors.clear();
+        byte[] records = new byte[buf.capacity() - tailAt];
+        ByteBuffer at = buf.duplicate();
+        at.position(tailAt);
+        at.get(records);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(records))) {
+            while (in.available() > 0)
+                addToTail(readRecord(in));
+        }
+        //追加记录之后还没来得及改文件头就中断了
+        if (baseCount + tail.size() != count)
+            throw new IOException("commit-index has " + (baseCount + tail.size()) + " records, header says " + count);
+    }
+
+    /**
+     * 根据所有commit重新生成索引并写入文件
+     */
+    public static CommitIndex rebuild(Path path, Iterator<Commit> commits) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        while (commits.hasNext())
+            entries.add(Entry.of(commits.next()));
+        write(path, entries);
+        return load(path);
+    }
+
+    /**
+     * 把所有记录写成有序部分，先写临时文件再改名
+     * @param entries 按加入的顺序
+     */
+    private static void write(Path path, List<Entry> entries) throws IOException {
+        int n = entries.size();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        //按时间从新到旧，时间相同时后加入的在前
+        Arrays.sort(order, (x, y) -> {
+            long tx = entries.get(x).time, ty = entries.get(y).time;
+            return tx != ty ? Long.compare(ty, tx) : Integer.compare(y, x);
+        });
+        TreeMap<String, List<Integer>> words = new TreeMap<>(), authors = new TreeMap<>();
+        for (int rank = 0; rank < n; rank++) {
+            Entry e = entries.get(order[rank]);
+            authors.computeIfAbsent(e.author.toLowerCase(Locale.ROOT), a -> new ArrayList<>()).add(rank);
+            for (String token : e.tokens)
+                words.computeIfAbsent(token, t -> new ArrayList<>()).add(rank);
+        }
+        int postingsAt = HEADER_SIZE + n * ID_ENTRY_SIZE;
+        ByteArrayOutputStream postings = new ByteArrayOutputStream();
+        byte[] wordsDict = dictionary(words, postings, postingsAt);
+        byte[] authorsDict = dictionary(authors, postings, postingsAt);
+        int wordsAt = postingsAt + postings.size(), authorsAt = wordsAt + wordsDict.length;
+
+        Path tmp = Files.createTempFile(path.getParent(), "tmp-", null);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt(n);
+            out.writeInt(wordsAt);
+            out.writeInt(authorsAt);
+            out.writeInt(authorsAt + authorsDict.length);
+            for (Integer i : order) {
+                out.write(Utils.fromHex(entries.get(i).id));
+                out.writeLong(entries.get(i).time);
+            }
+            postings.writeTo(out);
+            out.write(wordsDict);
+            out.write(authorsDict);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 把倒排表写进postings，返回词典；词典里每个词的位置相对于词典的开头
+     */
+    private static byte[] dictionary(TreeMap<String, List<Integer>> terms, ByteArrayOutputStream postings,
+                                     int postingsAt) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(bytes);
+        int tableSize = 4 + 4 * terms.size();
+        int[] offsets = new int[terms.size()];
+        int i = 0;
+        for (Map.Entry<String, List<Integer>> e : terms.entrySet()) {
+            offsets[i++] = tableSize + entries.size();
+            byte[] term = e.getKey().getBytes(StandardCharsets.UTF_8);
+            entries.writeShort(term.length);
+            entries.write(term);
+            entries.writeInt(postingsAt + postings.size());
+            entries.writeInt(e.getValue().size());
+            int prev = 0;
+            for (int rank : e.getValue()) {
+                VarInt.write(postings, rank - prev);
+                prev = rank;
+            }
+        }
+        ByteBuffer dict = ByteBuffer.allocate(tableSize + entries.size());
+        dict.putInt(terms.size());
+        for (int offset : offsets)
+            dict.putInt(offset);
+        dict.put(bytes.toByteArray());
+        return dict.array();
+    }
+
+    /**
+     * 把新commit的记录追加到索引文件，再把文件头里的commit总数加一。文件还不存在时什么都不做，第一次查询时会重新生成
+     */
+    public static void append(Path path, Commit commit) throws IOException {
+        if (!Files.exists(path))
+            return;
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(record)) {
+            writeRecord(out, Entry.of(commit));
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0)
+                    throw new IOException("truncated commit-index file");
+            }
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new IOException("not a supported commit-index file");
+            writeAt(channel, ByteBuffer.wrap(record.toByteArray()), channel.size());
+            ByteBuffer count = ByteBuffer.allocate(4);
+            count.putInt(0, header.getInt(COUNT_AT) + 1);
+            writeAt(channel, count, COUNT_AT);
+        }
+    }
+
+    private static void writeAt(FileChannel channel, ByteBuffer data, long pos) throws IOException {
+        while (data.hasRemaining())
+            pos += channel.write(data, pos);
+    }
+
+    /**
+     * 同时加入已经读进内存的索引
+     */
+    void add(Commit commit) {
+        addToTail(Entry.of(commit));
+        count++;
+    }
+
+    private static void writeRecord(DataOutputStream out, Entry e) throws IOException {
+        out.write(Utils.fromHex(e.id));
+        out.writeLong(e.time);
+        out.writeUTF(e.author);
+        out.writeInt(e.tokens.size());
+        for (String token : e.tokens)
+            out.writeUTF(token);
+    }
+
+    private static Entry readRecord(DataInputStream in) throws IOException {
+        byte[] id = new byte[Utils.HASH_LENGTH];
+        in.readFully(id);
+        long time = in.readLong();
+        String author = in.readUTF();
+        int n = in.readInt();
+        if (n < 0)
+            throw new IOException("bad commit-index record: " + Utils.toHex(id));
+        List<String> tokens = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            tokens.add(in.readUTF());
+        return new Entry(Utils.toHex(id), time, author, tokens);
+    }
+
+    private void addToTail(Entry e) {
+        int i = tail.size();
+        tail.add(e);
+        tailAuthors.computeIfAbsent(e.author.toLowerCase(Locale.ROOT), a -> new ArrayList<>()).add(i);
+        for (String token : e.tokens)
+            tailWords.computeIfAbsent(token, t -> new ArrayList<>()).add(i);
+    }
+
+    /**
+     * 追加区太长时把整个文件重写成有序部分：从有序部分的倒排表还原出每个commit的词，不需要读取commit
+     */
+    public void compact() throws IOException {
+        if (tail.size() <= MAX_TAIL || tail.size() <= baseCount / 4)
+            return;
+        List<List<String>> tokens = new ArrayList<>(baseCount);
+        String[] authors = new String[baseCount];
+        for (int rank = 0; rank < baseCount; rank++)
+            tokens.add(new ArrayList<>());
+        for (int i = 0, n = buf.getInt(wordsAt); i < n; i++) {
+            String term = termAt(wordsAt, i);
+            BitSet ranks = new BitSet();
+            readPostings(wordsAt, i, ranks);
+            for (int rank = ranks.nextSetBit(0); rank >= 0; rank = ranks.nextSetBit(rank + 1))
+                tokens.get(rank).add(term);
+        }
+        for (int i = 0, n = buf.getInt(authorsAt); i < n; i++) {
+            String author = termAt(authorsAt, i);
+            BitSet ranks = new BitSet();
+            readPostings(authorsAt, i, ranks);
+            for (int rank = ranks.nextSetBit(0); rank >= 0; rank = ranks.nextSetBit(rank + 1))
+                authors[rank] = author;
+        }
+        //有序部分从旧到新就是加入的顺序（时间相同时后加入的在前），追加区的记录都在它们之后
+        List<Entry> entries = new ArrayList<>(count);
+        for (int rank = baseCount - 1; rank >= 0; rank--)
+            entries.add(new Entry(idAt(rank), timeAt(rank), authors[rank] == null ? "" : authors[rank], tokens.get(rank)));
+        entries.addAll(tail);
+        write(path, entries);
+        map();
+    }
+
+    /**
+     * @return commit数，直接取自文件头
+     */
+    public int size() {
+        return count;
+    }
+
+    private String idAt(int rank) {
+        byte[] id = new byte[Utils.HASH_LENGTH];
+        ByteBuffer at = buf.duplicate();
+        at.position(HEADER_SIZE + rank * ID_ENTRY_SIZE);
+        at.get(id);
+        return Utils.toHex(id);
+    }
+
+    private long timeAt(int rank) {
+        return buf.getLong(HEADER_SIZE + rank * ID_ENTRY_SIZE + Utils.HASH_LENGTH);
+    }
+
+    /**
+     * @return 词典里第i项的位置
+     */
+    private int entryAt(int dictAt, int i) {
+        return dictAt + buf.getInt(dictAt + 4 + 4 * i);
+    }
+
+    private String termAt(int dictAt, int i) {
+        int at = entryAt(dictAt, i);
+        byte[] term = new byte[buf.getShort(at) & 0xFFFF];
+        ByteBuffer b = buf.duplicate();
+        b.position(at + 2);
+        b.get(term);
+        return new String(term, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return 词典里第一个不小于term的词的下标
+     */
+    private int lowerBound(int dictAt, String term) {
+        int lo = 0, hi = buf.getInt(dictAt);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (termAt(dictAt, mid).compareTo(term) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * 解码词典第i项的倒排表，把其中的下标加进into
+     */
+    private void readPostings(int dictAt, int i, BitSet into) {
+        int at = entryAt(dictAt, i);
+        at += 2 + (buf.getShort(at) & 0xFFFF);
+        ByteBuffer postings = buf.duplicate();
+        postings.position(buf.getInt(at));
+        int rank = 0;
+        for (int k = 0, n = buf.getInt(at + 4); k < n; k++) {
+            rank += VarInt.readInt(postings);
+            into.set(rank);
+        }
+    }
+
+    /**
+     * @return 包含term的所有commit，追加区的下标排在有序部分后面
+     */
+    private BitSet postings(int dictAt, String term, List<Integer> tailPostings) {
+        BitSet set = new BitSet();
+        int i = lowerBound(dictAt, term);
+        if (i < buf.getInt(dictAt) && termAt(dictAt, i).equals(term))
+            readPostings(dictAt, i, set);
+        addTail(set, tailPostings);
+        return set;
+    }
+
+    private void addTail(BitSet set, List<Integer> tailPostings) {
+        if (tailPostings != null) {
+            for (int i : tailPostings)
+                set.set(baseCount + i);
+        }
+    }
+
+    /**
+     * @return 所有commit按提交时间从新到旧排序，时间相同时后加入的在前
+     */
+    public List<String> getIdsByTime() {
+        BitSet all = new BitSet();
+        all.set(0, count);
+        return byTime(all);
+    }
+
+    /**
+     * 查找同时满足所有条件的commit
+     * @param words log里必须包含的词，每个都会再分词，分不出词时什么都找不到
+     * @param prefixes log里必须有以它们开头的词
+     * @param author 作者，不区分大小写，为null表示不限
+     * @return 命中的commitStr，按提交时间从新到旧排序
+     */
+    public List<String> search(Collection<String> words, Collection<String> prefixes, String author) {
+        BitSet result = null;
+        for (String word : words) {
+            List<String> tokens = tokenize(word);
+            //全是分隔符的词不可能出现在索引里
+            if (tokens.isEmpty())
+                result = new BitSet();
+            for (String token : tokens)
+                result = intersect(result, postings(wordsAt, token, tailWords.get(token)));
+        }
+        for (String prefix : prefixes) {
+            String p = prefix.toLowerCase(Locale.ROOT);
+            BitSet union = new BitSet();
+            for (int i = lowerBound(wordsAt, p), n = buf.getInt(wordsAt); i < n && termAt(wordsAt, i).startsWith(p); i++)
+                readPostings(wordsAt, i, union);
+            for (List<Integer> postings : tailWords.subMap(p, true, p + Character.MAX_VALUE, false).values())
+                addTail(union, postings);
+            result = intersect(result, union);
+        }
+        if (author != null) {
+            String a = author.toLowerCase(Locale.ROOT);
+            result = intersect(result, postings(authorsAt, a, tailAuthors.get(a)));
+        }
+        if (result == null) {
+            result = new BitSet();
+            result.set(0, count);
+        }
+        return byTime(result);
+    }
+
+    /**
+     * 有序部分的下标本来就是时间顺序，追加区的命中按时间排好之后和它归并，时间相同时追加区的在前
+     */
+    private List<String> byTime(BitSet hits) {
+        List<Integer> recent = new ArrayList<>();
+        for (int i = hits.nextSetBit(baseCount); i >= 0; i = hits.nextSetBit(i + 1))
+            recent.add(i - baseCount);
+        recent.sort((x, y) -> tail.get(x).time != tail.get(y).time
+                ? Long.compare(tail.get(y).time, tail.get(x).time) : Integer.compare(y, x));
+        List<String> found = new ArrayList<>(hits.cardinality());
+        int rank = hits.nextSetBit(0), k = 0;
+        while ((rank >= 0 && rank < baseCount) || k < recent.size()) {
+            boolean base = rank >= 0 && rank < baseCount;
+            if (base && (k == recent.size() || timeAt(rank) > tail.get(recent.get(k)).time)) {
+                found.add(idAt(rank));
+                rank = hits.nextSetBit(rank + 1);
+            } else {
+                found.add(tail.get(recent.get(k++)).id);
+            }
+        }
+        return found;
+    }
+
+    private static BitSet intersect(BitSet result, BitSet other) {
+        if (result == null)
+            return other;
+        result.and(other);
+        return result;
+    }
+
+    /**
+     * 把一段文本切成索引用的词，去掉重复，保持出现的顺序
+     */
+    public static List<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null)
+            return new ArrayList<>(tokens);
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i < lower.length(); ) {
+            int c = lower.codePointAt(i);
+            int next = i + Character.charCount(c);
+            if (Character.isIdeographic(c)) {
+                addToken(tokens, lower, start, i);
+                start = -1;
+                tokens.add(lower.substring(i, next));
+            } else if (Character.isLetterOrDigit(c)) {
+                if (start < 0)
+                    start = i;
+            } else {
+                addToken(tokens, lower, start, i);
+                start = -1;
+            }
+            i = next;
+        }
+        addToken(tokens, lower, start, lower.length());
+        return new ArrayList<>(tokens);
+    }
+
+    private static void addToken(Set<String> tokens, String text, int start, int end) {
+        if (start >= 0 && end - start <= MAX_WORD_LENGTH)
+            tokens.add(text.substring(start, end));
+    }
+}
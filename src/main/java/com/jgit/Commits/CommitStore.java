@@ -0,0 +1,169 @@
+package com.jgit.Commits;
+
+import com.jgit.Utility.BinaryReader;
+import com.jgit.Utility.BinaryWriter;
+import com.jgit.Utility.Utils;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * commit的存储，每个commit单独保存在.git/commits/commitStr，commitStr是完整的40位hash，格式见Commit.encode
+ *
+ * commit一旦写入就不再修改，命令只读取它实际访问到的commit，
+ * 最近用过的commit缓存在内存里，缓存大小固定，历史再长也不会全部读进内存
+ */
+public class CommitStore {
+
+    private static final int CACHE_SIZE = 1024;
+
+    private static final Map<String, Commit> cache = new LinkedHashMap<String, Commit>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Commit> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private CommitStore() { }
+
+    private static Path pathOf(String commitStr) {
+        return Utils.getCommitsPath().resolve(commitStr);
+    }
+
+    /**
+     * 保存commit，先写临时文件再改名，不会留下写了一半的记录
+     */
+    static synchronized void put(Commit commit) {
+        String commitStr = commit.getCommitStr();
+        Path path = pathOf(commitStr);
+        try {
+            Files.createDirectories(path.getParent());
+            BinaryWriter out = new BinaryWriter(Commit.MAGIC, Commit.VERSION);
+            commit.encode(out);
+            out.writeTo(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        cache.put(commitStr, commit);
+    }
+
+    /**
+     * 读取commit并校验它的id，上一个版本用Java序列化写的记录也能读
+     * @return 对应的commit，不存在时返回null
+     * @throws UncheckedIOException 记录读取失败或者已经损坏
+     */
+    static synchronized Commit get(String commitStr) {
+        Commit commit = cache.get(commitStr);
+        if (commit == null) {
+            try {
+                commit = read(pathOf(commitStr));
+                //按内容寻址的commit的id是读取时重新算出来的，和文件名对不上说明记录已经损坏
+                if (isFullId(commitStr) && !commit.getCommitStr().equals(commitStr))
+                    throw new IOException("commit " + commitStr + " is corrupt");
+            } catch (NoSuchFileException e) {
+                return null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            cache.put(commitStr, commit);
+        }
+        return commit;
+    }
+
+    private static Commit read(Path path) throws IOException {
+        ByteBuffer buf = BinaryReader.readFile(path);
+        if (!BinaryReader.isJavaSerialized(buf))
+            return Commit.decode(new BinaryReader(buf, Commit.MAGIC, Commit.VERSION));
+        try {
+            return (Commit) new ObjectInputStream(BinaryReader.asStream(buf)).readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static synchronized boolean contains(String commitStr) {
+        return cache.containsKey(commitStr) || Files.exists(pathOf(commitStr));
+    }
+
+    /**
+     * @return commit文件最后修改的时间，gc按它判断commit是否还在保留期内
+     */
+    static Instant lastModified(String commitStr) throws IOException {
+        return Files.getLastModifiedTime(pathOf(commitStr)).toInstant();
+    }
+
+    /**
+     * 删除commit，只由gc调用，调用前必须确认没有分支能走到它
+     */
+    static synchronized void delete(String commitStr) throws IOException {
+        cache.remove(commitStr);
+        Files.deleteIfExists(pathOf(commitStr));
+    }
+
+    /**
+     * 读取所有commit，只在commit图需要重新生成时使用
+     *
+     * 只读取以完整hash为名的记录，老版本以后六位为名的记录见loadLegacy
+     * @return commitStr -> Commit
+     */
+    static Map<String, Commit> loadAll() throws IOException {
+        Map<String, Commit> commits = new LinkedHashMap<>();
+        for (String commitStr : list(true))
+            commits.put(commitStr, get(commitStr));
+        return commits;
+    }
+
+    /**
+     * 读取老版本以hash后六位为名保存的记录，不放进缓存，只在转换时使用，见CommitChain.relink
+     * @return 短commitStr -> Commit
+     */
+    static Map<String, Commit> loadLegacy() throws IOException {
+        Map<String, Commit> commits = new LinkedHashMap<>();
+        for (String commitStr : list(false))
+            commits.put(commitStr, read(pathOf(commitStr)));
+        return commits;
+    }
+
+    /**
+     * 删除老版本的记录，调用前必须已经以完整hash为名重新保存过
+     */
+    static void deleteLegacy(Collection<String> commitStrs) throws IOException {
+        for (String commitStr : commitStrs) {
+            if (!isFullId(commitStr))
+                Files.deleteIfExists(pathOf(commitStr));
+        }
+    }
+
+    /**
+     * @param full true时列出以完整hash为名的记录，false时列出其余的老记录，都不包括写了一半的临时文件
+     */
+    private static List<String> list(boolean full) throws IOException {
+        List<String> names = new ArrayList<>();
+        if (!Files.isDirectory(Utils.getCommitsPath()))
+            return names;
+        try (Stream<Path> files = Files.list(Utils.getCommitsPath())) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String commitStr = file.getFileName().toString();
+                if (!commitStr.startsWith("tmp-") && isFullId(commitStr) == full)
+                    names.add(commitStr);
+            }
+        }
+        return names;
+    }
+
+    static boolean isFullId(String commitStr) {
+        return commitStr.length() == Utils.HASH_HEX_LENGTH;
+    }
+}
@@ -0,0 +1,41 @@
+package com.jgit.Commits;
+
+import java.io.IOException;
+
+/**
+ * 合并两个分支时，两边都改过的文件交给它按内容合并，见TreeMerge
+ *
+ * merge会在多个线程里同时调用；所有文件都合并完之后调用一次finish
+ */
+public interface FileMerger {
+
+    class Result {
+        private final String hash;
+        private final boolean conflict;
+
+        public Result(String hash, boolean conflict) {
+            this.hash = hash;
+            this.conflict = conflict;
+        }
+
+        /**
+         * @return 合并结果的快照hash，有冲突时是带冲突标记的内容（二进制文件为当前分支的版本）
+         */
+        public String getHash() { return hash; }
+
+        public boolean isConflict() { return conflict; }
+    }
+
+    /**
+     * @param path 文件在树中的路径
+     * @param base 公共祖先里的快照hash，祖先里没有这个文件时为null
+     * @param ours 当前分支的快照hash
+     * @param theirs 要合并进来的分支的快照hash
+     */
+    Result merge(String path, String base, String ours, String theirs) throws IOException;
+
+    /**
+     * 所有merge都返回之后调用，在调用线程里完成需要串行做的收尾，例如把合并结果登记进快照池
+     */
+    default void finish() throws IOException { }
+}
@@ -0,0 +1,315 @@
+package com.jgit.Commits;
+
+import com.jgit.Utility.Utils;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * 按条件遍历commit历史，供log和global-log使用
+ *
+ * 遍历是惰性的：commit在遍历到时才读取，限制了条数时取够就停，不管历史多长，看最近几个commit都只读这几个。
+ * 只有需要的时候才读取commit图和检索索引：默认顺序的log直接沿commit里记录的双亲往回走，
+ * 拓扑顺序用commit图的世代号，global-log的时间顺序用检索索引里记录的提交时间
+ */
+public class LogWalk implements Iterable<Commit> {
+
+    public enum Order {
+        //log沿第一双亲往回走；global-log按创建顺序
+        DEFAULT,
+        //按提交时间从新到旧
+        DATE,
+        //拓扑顺序：commit一定排在它所有双亲之前，世代号大的在前
+        TOPO
+    }
+
+    private final CommitChain chain;
+    //从这个commit往回走，为null时遍历所有commit
+    private final String start;
+    private Order order = Order.DEFAULT;
+    private Instant since, until;
+    private int limit = Integer.MAX_VALUE;
+    private String path;
+
+    LogWalk(CommitChain chain, String start) {
+        this.chain = chain;
+        this.start = start;
+    }
+
+    public LogWalk setOrder(Order order) {
+        this.order = order;
+        return this;
+    }
+
+    /**
+     * 只要不早于since的commit。按时间往回走的遍历（log的默认顺序和时间顺序、global-log的时间顺序）
+     * 遇到第一个更早的commit就停止
+     */
+    public LogWalk setSince(Instant since) {
+        this.since = since;
+        return this;
+    }
+
+    /**
+     * 只要不晚于until的commit
+     */
+    public LogWalk setUntil(Instant until) {
+        this.until = until;
+        return this;
+    }
+
+    public LogWalk setLimit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * 只要相对于第一双亲改过path的commit，path可以是文件也可以是文件夹，见PathMatcher
+     */
+    public LogWalk setPath(String path) {
+        this.path = path;
+        return this;
+    }
+
+    @Override
+    public Iterator<Commit> iterator() {
+        Iterator<String> ids = ids();
+        PathMatcher matcher = path == null ? null : new PathMatcher(chain.getGraph(), path);
+        //按时间往回走的遍历，遇到早于since的commit后面不会再有符合条件的
+        boolean stopAtSince = order == Order.DATE || (order == Order.DEFAULT && start != null);
+        return new Iterator<Commit>() {
+            Commit next;
+            int returned;
+            boolean done;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && !done && returned < limit && ids.hasNext()) {
+                    String id = ids.next();
+                    if (matcher != null && !matcher.touches(id))
+                        continue;
+                    Commit commit = load(id);
+                    Instant time = commit.getTimestamp().toInstant();
+                    if (since != null && time.isBefore(since)) {
+                        done = stopAtSince;
+                        continue;
+                    }
+                    if (until != null && time.isAfter(until))
+                        continue;
+                    next = commit;
+                }
+                return next != null;
+            }
+
+            @Override
+            public Commit next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Commit commit = next;
+                next = null;
+                returned++;
+                return commit;
+            }
+        };
+    }
+
+    /**
+     * 按遍历顺序给出commitStr，都是惰性的
+     */
+    private Iterator<String> ids() {
+        if (start == null) {
+            switch (order) {
+                case DATE:
+                    return chain.getIndex().getIdsByTime().iterator();
+                case TOPO: {
+                    CommitGraph graph = chain.getGraph();
+                    List<String> ids = new ArrayList<>(graph.getIds());
+                    //稳定排序，世代号相同时后创建的在前
+                    Collections.reverse(ids);
+                    ids.sort(Comparator.comparingInt(graph::getGeneration).reversed());
+                    return ids.iterator();
+                }
+                default:
+                    return chain.getGraph().getIds().iterator();
+            }
+        }
+        switch (order) {
+            case DATE:
+                return byDate();
+            case TOPO:
+                return byGeneration();
+            default:
+                return path == null ? firstParents() : firstParentsByGraph();
+        }
+    }
+
+    /**
+     * 沿commit里记录的第一双亲往回走，不需要commit图
+     */
+    private Iterator<String> firstParents() {
+        return new Iterator<String>() {
+            String next = start;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                String id = next;
+                String parent = load(id).getParentCommitStr();
+                next = parent == null || parent.equals("null") ? null : parent;
+                return id;
+            }
+        };
+    }
+
+    /**
+     * 沿commit图的第一双亲往回走，被路径过滤掉的commit不用读取
+     */
+    private Iterator<String> firstParentsByGraph() {
+        CommitGraph graph = chain.getGraph();
+        return new Iterator<String>() {
+            String next = start;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                String id = next;
+                next = graph.getFirstParent(id);
+                return id;
+            }
+        };
+    }
+
+    /**
+     * start的所有祖先按提交时间从新到旧，只读取已经走到的commit和它们的双亲
+     */
+    private Iterator<String> byDate() {
+        Comparator<Commit> newestFirst = Comparator.comparing((Commit c) -> c.getTimestamp().toInstant()).reversed()
+                .thenComparing(Commit::getCommitStr);
+        PriorityQueue<Commit> queue = new PriorityQueue<>(newestFirst);
+        Set<String> seen = new HashSet<>();
+        seen.add(start);
+        queue.add(load(start));
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public String next() {
+                Commit commit = queue.remove();
+                for (String parent : new String[]{commit.getParentCommitStr(), commit.getSecondParentCommitStr()}) {
+                    if (parent != null && !parent.equals("null") && seen.add(parent))
+                        queue.add(load(parent));
+                }
+                return commit.getCommitStr();
+            }
+        };
+    }
+
+    /**
+     * start的所有祖先按世代号从大到小。一个commit的孩子世代号都比它大，
+     * 所以它出队时能走到它的孩子都已经出过队了，结果就是拓扑顺序
+     */
+    private Iterator<String> byGeneration() {
+        CommitGraph graph = chain.getGraph();
+        PriorityQueue<String> queue = new PriorityQueue<>(
+                Comparator.comparingInt(graph::getGeneration).reversed().thenComparing(Comparator.naturalOrder()));
+        Set<String> seen = new HashSet<>();
+        seen.add(start);
+        queue.add(start);
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public String next() {
+                String id = queue.remove();
+                for (String parent : graph.getParents(id)) {
+                    if (seen.add(parent))
+                        queue.add(parent);
+                }
+                return id;
+            }
+        };
+    }
+
+    private static Commit load(String id) {
+        Commit commit = CommitStore.get(id);
+        if (commit == null)
+            throw new IllegalStateException("missing commit " + id);
+        return commit;
+    }
+
+    /**
+     * @return commit的根树hash，commitStr为null时返回null
+     */
+    private static String treeOf(String commitStr) {
+        return commitStr == null ? null : load(commitStr).getTree();
+    }
+
+    /**
+     * 判断commit相对于第一双亲有没有改过一个路径
+     *
+     * changed-path过滤器说一定没有改过的commit直接排除，commit和树都不用读取。
+     * 还没有过滤器的commit（例如这个功能出现之前的commit）实际比较一次，顺便把过滤器补上
+     */
+    private static class PathMatcher {
+        private final CommitGraph graph;
+        private final String key;
+        //主文件夹本身不在过滤器里，只能比较整棵树
+        private final boolean useFilters;
+        private final ChangedPathFilters filters = ChangedPathFilters.load(Utils.getCommitBloomPath());
+
+        PathMatcher(CommitGraph graph, String path) {
+            this.graph = graph;
+            String key = Tree.normalize(path);
+            while (key.startsWith("./"))
+                key = key.substring(2);
+            while (key.endsWith("/"))
+                key = key.substring(0, key.length() - 1);
+            this.key = key;
+            this.useFilters = !key.isEmpty() && !key.equals(".");
+        }
+
+        boolean touches(String id) {
+            if (useFilters && filters.definitelyUnchanged(id, key))
+                return false;
+            String tree = treeOf(id), parentTree = treeOf(graph.getFirstParent(id));
+            if (!filters.contains(id)) {
+                try {
+                    filters.add(id, parentTree, tree);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (useFilters)
+                return !Objects.equals(Tree.lookupPath(parentTree, key), Tree.lookupPath(tree, key));
+            return !TreeDiff.diff(parentTree, tree).isEmpty();
+        }
+    }
+}
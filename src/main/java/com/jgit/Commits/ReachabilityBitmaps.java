@@ -0,0 +1,282 @@
+package com.jgit.Commits;
+
+import com.jgit.Utility.RoaringBitmap;
+import com.jgit.Utility.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * 分支指向的commit的可达位图，保存在.git/commit-bitmaps
+ *
+ * 位图里是从这个commit出发能走到的所有commit（包括它自己）在commit图里的下标，
+ * 两个分支差几个commit、一个分支是否已经合并进另一个，都变成位图的求差和查找，不用遍历commit图。
+ * 提交时新commit的位图就是双亲的位图加上它自己；分支指向没有位图的commit时（例如reset之后）往回走到有位图的commit为止。
+ * 位图用的是commit图的下标，commit图重新生成时下标可能变化，这个文件要跟着删掉，见CommitChain.getGraph。
+ *
+ * 文件以只读内存映射的方式访问，位图用到时才解码。文件格式：魔数、版本号、有序表的项数、追加区的起始位置，
+ * 256项的fan-out表，按字节序排好的(20字节commitStr、位图的位置、位图的长度)，各个位图（见RoaringBitmap.write），
+ * 最后是追加区：提交时新算出的位图逐条追加在末尾，每条是20字节commitStr、长度、位图。
+ * 有序表在压缩文件时重写，追加区的记录数不超过分支数加一个常数，读取时只扫一遍追加区的记录头
+ */
+public class ReachabilityBitmaps {
+
+    private static final int MAGIC = 0x4a43424d; // "JCBM"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int FANOUT_SIZE = 256 * 4;
+    private static final int SORTED_ENTRY_SIZE = Utils.HASH_LENGTH + 8;
+
+    private final Path path;
+    private MappedByteBuffer buf;
+    //有序表的项数
+    private int sortedCount;
+    //追加区里的记录：commitStr -> {位置, 长度}
+    private final Map<String, int[]> appended = new HashMap<>();
+    //已经解码或者算出来的位图
+    private final Map<String, RoaringBitmap> bitmaps = new HashMap<>();
+
+    private ReachabilityBitmaps(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * 映射位图文件，文件不存在时返回空的对象
+     *
+     * 文件损坏时删掉它，需要时重新计算；位图和commit图对不上的在解码时才发现，见get
+     */
+    public static ReachabilityBitmaps load(Path path) {
+        ReachabilityBitmaps bitmaps = new ReachabilityBitmaps(path);
+        try {
+            bitmaps.map();
+        } catch (NoSuchFileException e) {
+            return bitmaps;
+        } catch (IOException e) {
+            bitmaps.reset();
+        }
+        return bitmaps;
+    }
+
+    private void map() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buf.capacity() < HEADER_SIZE + FANOUT_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+            throw new IOException("not a supported commit-bitmaps file");
+        sortedCount = buf.getInt(8);
+        int pos = buf.getInt(12);
+        if (sortedCount < 0 || pos < HEADER_SIZE + FANOUT_SIZE + (long) sortedCount * SORTED_ENTRY_SIZE || pos > buf.capacity())
+            throw new IOException("corrupt commit-bitmaps file");
+        appended.clear();
+        while (pos < buf.capacity()) {
+            if (pos + Utils.HASH_LENGTH + 4 > buf.capacity())
+                throw new IOException("truncated commit-bitmaps file");
+            String id = Utils.toHex(bytesAt(pos, Utils.HASH_LENGTH));
+            int length = buf.getInt(pos + Utils.HASH_LENGTH);
+            pos += Utils.HASH_LENGTH + 4;
+            if (length < 0 || (long) pos + length > buf.capacity())
+                throw new IOException("truncated commit-bitmaps file");
+            appended.put(id, new int[]{pos, length});
+            pos += length;
+        }
+    }
+
+    /**
+     * 文件损坏或者和commit图对不上：删掉文件，之后的位图都重新计算
+     */
+    private void reset() {
+        buf = null;
+        sortedCount = 0;
+        appended.clear();
+        bitmaps.clear();
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) { }
+    }
+
+    private byte[] bytesAt(int pos, int length) {
+        byte[] bytes = new byte[length];
+        for (int k = 0; k < length; k++)
+            bytes[k] = buf.get(pos + k);
+        return bytes;
+    }
+
+    /**
+     * 在有序表里二分查找
+     * @return {位置, 长度}，没有时返回null
+     */
+    private int[] findSorted(byte[] raw) {
+        if (sortedCount == 0)
+            return null;
+        int first = raw[0] & 0xFF;
+        int lo = first == 0 ? 0 : buf.getInt(HEADER_SIZE + (first - 1) * 4);
+        int hi = buf.getInt(HEADER_SIZE + first * 4) - 1;
+        int entries = HEADER_SIZE + FANOUT_SIZE;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int at = entries + mid * SORTED_ENTRY_SIZE, cmp = 0;
+            for (int k = 0; k < raw.length && cmp == 0; k++)
+                cmp = (buf.get(at + k) & 0xFF) - (raw[k] & 0xFF);
+            if (cmp < 0) lo = mid + 1;
+            else if (cmp > 0) hi = mid - 1;
+            else return new int[]{buf.getInt(at + Utils.HASH_LENGTH), buf.getInt(at + Utils.HASH_LENGTH + 4)};
+        }
+        return null;
+    }
+
+    /**
+     * 取出文件里保存的位图并检查它和commit图是否对得上
+     * @return 位图，文件里没有时返回null
+     */
+    private RoaringBitmap lookup(CommitGraph graph, String commitStr) {
+        RoaringBitmap bitmap = bitmaps.get(commitStr);
+        if (bitmap != null || buf == null)
+            return bitmap;
+        int[] location = appended.get(commitStr);
+        if (location == null)
+            location = findSorted(Utils.fromHex(commitStr));
+        if (location == null)
+            return null;
+        try {
+            if ((long) location[0] + location[1] > buf.capacity())
+                throw new IOException("truncated commit-bitmaps file");
+            bitmap = RoaringBitmap.read(new DataInputStream(new ByteArrayInputStream(bytesAt(location[0], location[1]))));
+            if (!graph.contains(commitStr) || !bitmap.contains(graph.getPosition(commitStr)) || bitmap.contains(graph.size()))
+                throw new IOException("commit-bitmaps does not match commit-graph: " + commitStr);
+        } catch (IOException | RuntimeException e) {
+            reset();
+            return null;
+        }
+        bitmaps.put(commitStr, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * 获取从commit出发可达的所有commit的位图，还没有时计算出来并追加到文件
+     *
+     * 从commit往回走，遇到已经有位图的commit就把它的位图并进来，不再往回走
+     */
+    public RoaringBitmap get(CommitGraph graph, String commitStr) {
+        RoaringBitmap bitmap = lookup(graph, commitStr);
+        if (bitmap != null)
+            return bitmap;
+        bitmap = new RoaringBitmap();
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(commitStr);
+        while (!stack.isEmpty()) {
+            String id = stack.pop();
+            if (bitmap.contains(graph.getPosition(id)))
+                continue;
+            RoaringBitmap known = lookup(graph, id);
+            if (known != null) {
+                bitmap = bitmap.or(known);
+                continue;
+            }
+            bitmap.add(graph.getPosition(id));
+            for (String parent : graph.getParents(id))
+                stack.push(parent);
+        }
+        bitmaps.put(commitStr, bitmap);
+        try {
+            append(commitStr, bitmap);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return bitmap;
+    }
+
+    /**
+     * 追加到文件末尾；新记录已经缓存在内存里，不需要重新映射
+     */
+    private void append(String commitStr, RoaringBitmap bitmap) throws IOException {
+        byte[] data = encode(bitmap);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + FANOUT_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(0).putInt(HEADER_SIZE + FANOUT_SIZE);
+                header.position(header.capacity()).flip();
+                size = writeAt(channel, header, 0);
+            }
+            ByteBuffer record = ByteBuffer.allocate(Utils.HASH_LENGTH + 4 + data.length);
+            record.put(Utils.fromHex(commitStr)).putInt(data.length).put(data).flip();
+            writeAt(channel, record, size);
+            appended.put(commitStr, new int[]{(int) size + Utils.HASH_LENGTH + 4, data.length});
+        }
+    }
+
+    private static long writeAt(FileChannel channel, ByteBuffer data, long pos) throws IOException {
+        while (data.hasRemaining())
+            pos += channel.write(data, pos);
+        return pos;
+    }
+
+    private static byte[] encode(RoaringBitmap bitmap) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            bitmap.write(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 文件里的记录太多时重写文件，只保留keep里的commit的位图，全部放进有序表
+     * @param keep 各分支指向的commit
+     */
+    public void compact(CommitGraph graph, Collection<String> keep) throws IOException {
+        if (sortedCount + appended.size() <= 2 * keep.size() + 64)
+            return;
+        List<byte[]> ids = new ArrayList<>();
+        List<byte[]> data = new ArrayList<>();
+        for (String commitStr : new TreeSet<>(keep)) {
+            RoaringBitmap bitmap = lookup(graph, commitStr);
+            if (bitmap == null)
+                continue;
+            ids.add(Utils.fromHex(commitStr));
+            data.add(encode(bitmap));
+        }
+        int tableEnd = HEADER_SIZE + FANOUT_SIZE + ids.size() * SORTED_ENTRY_SIZE, total = tableEnd;
+        for (byte[] d : data)
+            total += d.length;
+        ByteBuffer out = ByteBuffer.allocate(total);
+        out.putInt(MAGIC).putInt(VERSION).putInt(ids.size()).putInt(total);
+        int[] fanout = new int[256];
+        for (byte[] id : ids)
+            fanout[id[0] & 0xFF]++;
+        for (int b = 0, sum = 0; b < 256; b++) {
+            sum += fanout[b];
+            out.putInt(sum);
+        }
+        //十六进制的字符串顺序和字节序一致，TreeSet已经排好了
+        for (int i = 0, pos = tableEnd; i < ids.size(); pos += data.get(i).length, i++)
+            out.put(ids.get(i)).putInt(pos).putInt(data.get(i).length);
+        for (byte[] d : data)
+            out.put(d);
+        out.flip();
+        Path tmp = Files.createTempFile(path.getParent(), "tmp-", null);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            writeAt(channel, out, 0);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        map();
+    }
+}
@@ -0,0 +1,205 @@
+package com.jgit.Commits;
+
+import com.jgit.Utility.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 树对象，表示一个文件夹的快照
+ *
+ * 每一项是文件夹下的一个文件（指向文件快照的hash）或者子文件夹（指向子树的hash），按名称排序。
+ * 树对象的hash由它的内容计算得出，所以没有变化的子文件夹在不同的commit之间会得到同一个hash，
+ * 只保存一份，比较两个commit时也可以直接跳过
+ */
+public class Tree {
+
+    public static final byte TYPE_FILE = 1;
+    public static final byte TYPE_TREE = 2;
+    //树对象中统一使用的路径分隔符
+    public static final char SEPARATOR = '/';
+
+    public static class Entry {
+        private final String name;
+        private final byte type;
+        private final String hash;
+
+        Entry(String name, byte type, String hash) {
+            this.name = name;
+            this.type = type;
+            this.hash = hash;
+        }
+
+        public String getName() { return name; }
+
+        public boolean isTree() { return type == TYPE_TREE; }
+
+        public String getHash() { return hash; }
+    }
+
+    private final List<Entry> entries;
+
+    Tree(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * 按名称二分查找
+     * @return 对应的项，不存在时返回null
+     */
+    public Entry get(String name) {
+        int lo = 0, hi = entries.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = entries.get(mid).name.compareTo(name);
+            if (cmp < 0) lo = mid + 1;
+            else if (cmp > 0) hi = mid - 1;
+            else return entries.get(mid);
+        }
+        return null;
+    }
+
+    /**
+     * 规范编码：项数(4字节)，然后每一项依次为类型(1字节)、名称(modified UTF-8)、20字节hash
+     */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(entries.size() * 48);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(entries.size());
+            for (Entry e : entries) {
+                out.writeByte(e.type);
+                out.writeUTF(e.name);
+                out.write(Utils.fromHex(e.hash));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Tree decode(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int n = in.readInt();
+            List<Entry> entries = new ArrayList<>(n);
+            byte[] hash = new byte[Utils.HASH_LENGTH];
+            for (int i = 0; i < n; i++) {
+                byte type = in.readByte();
+                String name = in.readUTF();
+                in.readFully(hash);
+                entries.add(new Entry(name, type, Utils.toHex(hash)));
+            }
+            return new Tree(entries);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 把"路径 -> 文件hash"的映射写成一组树对象
+     *
+     * 已经存在的子树不会重复写入，这就是不同commit之间共享没有变化的子文件夹的方式
+     * @param files 路径 -> 文件hash
+     * @return 根树的hash
+     */
+    public static String write(Map<String, String> files) {
+        Node root = new Node();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            String[] parts = normalize(file.getKey()).split(String.valueOf(SEPARATOR));
+            Node node = root;
+            for (int i = 0; i < parts.length - 1; i++)
+                node = node.dirs.computeIfAbsent(parts[i], k -> new Node());
+            node.files.put(parts[parts.length - 1], file.getValue());
+        }
+        return write(root);
+    }
+
+    private static String write(Node node) {
+        TreeMap<String, Entry> sorted = new TreeMap<>();
+        node.files.forEach((name, hash) -> sorted.put(name, new Entry(name, TYPE_FILE, hash)));
+        node.dirs.forEach((name, child) -> sorted.put(name, new Entry(name, TYPE_TREE, write(child))));
+        return TreeStore.put(new Tree(new ArrayList<>(sorted.values())));
+    }
+
+    /**
+     * 把树展开成"路径 -> 文件hash"的映射
+     */
+    public static Map<String, String> flatten(String treeHash) {
+        Map<String, String> files = new HashMap<>();
+        flatten(treeHash, "", files);
+        return files;
+    }
+
+    private static void flatten(String treeHash, String prefix, Map<String, String> files) {
+        for (Entry e : TreeStore.get(treeHash).entries) {
+            if (e.isTree())
+                flatten(e.hash, prefix + e.name + SEPARATOR, files);
+            else
+                files.put(prefix + e.name, e.hash);
+        }
+    }
+
+    /**
+     * 沿着路径逐层查找文件，不需要展开整棵树
+     * @return 文件hash，不存在时返回null
+     */
+    public static String lookup(String treeHash, String path) {
+        String[] parts = normalize(path).split(String.valueOf(SEPARATOR));
+        Tree tree = TreeStore.get(treeHash);
+        for (int i = 0; i < parts.length; i++) {
+            Entry e = tree.get(parts[i]);
+            if (e == null || e.isTree() == (i == parts.length - 1))
+                return null;
+            if (!e.isTree())
+                return e.hash;
+            tree = TreeStore.get(e.hash);
+        }
+        return null;
+    }
+
+    /**
+     * 同lookup，但路径也可以是文件夹
+     * @return 文件hash或者文件夹的树hash，不存在时返回null
+     */
+    public static String lookupPath(String treeHash, String path) {
+        if (treeHash == null)
+            return null;
+        String hash = treeHash;
+        boolean isFile = false;
+        for (String part : normalize(path).split(String.valueOf(SEPARATOR))) {
+            if (part.isEmpty())
+                continue;
+            if (isFile)
+                return null;
+            Entry e = TreeStore.get(hash).get(part);
+            if (e == null)
+                return null;
+            isFile = !e.isTree();
+            hash = e.hash;
+        }
+        return hash;
+    }
+
+    static String normalize(String path) {
+        return path.replace(File.separatorChar, SEPARATOR);
+    }
+
+    private static class Node {
+        final Map<String, Node> dirs = new HashMap<>();
+        final Map<String, String> files = new HashMap<>();
+    }
+}
@@ -0,0 +1,95 @@
+package com.jgit.Commits;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 比较两棵树，找出发生变化的文件
+ *
+ * 两棵树的项都按名称排好序，逐层做归并；hash相同的子树内容一定相同，直接跳过，
+ * 所以开销只和变化的路径数量有关，和整棵树的大小无关
+ */
+public class TreeDiff {
+
+    /**
+     * 一个文件的变化，新增文件的oldHash为null，删除文件的newHash为null
+     */
+    public static class Change {
+        private final String path;
+        private final String oldHash;
+        private final String newHash;
+
+        Change(String path, String oldHash, String newHash) {
+            this.path = path;
+            this.oldHash = oldHash;
+            this.newHash = newHash;
+        }
+
+        public String getPath() { return path; }
+
+        public String getOldHash() { return oldHash; }
+
+        public String getNewHash() { return newHash; }
+    }
+
+    private TreeDiff() { }
+
+    /**
+     * @param oldTree 旧的根树hash，可以为null，表示空树
+     * @param newTree 新的根树hash，可以为null，表示空树
+     * @return 所有变化的文件，按路径排序
+     */
+    public static List<Change> diff(String oldTree, String newTree) {
+        List<Change> changes = new ArrayList<>();
+        diff(oldTree, newTree, "", changes);
+        return changes;
+    }
+
+    private static void diff(String oldTree, String newTree, String prefix, List<Change> changes) {
+        if (oldTree != null && oldTree.equals(newTree))
+            return;
+        List<Tree.Entry> a = entriesOf(oldTree), b = entriesOf(newTree);
+        int i = 0, j = 0;
+        while (i < a.size() || j < b.size()) {
+            int cmp = i == a.size() ? 1 : j == b.size() ? -1 : a.get(i).getName().compareTo(b.get(j).getName());
+            if (cmp < 0) {
+                removed(a.get(i++), prefix, changes);
+            } else if (cmp > 0) {
+                added(b.get(j++), prefix, changes);
+            } else {
+                Tree.Entry x = a.get(i++), y = b.get(j++);
+                if (x.getHash().equals(y.getHash()) && x.isTree() == y.isTree())
+                    continue;
+                String path = prefix + x.getName();
+                if (x.isTree() && y.isTree()) {
+                    diff(x.getHash(), y.getHash(), path + Tree.SEPARATOR, changes);
+                } else if (!x.isTree() && !y.isTree()) {
+                    changes.add(new Change(path, x.getHash(), y.getHash()));
+                } else {
+                    //文件变成了文件夹，或者反过来
+                    removed(x, prefix, changes);
+                    added(y, prefix, changes);
+                }
+            }
+        }
+    }
+
+    private static void removed(Tree.Entry e, String prefix, List<Change> changes) {
+        if (e.isTree())
+            diff(e.getHash(), null, prefix + e.getName() + Tree.SEPARATOR, changes);
+        else
+            changes.add(new Change(prefix + e.getName(), e.getHash(), null));
+    }
+
+    private static void added(Tree.Entry e, String prefix, List<Change> changes) {
+        if (e.isTree())
+            diff(null, e.getHash(), prefix + e.getName() + Tree.SEPARATOR, changes);
+        else
+            changes.add(new Change(prefix + e.getName(), null, e.getHash()));
+    }
+
+    private static List<Tree.Entry> entriesOf(String tree) {
+        return tree == null ? Collections.emptyList() : TreeStore.get(tree).getEntries();
+    }
+}
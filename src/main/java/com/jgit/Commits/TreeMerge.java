@@ -0,0 +1,227 @@
+package com.jgit.Commits;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 三棵树（公共祖先、当前分支、要合并进来的分支）的三路合并
+ *
+ * 三棵树的项都按名称排好序，逐层同时归并一遍：两边hash相同的项直接取，只有一边相对祖先变了的项取变了的那一边，
+ * 不用往下看，所以只有两边都改过的子树才会展开，开销和两边都改过的路径数有关，和整棵树的大小无关。
+ * 两边都改过的文件先记下来，整棵树归并完之后交给fork-join线程池并行地按内容合并，最后自底向上写出新的树对象。
+ * 合并规则和以前逐个文件比较时一样：
+ * 1. 一边删掉了，另一边改过，保留改过的版本
+ * 2. 两边都改了（包括两边都新增），交给FileMerger，祖先里没有的以空文件为祖先
+ * 3. 一边是文件一边是文件夹，保留当前分支的版本，算作冲突
+ */
+public class TreeMerge {
+
+    public static class Result {
+        private final String tree;
+        private final List<String> conflicts;
+
+        Result(String tree, List<String> conflicts) {
+            this.tree = tree;
+            this.conflicts = conflicts;
+        }
+
+        /**
+         * @return 合并结果的根树hash，有冲突的文件是带冲突标记的版本
+         */
+        public String getTree() { return tree; }
+
+        /**
+         * @return 有冲突的文件，按路径排序
+         */
+        public List<String> getConflicts() { return conflicts; }
+    }
+
+    private final FileMerger merger;
+    private final int parallelism;
+    //两边都改过、需要按内容合并的文件
+    private final List<FileTask> tasks = new ArrayList<>();
+    private final List<String> conflicts = new ArrayList<>();
+
+    public TreeMerge(FileMerger merger) {
+        this(merger, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism 并行合并文件内容的线程数
+     */
+    public TreeMerge(FileMerger merger, int parallelism) {
+        this.merger = merger;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param base 公共祖先的根树hash
+     * @param ours 当前分支的根树hash
+     * @param theirs 要合并进来的分支的根树hash
+     */
+    public Result run(String base, String ours, String theirs) throws IOException {
+        Dir root = mergeDirs(base, ours, theirs, "");
+        mergeFiles();
+        for (FileTask task : tasks) {
+            if (task.result.isConflict())
+                conflicts.add(task.path);
+        }
+        Collections.sort(conflicts);
+        return new Result(root == null ? Tree.write(Collections.emptyMap()) : write(root), conflicts);
+    }
+
+    /**
+     * 合并之后的一个文件夹，项按名称排序；每一项要么已经有hash，要么是待合并的文件或者子文件夹
+     */
+    private static class Dir {
+        private final List<Item> items = new ArrayList<>();
+    }
+
+    private static class Item {
+        private final String name;
+        private final Tree.Entry entry;
+        private final FileTask task;
+        private final Dir dir;
+
+        Item(String name, Tree.Entry entry, FileTask task, Dir dir) {
+            this.name = name;
+            this.entry = entry;
+            this.task = task;
+            this.dir = dir;
+        }
+    }
+
+    /**
+     * 归并三棵树的同一个文件夹，任何一棵树里没有这个文件夹时对应的hash为null
+     * @return 合并之后的文件夹，什么都不剩时返回null
+     */
+    private Dir mergeDirs(String base, String ours, String theirs, String prefix) {
+        List<Tree.Entry> b = entriesOf(base), o = entriesOf(ours), t = entriesOf(theirs);
+        Dir dir = new Dir();
+        int i = 0, j = 0, k = 0;
+        while (i < b.size() || j < o.size() || k < t.size()) {
+            //三棵树里当前最小的名字
+            String name = null;
+            if (i < b.size()) name = b.get(i).getName();
+            if (j < o.size() && (name == null || o.get(j).getName().compareTo(name) < 0)) name = o.get(j).getName();
+            if (k < t.size() && (name == null || t.get(k).getName().compareTo(name) < 0)) name = t.get(k).getName();
+            Tree.Entry eb = i < b.size() && b.get(i).getName().equals(name) ? b.get(i++) : null;
+            Tree.Entry eo = j < o.size() && o.get(j).getName().equals(name) ? o.get(j++) : null;
+            Tree.Entry et = k < t.size() && t.get(k).getName().equals(name) ? t.get(k++) : null;
+            Item item = mergeEntry(name, eb, eo, et, prefix);
+            if (item != null)
+                dir.items.add(item);
+        }
+        return dir.items.isEmpty() ? null : dir;
+    }
+
+    /**
+     * @return 合并之后的项，合并的结果是删除时返回null
+     */
+    private Item mergeEntry(String name, Tree.Entry eb, Tree.Entry eo, Tree.Entry et, String prefix) {
+        //两边一样，或者只有一边变了：不用往下看
+        if (same(eo, et) || same(eb, et))
+            return eo == null ? null : new Item(name, eo, null, null);
+        if (same(eb, eo))
+            return et == null ? null : new Item(name, et, null, null);
+        String path = prefix + name;
+        boolean oursTree = eo == null || eo.isTree(), theirsTree = et == null || et.isTree();
+        if (oursTree && theirsTree) {
+            Dir dir = mergeDirs(eb != null && eb.isTree() ? eb.getHash() : null,
+                    eo == null ? null : eo.getHash(), et == null ? null : et.getHash(), path + Tree.SEPARATOR);
+            return dir == null ? null : new Item(name, null, null, dir);
+        }
+        //一边删掉了，另一边改过，保留改过的版本
+        if (eo == null)
+            return new Item(name, et, null, null);
+        if (et == null)
+            return new Item(name, eo, null, null);
+        if (oursTree || theirsTree) {
+            conflicts.add(path);
+            return new Item(name, eo, null, null);
+        }
+        FileTask task = new FileTask(path, eb != null && !eb.isTree() ? eb.getHash() : null, eo.getHash(), et.getHash());
+        tasks.add(task);
+        return new Item(name, null, task, null);
+    }
+
+    private static boolean same(Tree.Entry x, Tree.Entry y) {
+        if (x == null || y == null)
+            return x == y;
+        return x.isTree() == y.isTree() && x.getHash().equals(y.getHash());
+    }
+
+    /**
+     * 在线程池里并行合并所有文件，每个文件一个任务，大文件和小文件混在一起时由work-stealing自动平衡；
+     * 全部完成之后让merger把结果登记下来
+     */
+    private void mergeFiles() throws IOException {
+        try {
+            if (tasks.size() == 1) {
+                tasks.get(0).compute();
+            } else if (!tasks.isEmpty()) {
+                ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, tasks.size()));
+                try {
+                    pool.invoke(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            invokeAll(tasks);
+                        }
+                    });
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            merger.finish();
+        }
+    }
+
+    private class FileTask extends RecursiveAction {
+        private final String path, base, ours, theirs;
+        private FileMerger.Result result;
+
+        FileTask(String path, String base, String ours, String theirs) {
+            this.path = path;
+            this.base = base;
+            this.ours = ours;
+            this.theirs = theirs;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                result = merger.merge(path, base, ours, theirs);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * 自底向上写出合并之后的树对象，已经存在的树对象不会重复写入
+     */
+    private static String write(Dir dir) {
+        List<Tree.Entry> entries = new ArrayList<>(dir.items.size());
+        for (Item item : dir.items) {
+            if (item.entry != null)
+                entries.add(item.entry);
+            else if (item.task != null)
+                entries.add(new Tree.Entry(item.name, Tree.TYPE_FILE, item.task.result.getHash()));
+            else
+                entries.add(new Tree.Entry(item.name, Tree.TYPE_TREE, write(item.dir)));
+        }
+        return TreeStore.put(new Tree(entries));
+    }
+
+    private static List<Tree.Entry> entriesOf(String tree) {
+        return tree == null ? Collections.emptyList() : TreeStore.get(tree).getEntries();
+    }
+}
@@ -0,0 +1,127 @@
+package com.jgit.Commits;
+
+import com.jgit.Utility.Hasher;
+import com.jgit.Utility.Utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 树对象的存储，按内容hash保存在.git/trees/前两位hash/其余hash
+ *
+ * 最近用过的树对象缓存在内存里，展开、比较同一批commit时不用反复读盘
+ */
+public class TreeStore {
+
+    private static final int CACHE_SIZE = 4096;
+
+    private static final Map<String, Tree> cache = new LinkedHashMap<String, Tree>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Tree> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private TreeStore() { }
+
+    private static Path pathOf(String hash) {
+        return Utils.getTreesPath().resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    /**
+     * 保存树对象，同样内容的树已经存在时什么都不做
+     * @return 树对象的hash
+     */
+    static synchronized String put(Tree tree) {
+        byte[] data = tree.encode();
+        String hash;
+        try {
+            hash = Utils.toHex(Hasher.digest("SHA-1").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        if (cache.containsKey(hash))
+            return hash;
+        Path path = pathOf(hash);
+        try {
+            if (!Files.exists(path)) {
+                Files.createDirectories(path.getParent());
+                Path tmp = Files.createTempFile(path.getParent(), "tmp-", null);
+                Files.write(tmp, data);
+                try {
+                    Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException e) {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        cache.put(hash, tree);
+        return hash;
+    }
+
+    /**
+     * 删除不在live里、并且在expire之前写入的树对象，只由gc调用
+     *
+     * 写了一半的临时文件超过保留期也一起删掉
+     * @param live 还有commit用到的树的hash
+     * @return 删除的树对象个数
+     */
+    static synchronized int prune(Set<String> live, Instant expire) throws IOException {
+        int removed = 0;
+        if (!Files.isDirectory(Utils.getTreesPath()))
+            return removed;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(Utils.getTreesPath())) {
+            for (Path dir : dirs) {
+                if (!Files.isDirectory(dir))
+                    continue;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        String hash = dir.getFileName().toString() + name;
+                        if ((name.startsWith("tmp-") || !live.contains(hash))
+                                && Files.getLastModifiedTime(file).toInstant().isBefore(expire)) {
+                            Files.delete(file);
+                            cache.remove(hash);
+                            if (!name.startsWith("tmp-"))
+                                removed++;
+                        }
+                    }
+                }
+                try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                    if (!children.iterator().hasNext())
+                        Files.delete(dir);
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * 读取树对象
+     * @throws UncheckedIOException 树对象不存在或者读取失败
+     */
+    public static synchronized Tree get(String hash) {
+        Tree tree = cache.get(hash);
+        if (tree == null) {
+            try {
+                tree = Tree.decode(Files.readAllBytes(pathOf(hash)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            cache.put(hash, tree);
+        }
+        return tree;
+    }
+}
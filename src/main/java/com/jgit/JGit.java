@@ -3,20 +3,39 @@ package com.jgit;
 
 
 import com.jgit.Blobs.BlobPool;
+import com.jgit.Blobs.Compression;
+import com.jgit.Blobs.ContentMerger;
 import com.jgit.Commits.Commit;
 import com.jgit.Commits.CommitChain;
+import com.jgit.Commits.LogWalk;
+import com.jgit.Commits.Tree;
+import com.jgit.Stage.AddPipeline;
+import com.jgit.Stage.Checkout;
+import com.jgit.Stage.FsMonitor;
 import com.jgit.Stage.Stage;
+import com.jgit.Stage.Status;
+import com.jgit.Utility.Config;
 import com.jgit.Utility.Exceptions.*;
+import com.jgit.Utility.ObjectId;
 import com.jgit.Utility.Utils;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
-import java.util.stream.Collectors;
 
 import static com.jgit.Utility.Utils.getGitDirPath;
 
@@ -26,6 +45,7 @@ import static com.jgit.Utility.Utils.getGitDirPath;
  *
  * Git类实例化时，会首先尝试从当前工作目录下反序列化commitChain，stage，blobpool三个文件
  * 分别是是Git底层数据结构的序列化文件、暂存区记录、文件池（保存了所有文件的所有版本的快照）
+ * 其中stage和blobpool在命令第一次用到时才读取，commit也是用到哪个才读哪个，见CommitStore
  */
 
 public class JGit {
@@ -33,6 +53,10 @@ public class JGit {
     private static BlobPool blobPool;
     private static CommitChain commitChain;
     private static Stage stage;
+    private static Config config;
+
+    //gc默认不删两周之内写入的对象
+    private static final Duration DEFAULT_GC_GRACE = Duration.ofDays(14);
 
     public static void main(String[] args) {
         if (args.length == 0) {
@@ -47,18 +71,21 @@ public class JGit {
                 System.err.println("Not in an initialized Git directory.");
                 System.exit(0);
             }
-            blobPool = BlobPool.deSerialFrom(Utils.getBlobsPath());
+            loadConfig();
             commitChain = CommitChain.deSerialFrom(Utils.getCommitChainPath());
-            stage = Stage.deSerialFrom(Utils.getStageFilePath());
             switch (args[0]) {
                 case "add": add(args); break;
                 case "branch": branch(args); break;
                 case "checkout": checkout(args); break;
                 case "commit": commit(args, false); break;
+                case "config": config(args); break;
                 case "find": find(args); break;
+                case "gc": gc(args); break;
                 case "global-log": globalLog(args); break;
                 case "log": log(args); break;
                 case "merge": merge(args); break;
+                case "monitor": monitor(args); break;
+                case "repack": repack(args); break;
                 case "reset": reset(args); break;
                 case "rm": rm(args); break;
                 case "rm-branch": rmBranch(args); break;
@@ -69,10 +96,45 @@ public class JGit {
         Utils.serializeAll(commitChain, stage, blobPool);
     }
 
+    /**
+     * 文件池和暂存区在第一次用到时才读取，用不到它们的命令不需要付出读取的代价
+     */
+    private static BlobPool getBlobPool() {
+        if (blobPool == null) {
+            blobPool = BlobPool.deSerialFrom(Utils.getBlobsPath());
+            blobPool.setCompression(config.getCompression());
+        }
+        return blobPool;
+    }
+
+    private static Stage getStage() {
+        if (stage == null)
+            stage = Stage.deSerialFrom(Utils.getStageFilePath());
+        return stage;
+    }
+
     private static boolean isInitialized() {
         return Files.exists(getGitDirPath());
     }
 
+    /**
+     * 读取Repo配置，遇到本程序不认识的Repo格式版本时直接退出，避免损坏Repo
+     */
+    private static void loadConfig() {
+        try {
+            config = Config.load(Utils.getConfigPath());
+            if (config.getFormatVersion() > Config.SUPPORTED_FORMAT_VERSION) {
+                System.err.println("Unsupported repository format version " + config.getFormatVersion() + ".");
+                System.exit(0);
+            }
+            config.getCompression();
+            config.getCheckoutWorkers();
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Invalid config: " + e.getMessage());
+            System.exit(0);
+        }
+    }
+
     private static void checkArgsValid(String[] args, int argsLength) {
         if (args.length != argsLength) {
             System.err.println("Incorrect operands.");
@@ -89,21 +151,61 @@ public class JGit {
         try {
             String s = args[1];
             if (s.equals(".")) s = "";
-            Path path = Paths.get(s);
-            List<Path> files = Files.walk(path).filter((p) -> (!Files.isDirectory(p) && !(p.toString().charAt(0)=='.'))).collect(Collectors.toList());
-            stage.trackFile(files);
-            blobPool.addFile(files);
-        } catch (IOException e) {
+            new AddPipeline(getStage(), getBlobPool()).run(Paths.get(s));
+        } catch (NoSuchFileException e) {
             System.err.println("No file with that name exists ");
             System.exit(0);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(0);
+        }
+    }
+
+    /**
+     * 打印所有分支，当前分支前面有*，其余分支后面是比当前分支多几个(+)、少几个(-)commit
+     */
+    private static void listBranches() {
+        String cur = commitChain.getCurBranchName();
+        PrintWriter out = newStdoutWriter();
+        for (String name : commitChain.getBranchNames()) {
+            if (name.equals(cur)) {
+                out.println("* " + name);
+                continue;
+            }
+            try {
+                int[] counts = commitChain.aheadBehind(name, cur);
+                out.println("  " + name + " +" + counts[0] + " -" + counts[1]);
+            } catch (NoSuchBranchException e) {
+                e.printStackTrace();
+            }
         }
+        out.flush();
     }
 
     /**
      * 新增一个分支，并让这个分支指向head所指向的commit
+     *
+     * branch -v 列出所有分支，以及每个分支比当前分支多几个、少几个commit
+     * branch --merged [branch] 列出已经合并进branch的分支，不写branch时为当前分支
+     * 这两个都只做可达位图的运算，见ReachabilityBitmaps
      * @param args 命令行参数
      */
     private static void branch(String[] args) {
+        if (args.length == 2 && args[1].equals("-v")) {
+            listBranches();
+            return;
+        }
+        if ((args.length == 2 || args.length == 3) && args[1].equals("--merged")) {
+            String target = args.length == 3 ? args[2] : commitChain.getCurBranchName();
+            try {
+                for (String name : commitChain.getMergedBranches(target))
+                    System.out.println((name.equals(commitChain.getCurBranchName()) ? "* " : "  ") + name);
+            } catch (NoSuchBranchException e) {
+                System.err.println("No branch with that name exists.");
+                System.exit(0);
+            }
+            return;
+        }
         checkArgsValid(args, 2);
         try {
             commitChain.addBranch(args[1]);
@@ -119,20 +221,44 @@ public class JGit {
      */
     private static void checkout(String[] args) {
         checkArgsValid(args, 2);
+        //合并还没提交时切换分支，下一次提交会变成另一个分支上的合并提交，工作目录里也会留下冲突标记
+        if (commitChain.isMerging()) {
+            System.err.println("You have not concluded your merge. Fix conflicts and commit the result first.");
+            System.exit(0);
+        }
+        String oldTree = commitChain.getHeadCommit().getTree();
         try {
             commitChain.changeBranchTo(args[1]);
         } catch (NoSuchBranchException e) {
             System.err.println("No such branch exists.");
             System.exit(0);
         }
-        Utils.syncFilesWithHeadCommit(commitChain, blobPool);
-        stage.clear();
+        updateWorkingTree(oldTree);
+    }
+
+    /**
+     * head改变之后，把工作目录和暂存区从原来head的树更新到现在head的树，只处理有变化的文件
+     * @param oldTree 原来head的根树hash
+     */
+    private static void updateWorkingTree(String oldTree) {
+        updateWorkingTree(oldTree, commitChain.getHeadCommit().getTree());
+    }
+
+    /**
+     * 把工作目录和暂存区从一棵树更新到另一棵树，只处理有变化的文件
+     * @param oldTree 原来的根树hash
+     * @param newTree 更新之后的根树hash
+     */
+    private static void updateWorkingTree(String oldTree, String newTree) {
+        List<String> failed = new Checkout(getStage(), getBlobPool(), config.getCheckoutWorkers()).run(oldTree, newTree);
+        if (!failed.isEmpty())
+            System.err.println(failed.size() + " file(s) could not be updated.");
     }
 
     /**
      * 在commitChain上添加一个Commit结点
      *
-     * 首先生成提交时间，SHA-1和本次commit要保存的文件夹路径等必要信息
+     * 首先生成提交时间和本次commit的根树，commit的id之后由commitChain根据内容计算
      * 然后比较上次commit中文件的hash和这次是否一样，如果一样的话，停止commit
      * 然后在commitChain上添加一个Commit结点，具体逻辑由commitChain实现
      * @param args 命令行参数
@@ -142,37 +268,129 @@ public class JGit {
         checkArgsValid(args, 2);
         String log = args[1];
         ZonedDateTime commitTime = ZonedDateTime.now();
-        String hash = Utils.encrypt(commitTime.toString(), "SHA-1");
-        Map<String, String> stagedFiles = stage.getTrackingFiles();
-        //第一次提交不需要检查提交文件的状况，因为没有上次提交，暂存区也不会有任何文件
-        if (!isFirstCommit) {
-            Collection<String> lastCommitFiles = commitChain.getHeadCommit().getFileHashes();
-            //如果跟踪文件为0个或者这次提交的文件和上次完全一样，就不用提交了
-            if (stage.getNumberOfStagedFiles()==0 ||
-                    (lastCommitFiles.containsAll(stagedFiles.values()) && (lastCommitFiles.size()==stagedFiles.size()))) {
+        Map<String, String> stagedFiles = getStage().getTrackingFiles();
+        String tree = Tree.write(stagedFiles);
+        //第一次提交不需要检查提交文件的状况，因为没有上次提交，暂存区也不会有任何文件；
+        //有冲突的合并可能解决成和当前分支完全一样，也要照样提交
+        if (!isFirstCommit && !commitChain.isMerging()) {
+            //如果跟踪文件为0个或者这次提交的树和上次完全一样，就不用提交了
+            if (getStage().getNumberOfStagedFiles()==0 || tree.equals(commitChain.getHeadCommit().getTree())) {
                 System.err.println("No changes added to the commit.");
                 System.exit(0);
             }
-            //检查暂存区跟踪的文件有没有
         }
-        commitChain.newCommit(commitTime, log, stagedFiles, hash, System.getProperty("user.name"));
+        commitChain.newCommit(commitTime, log, tree, System.getProperty("user.name"));
     }
 
     /**
-     * 打印本Repo中所有的提交记录
+     * 读取或修改Repo配置
+     *
+     * config [key] 打印配置值，config [key] [value] 修改配置值
+     * 修改压缩方式只影响之后写入对象库的快照，已有快照保持原样，读取时按各自的压缩方式解压
+     * @param args 命令行参数
+     */
+    private static void config(String[] args) {
+        if (args.length == 2) {
+            String value = config.get(args[1]);
+            if (value != null) System.out.println(value);
+            return;
+        }
+        checkArgsValid(args, 3);
+        if (args[1].equals(Config.FORMAT_VERSION_KEY)) {
+            System.err.println("The repository format version can not be changed.");
+            System.exit(0);
+        }
+        try {
+            if (args[1].equals(Config.COMPRESSION_KEY)) {
+                Compression.of(args[2]);
+                //压缩过的快照老版本程序读不了，升级Repo格式标记
+                config.set(Config.FORMAT_VERSION_KEY, String.valueOf(Config.SUPPORTED_FORMAT_VERSION));
+            }
+            config.set(args[1], args[2]);
+            if (args[1].equals(Config.CHECKOUT_WORKERS_KEY))
+                config.getCheckoutWorkers();
+            config.save();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(0);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(0);
+        }
+    }
+
+    /**
+     * 打印本Repo中所有的提交记录，默认按创建顺序
+     *
+     * 选项和log相同，只是不能按路径过滤
      * @param args 命令行参数
      */
     private static void globalLog(String[] args) {
-        checkArgsValid(args, 1);
-        Iterator<Map.Entry<String, Commit>> commitIterator = commitChain.getAllCommitsIterator();
-        while(commitIterator.hasNext()) {
-            Commit temp = commitIterator.next().getValue();
-            if (commitChain.isHead(temp)) System.out.println("****current HEAD****");
-            System.out.println(temp);
-            System.out.println("===");
+        LogWalk walk = parseLogOptions(args, commitChain.globalLog(), false);
+        PrintWriter out = newStdoutWriter();
+        for (Commit temp : walk) {
+            if (commitChain.isHead(temp)) out.println("****current HEAD****");
+            temp.printTo(out);
+            out.println();
+            out.println("===");
+        }
+        out.flush();
+    }
+
+    /**
+     * 删除从任何分支都走不到的commit、树对象和快照，见CommitChain.prune和BlobPool.prune
+     *
+     * gc --grace [时长] 保留期内写入的对象都不删，时长如30m、12h、7d、2w，now表示不保留，默认2周
+     * @param args 命令行参数
+     */
+    private static void gc(String[] args) {
+        Duration grace = DEFAULT_GC_GRACE;
+        if (args.length == 3 && args[1].equals("--grace")) {
+            grace = parseDuration(args[2]);
+        } else {
+            checkArgsValid(args, 1);
+        }
+        Instant expire = Instant.now().minus(grace);
+        try {
+            Set<ObjectId> liveBlobs = new HashSet<>();
+            int[] removed = commitChain.prune(expire, liveBlobs);
+            //暂存区里还没提交的快照也要保留
+            for (String hash : getStage().getTrackingFiles().values())
+                liveBlobs.add(ObjectId.fromString(hash));
+            int removedBlobs = getBlobPool().prune(liveBlobs, expire);
+            System.out.println("Removed " + removed[0] + " commits, " + removed[1] + " trees and "
+                    + removedBlobs + " objects.");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(0);
         }
     }
 
+    /**
+     * 解析gc的保留期：数字加单位s、m、h、d、w，或者now
+     */
+    private static Duration parseDuration(String text) {
+        if (text.equals("now"))
+            return Duration.ZERO;
+        try {
+            long n = Long.parseLong(text.substring(0, text.length() - 1));
+            if (n >= 0) {
+                switch (text.charAt(text.length() - 1)) {
+                    case 's': return Duration.ofSeconds(n);
+                    case 'm': return Duration.ofMinutes(n);
+                    case 'h': return Duration.ofHours(n);
+                    case 'd': return Duration.ofDays(n);
+                    case 'w': return Duration.ofDays(7 * n);
+                }
+            }
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            //下面统一报错
+        }
+        System.err.println("Invalid duration: " + text);
+        System.exit(0);
+        return null;
+    }
+
     /**
      * 初始化Repo
      *
@@ -184,9 +402,12 @@ public class JGit {
         blobPool = new BlobPool();
         commitChain = new CommitChain();
         stage = new Stage();
+        config = Config.defaultFor(Utils.getConfigPath());
+        blobPool.setCompression(config.getCompression());
         try {
             Files.createDirectory(getGitDirPath());
             Files.createDirectory(Utils.getFilesPath());
+            config.save();
         } catch (FileAlreadyExistsException e) {
             System.err.println("A Git version-control system already exists in the current directory.");
             System.exit(0);
@@ -199,14 +420,88 @@ public class JGit {
 
     /**
      * 按时间逆序打印当前branch上的所有提交历史，直到全局的第一次提交
+     *
+     * log -n [N] 只打印前N个提交，打印够了就停，不会遍历整个历史
+     * log --since [date] / --until [date] 只打印这段时间内的提交，date可以是2024-01-31、2024-01-31T12:00或带时区的ISO时间
+     * log --date-order / --topo-order 包括合并进来的提交，分别按提交时间和拓扑顺序打印
+     * log -- [path] 只打印改过指定文件或文件夹的提交，必须放在最后
+     * 以上选项可以组合，见LogWalk
      * @param args 命令行参数
      */
     private static void log(String[] args) {
-        checkArgsValid(args, 1);
-        for (Commit temp : commitChain) {
-            System.out.println(temp);
-            System.out.println("===");
+        LogWalk walk = parseLogOptions(args, commitChain.log(), true);
+        PrintWriter out = newStdoutWriter();
+        for (Commit temp : walk) {
+            temp.printTo(out);
+            out.println();
+            out.println("===");
+        }
+        out.flush();
+    }
+
+    /**
+     * 解析log和global-log的选项，参数不对时报错退出
+     * @param allowPath 是否允许 -- [path]
+     */
+    private static LogWalk parseLogOptions(String[] args, LogWalk walk, boolean allowPath) {
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--date-order": walk.setOrder(LogWalk.Order.DATE); continue;
+                case "--topo-order": walk.setOrder(LogWalk.Order.TOPO); continue;
+            }
+            if (i + 1 >= args.length || (args[i].equals("--") && (!allowPath || i + 2 != args.length))) {
+                System.err.println("Incorrect operands.");
+                System.exit(0);
+            }
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "-n":
+                    try {
+                        walk.setLimit(Integer.parseInt(value));
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid number: " + value);
+                        System.exit(0);
+                    }
+                    break;
+                case "--since": walk.setSince(parseDate(value, false)); break;
+                case "--until": walk.setUntil(parseDate(value, true)); break;
+                case "--": walk.setPath(value); break;
+                default:
+                    System.err.println("Incorrect operands.");
+                    System.exit(0);
+            }
         }
+        return walk;
+    }
+
+    /**
+     * 解析--since和--until的时间，没有时区时按本地时区
+     * @param endOfDay 只有日期时取当天结束的时刻，用于--until
+     */
+    private static Instant parseDate(String text, boolean endOfDay) {
+        try {
+            if (text.length() == 10) {
+                LocalDate date = LocalDate.parse(text);
+                return endOfDay ? date.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().minusNanos(1)
+                        : date.atStartOfDay(ZoneId.systemDefault()).toInstant();
+            }
+            try {
+                return ZonedDateTime.parse(text).toInstant();
+            } catch (DateTimeParseException e) {
+                return LocalDateTime.parse(text).atZone(ZoneId.systemDefault()).toInstant();
+            }
+        } catch (DateTimeParseException e) {
+            System.err.println("Invalid date: " + text);
+            System.exit(0);
+            return null;
+        }
+    }
+
+    /**
+     * 大量输出时不要每行都直接写到System.out，最后要flush
+     */
+    private static PrintWriter newStdoutWriter() {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
     }
 
     /**
@@ -218,7 +513,7 @@ public class JGit {
         checkArgsValid(args, 2);
         //下面的几行注释代码是为了解决当前暂存区还有文件时进行merge的问题：是直接忽略还是提示用户提交暂存后再做决定
         //为了偷懒，我毅然选择了前者
-//        if (stage.getNumberOfStagedFiles() != 0) {
+//        if (getStage().getNumberOfStagedFiles() != 0) {
 //            System.err.println("There are files in stageing area. Please remove or commit them first.");
 //            System.exit(0);
 //        }
@@ -227,10 +522,15 @@ public class JGit {
             System.err.println("can not merge with the branch itself.");
             System.exit(0);
         }
+        if (commitChain.isMerging()) {
+            System.err.println("You have not concluded your merge. Fix conflicts and commit the result first.");
+            System.exit(0);
+        }
+        String oldTree = commitChain.getHeadCommit().getTree();
+        String head = commitChain.getCurBranchName();
         try {
-            ZonedDateTime commitTime = ZonedDateTime.now();
-            String hash = Utils.encrypt(commitTime.toString(), "SHA-1");
-            commitChain.mergeWithBranch(commitTime, hash, System.getProperty("user.name"), args[1]);
+            commitChain.mergeWithBranch(ZonedDateTime.now(), System.getProperty("user.name"), args[1],
+                    new ContentMerger(getBlobPool(), head, args[1]));
         } catch (NoSuchBranchException e) {
             System.err.println("No branch with that name exists.");
             System.exit(0);
@@ -239,42 +539,74 @@ public class JGit {
             System.err.println("can not merge with a branch that is the ancester of current working branch.");
             System.exit(0);
         } catch (MergeException e) {
-            //三方的文件都不相同，无法决策保留哪个
-            //其实有算法可以更加智能地解决这个问题，但是我菜啊啊啊啊啊，又菜又懒啊啊啊
-            System.err.println("conflict when merge "+ e.getConflictSource());
+            //两边改了同一处，带冲突标记的文件写进工作目录和暂存区，用户改好之后提交，那次提交就是合并提交
+            //不能直接退出，合并出来的快照和暂存区要照常保存
+            updateWorkingTree(oldTree, e.getTree());
+            for (String file : e.getConflicts())
+                System.out.println("CONFLICT (content): Merge conflict in " + file);
+            System.err.println("Automatic merge failed; fix conflicts and then commit the result.");
+            return;
+        } catch (IOException e) {
+            System.err.println("merge failed: " + e.getMessage());
+            System.exit(0);
+        }
+        updateWorkingTree(oldTree);
+    }
+
+    /**
+     * 把对象库中的所有快照打包成一个带增量压缩的pack文件
+     * @param args 命令行参数
+     */
+    private static void repack(String[] args) {
+        checkArgsValid(args, 1);
+        try {
+            Path idx = getBlobPool().repack();
+            if (idx == null)
+                System.out.println("Nothing to pack.");
+            else
+                System.out.println("Packed objects into " + idx.getFileName());
+        } catch (IOException e) {
+            e.printStackTrace();
             System.exit(0);
         }
-        Utils.syncFilesWithHeadCommit(commitChain, blobPool);
-        stage.clear();
     }
 
     /**
      * 将head改变到指定commit，同时文件夹内容也会恢复到commit时的快照内容
      *
-     * 指定commit内所有文件快照都会被复制到它们原来所在的目录，替代现有的版本（如果现在存在的话）
+     * commit id可以是完整的hash，也可以是任意长度的前缀，前缀对应多个commit时列出候选并退出。
+     * 和当前commit相比有变化的文件会被恢复到指定commit时的版本，指定commit里没有的文件会被删除
      * @param args 命令行参数
      */
     private static void reset(String[] args) {
         checkArgsValid(args, 2);
+        String oldTree = commitChain.getHeadCommit().getTree();
         try {
-            commitChain.resetTo(Utils.fromHash2DirName(args[1]));
+            commitChain.resetTo(commitChain.resolveCommitId(args[1]));
         } catch (NoSuchCommitException e) {
             System.err.println("No commit with that id exists.");
             System.exit(0);
+        } catch (AmbiguousCommitException e) {
+            StringBuilder out = new StringBuilder("Commit id " + args[1] + " is ambiguous. Candidates:");
+            for (String candidate : e.getCandidates())
+                out.append(System.lineSeparator()).append("    ").append(candidate);
+            System.err.println(out);
+            System.exit(0);
         }
-        Utils.syncFilesWithHeadCommit(commitChain, blobPool);
-        stage.clear();
+        updateWorkingTree(oldTree);
     }
 
     /**
      * 删除暂存区的指定文件，同时也删除工作目录的对应文件
+     *
+     * 快照不在这里删除：同样内容的快照可能还被别的文件或者以前的commit用着，没有人用的快照由gc清理
      * @param args 命令行参数
      */
     private static void rm(String[] args) {
         checkArgsValid(args, 2);
         try {
-            String hashOfRemovedFile = stage.untrackFile(Paths.get(args[1]));
-            blobPool.rmFile(hashOfRemovedFile);
+            getStage().untrackFile(Paths.get(args[1]));
+            Files.delete(Paths.get(args[1]));
         } catch (NotStagedException e) {
             System.err.println("Not staged yet.");
             System.exit(0);
@@ -310,64 +642,77 @@ public class JGit {
      */
     private static void status(String[] args) {
         checkArgsValid(args, 1);
-        List<String> hashesOfStagedFiles = stage.getHashesOfStagedFiles();
-        List<String> untrackFiles = new ArrayList<>(), modifiedFiles = new ArrayList<>(),
-                deletedFiles = new ArrayList<>(), trackingFiles = new ArrayList<>();
-        //检查已暂存文件的跟踪情况
-        for(String hash : hashesOfStagedFiles) {
-            Path dirRaw = blobPool.getFile(hash).getPathRaw();
-            //只要还在暂存区里，就是正在跟踪的文件
-            trackingFiles.add(dirRaw.toString());
-            //用户使用shell的命令删除或移动了文件，导致原路径的文件找不到了，那就标记为被删除
-            if (!Files.exists(dirRaw))
-                deletedFiles.add(dirRaw.toString());
-            //文件还在，但是跟暂存区的最新版本不一样了，那就是被修改过了，但是还没暂存
-            else if (!Utils.encrypt(dirRaw, "SHA-1").equals(hash))
-                modifiedFiles.add(dirRaw.toString());
-        }
-        //检查工作目录下未跟踪的文件
+        Status.Result result = new Status(getStage(), commitChain.getHeadCommit().getTree()).run(Paths.get(""));
+        //文件可能有几十万个，拼好之后一次输出
+        StringBuilder out = new StringBuilder();
+        out.append("current working branch: ").append(commitChain.getCurBranchName()).append('\n');
+        appendSection(out, "tracking files:", result.getTracking());
+        out.append('\n').append("Changes to be committed:").append('\n');
+        result.getStagedNew().forEach(f -> out.append("new file: ").append(f).append('\n'));
+        result.getStagedModified().forEach(f -> out.append("modified: ").append(f).append('\n'));
+        result.getStagedRemoved().forEach(f -> out.append("deleted: ").append(f).append('\n'));
+        appendSection(out, "Staged but modified files:", result.getModified());
+        appendSection(out, "Staged but removed files:", result.getDeleted());
+        appendSection(out, "Untracked files:", result.getUntracked());
+        System.out.print(out);
+    }
+
+    /**
+     * 在前台运行文件系统监视进程，之后的status和add只检查它报告的变化，见FsMonitor
+     */
+    private static void monitor(String[] args) {
+        checkArgsValid(args, 1);
         try {
-            //一个文件，如果他不属于上面三种的任何一个，就是未跟踪的文件
-            Files.list(Paths.get("")).forEach((path -> {
-                String p = path.toString();
-                if (!(p.equals(Utils.GIT_DIR_NAME)) && !trackingFiles.contains(p) && !modifiedFiles.contains(p) && !deletedFiles.contains(p))
-                    untrackFiles.add(p);
-            }));
+            System.out.println("Watching " + Paths.get("").toAbsolutePath() + ", press Ctrl-C to stop.");
+            if (!FsMonitor.run())
+                System.err.println("A monitor is already running for this repository.");
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        System.out.println("current working branch: " + commitChain.getCurBranchName());
-        System.out.println();
-        System.out.println("tracking files:");
-        trackingFiles.forEach(System.out::println);
-        System.out.println();
-        System.out.println("Staged but modified files:");
-        modifiedFiles.forEach(System.out::println);
-        System.out.println();
-        System.out.println("Staged but removed files:");
-        deletedFiles.forEach(System.out::println);
-        System.out.println();
-        System.out.println("Untracked files:");
-        untrackFiles.forEach(System.out::println);
+    }
+
+    private static void appendSection(StringBuilder out, String title, List<String> files) {
+        out.append('\n').append(title).append('\n');
+        for (String f : files)
+            out.append(f).append('\n');
     }
 
     /**
-     * 遍历所有Commit对象，打印出具有指定log的Commit对象
-     * @param args
+     * 用检索索引查找Commit，按提交时间从新到旧打印
+     *
+     * find [log] 打印log和给定文本完全相同的Commit；
+     * find -w [word] / -p [prefix] / -a [author] 分别按词、词的前缀和作者查找，可以组合多个，条件之间是"并且"的关系
+     * @param args 命令行参数
      */
     private static void find(String[] args) {
-        checkArgsValid(args, 2);
-        boolean noSuchCommit = true;
-        Iterator<Map.Entry<String,Commit>> iterator = commitChain.getAllCommitsIterator();
-        while(iterator.hasNext()) {
-            Map.Entry<String,Commit> temp = iterator.next();
-            if (temp.getValue().getLog().equals(args[1])) {
-                System.out.println(temp.getValue());
-                noSuchCommit = false;
+        List<Commit> found;
+        if (args.length == 2 && !args[1].startsWith("-")) {
+            found = commitChain.findCommitsByMessage(args[1]);
+        } else {
+            List<String> words = new ArrayList<>(), prefixes = new ArrayList<>();
+            String author = null;
+            if (args.length < 3 || args.length % 2 == 0) {
+                System.err.println("Incorrect operands.");
+                System.exit(0);
+            }
+            for (int i = 1; i < args.length; i += 2) {
+                switch (args[i]) {
+                    case "-w": words.add(args[i + 1]); break;
+                    case "-p": prefixes.add(args[i + 1]); break;
+                    case "-a": author = args[i + 1]; break;
+                    default:
+                        System.err.println("Incorrect operands.");
+                        System.exit(0);
+                }
             }
+            found = commitChain.findCommits(words, prefixes, author);
         }
-        if (noSuchCommit)
+        for (Commit commit : found)
+            System.out.println(commit);
+        if (found.isEmpty())
             System.out.println("Found no commit with that message.");
     }
-}
\ No newline at end of file
+}
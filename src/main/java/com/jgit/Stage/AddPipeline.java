@@ -0,0 +1,332 @@
+package com.jgit.Stage;
+
+import com.jgit.Blobs.Blob;
+import com.jgit.Blobs.BlobPool;
+import com.jgit.Utility.Hasher;
+import com.jgit.Utility.ObjectId;
+import com.jgit.Utility.ObjectIdMap;
+import com.jgit.Utility.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * add命令的流水线：遍历 -> 计算hash并写快照 -> 登记
+ *
+ * 遍历线程把文件路径放进有界队列，多个工作线程并行地读文件，每个文件只读一遍，
+ * 读的同时计算hash并写出压缩后的临时快照，文件状态和暂存区记录一致时连读都不用读；登记在调用线程里完成，
+ * 所以Stage和BlobPool只会被一个线程修改，不需要加锁
+ *
+ * 遍历时整个跳过被.jgitignore忽略的文件夹（见IgnoreRules），其中已经跟踪的文件依然会被暂存。
+ * FsMonitor在运行并且暂存区的token还有效时，只遍历它报告的变化过的路径和上次status不干净的文件，
+ * 其余文件自上次status以来都没有变化，也都已经暂存了
+ */
+public class AddPipeline {
+
+    //不超过这个大小的文件整个读进内存，先算hash，快照已经存在时就不用再写了
+    private static final int IN_MEMORY_LIMIT = 1 << 20;
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final Path END_OF_WALK = Paths.get("");
+
+    private final Stage stage;
+    private final BlobPool blobPool;
+    private final int workers;
+
+    public AddPipeline(Stage stage, BlobPool blobPool) {
+        this(stage, blobPool, Runtime.getRuntime().availableProcessors());
+    }
+
+    public AddPipeline(Stage stage, BlobPool blobPool, int workers) {
+        this.stage = stage;
+        this.blobPool = blobPool;
+        this.workers = workers;
+    }
+
+    /**
+     * 一个文件的处理结果，tempObject为null表示快照已经存在，不需要再写
+     */
+    private static class Result {
+        final Path file;
+        final ObjectId id;
+        final BasicFileAttributes attrs;
+        final Path tempObject;
+        final IOException error;
+
+        Result(Path file, ObjectId id, BasicFileAttributes attrs, Path tempObject, IOException error) {
+            this.file = file;
+            this.id = id;
+            this.attrs = attrs;
+            this.tempObject = tempObject;
+            this.error = error;
+        }
+    }
+
+    private static final Result END_OF_WORKER = new Result(null, null, null, null, null);
+
+    /**
+     * 暂存指定路径下的所有文件
+     * @param root 文件或者文件夹，相对于仓库主文件夹
+     * @throws IOException 路径不存在，或者有文件读写失败（其他文件依然会被暂存）
+     */
+    public void run(Path root) throws IOException {
+        if (!Files.exists(root))
+            throw new NoSuchFileException(root.toString());
+        FsMonitor.Changes changes = FsMonitor.query(stage.getMonitorToken());
+        Set<String> candidates = changes == null ? null : changes.getPaths();
+        if (candidates != null)
+            candidates.addAll(stage.getUnclean());
+        ObjectIdMap<Blob> knownObjects = blobPool.getObjectsSnapshot();
+        Stage statCache = stage.snapshot();
+        BlockingQueue<Path> paths = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Result> results = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        ExecutorService pool = Executors.newFixedThreadPool(workers + 1);
+        IOException firstError = null;
+        try {
+            Future<?> walker = pool.submit(() -> {
+                walk(root, candidates, statCache, paths);
+                return null;
+            });
+            for (int i = 0; i < workers; i++)
+                pool.submit(() -> hashAndStore(paths, results, knownObjects, statCache));
+
+            int finished = 0;
+            while (finished < workers) {
+                Result result = results.take();
+                if (result == END_OF_WORKER) {
+                    finished++;
+                    continue;
+                }
+                try {
+                    if (result.error != null)
+                        throw result.error;
+                    stage.trackFile(Utils.getRelativeDir(result.file), result.id, result.attrs);
+                    if (result.tempObject != null)
+                        blobPool.addObject(result.file, result.id, result.tempObject);
+                } catch (IOException e) {
+                    if (firstError == null) firstError = e;
+                }
+            }
+            walker.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("add interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        if (firstError != null)
+            throw firstError;
+    }
+
+    /**
+     * @param candidates FsMonitor报告的需要检查的路径，为null时遍历root下的所有文件
+     */
+    private void walk(Path root, Set<String> candidates, Stage statCache, BlockingQueue<Path> paths)
+            throws IOException, InterruptedException {
+        try {
+            IgnoreRules ignore = IgnoreRules.load(Paths.get(""));
+            //因为被忽略而跳过的文件和文件夹
+            Set<String> skipped = new HashSet<>();
+            //报告的文件夹和其中的文件可能都在里面，先去重
+            Set<Path> files = new LinkedHashSet<>();
+            String rootName = root.toString();
+            String prefix = rootName.isEmpty() ? "" : rootName + File.separator;
+            if (candidates == null) {
+                walkTree(root, ignore, skipped, paths::put);
+                if (skipped.contains(rootName))
+                    System.err.println("The path " + rootName + " is ignored by " + IgnoreRules.FILE_NAME + ".");
+            } else {
+                for (String name : candidates) {
+                    if (name.equals(rootName) || name.startsWith(prefix))
+                        walkTree(Paths.get(name), ignore, skipped, files::add);
+                }
+            }
+            //忽略规则只对未跟踪的文件起作用，被跳过的路径下已经跟踪的文件照常暂存
+            if (!skipped.isEmpty()) {
+                for (Map.Entry<String, StageEntry> e : statCache.getEntries()) {
+                    String name = e.getKey();
+                    Path path = Paths.get(name);
+                    if ((name.equals(rootName) || name.startsWith(prefix)) && isUnder(path, skipped)
+                            && Files.isRegularFile(path) && (candidates != null || !files.contains(path))) {
+                        if (candidates == null)
+                            paths.put(path);
+                        else
+                            files.add(path);
+                    }
+                }
+            }
+            for (Path file : files)
+                paths.put(file);
+        } finally {
+            //不管遍历是否成功，都要通知每个工作线程结束
+            for (int i = 0; i < workers; i++)
+                paths.put(END_OF_WALK);
+        }
+    }
+
+    private static boolean isUnder(Path path, Set<String> dirs) {
+        for (Path p = path; p != null; p = p.getParent()) {
+            if (dirs.contains(p.toString()))
+                return true;
+        }
+        return false;
+    }
+
+    private interface PathSink {
+        void accept(Path path) throws InterruptedException;
+    }
+
+    /**
+     * 遍历start下的所有文件，跳过主文件夹下以'.'开头的文件和文件夹，被忽略的文件夹整个跳过
+     * @param skipped 记下被忽略的文件和文件夹
+     */
+    private static void walkTree(Path start, IgnoreRules ignore, Set<String> skipped, PathSink sink)
+            throws IOException, InterruptedException {
+        String startName = start.toString();
+        if (!startName.isEmpty() && startName.charAt(0) == '.')
+            return;
+        IgnoreRules startFrame = ignore.parentFrame(startName);
+        boolean startIsDir = Files.isDirectory(start);
+        if (!startName.isEmpty() && (startFrame == null || startFrame.isIgnored(startName, startIsDir))) {
+            skipped.add(startName);
+            return;
+        }
+        if (!startIsDir) {
+            if (Files.exists(start))
+                sink.accept(start);
+            return;
+        }
+        Deque<IgnoreRules> frames = new ArrayDeque<>();
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    String name = dir.toString();
+                    if (name.isEmpty()) {
+                        frames.push(ignore);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    if (!dir.equals(start) && (name.charAt(0) == '.' || frames.peek().isIgnored(name, true))) {
+                        if (name.charAt(0) != '.')
+                            skipped.add(name);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    frames.push((dir.equals(start) ? startFrame : frames.peek()).enter(dir, name + File.separator));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    String name = file.toString();
+                    //指向文件夹的符号链接不暂存
+                    if (name.charAt(0) == '.' || (attrs.isSymbolicLink() && Files.isDirectory(file)))
+                        return FileVisitResult.CONTINUE;
+                    if (frames.peek().isIgnored(name, false)) {
+                        skipped.add(name);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try {
+                        sink.accept(file);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    if (e != null)
+                        throw e;
+                    frames.pop();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException();
+        }
+    }
+
+    private void hashAndStore(BlockingQueue<Path> paths, BlockingQueue<Result> results,
+                              ObjectIdMap<Blob> knownObjects, Stage statCache) {
+        try {
+            Path file;
+            while ((file = paths.take()) != END_OF_WALK)
+                results.put(process(file, knownObjects, statCache));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            //不管怎么退出都要通知主线程，否则它会一直等在results.take()上
+            try {
+                results.put(END_OF_WORKER);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Result process(Path file, ObjectIdMap<Blob> knownObjects, Stage statCache) {
+        Path tempObject = null;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            //文件状态和暂存时一样，快照也还在，连文件都不用打开
+            ObjectId id = statCache.getCachedObjectId(Utils.getRelativeDir(file), attrs);
+            if (id != null && knownObjects.containsKey(id))
+                return new Result(file, id, attrs, null, null);
+            if (attrs.size() <= IN_MEMORY_LIMIT) {
+                byte[] content = Files.readAllBytes(file);
+                id = ObjectId.fromRaw(Hasher.digest("SHA-1").digest(content));
+                if (!knownObjects.containsKey(id)) {
+                    tempObject = blobPool.createTempObject();
+                    try (OutputStream out = blobPool.openObjectOutput(tempObject)) {
+                        out.write(content);
+                    }
+                }
+            } else {
+                tempObject = blobPool.createTempObject();
+                try (OutputStream out = blobPool.openObjectOutput(tempObject)) {
+                    id = ObjectId.fromRaw(Hasher.hashAndCopy(file, "SHA-1", out));
+                }
+            }
+            return new Result(file, id, attrs, tempObject, null);
+        } catch (IOException e) {
+            deleteQuietly(tempObject);
+            return new Result(file, null, null, null, e);
+        } catch (NoSuchAlgorithmException | RuntimeException | Error e) {
+            //其他异常也交给主线程报告，工作线程接着处理下一个文件
+            deleteQuietly(tempObject);
+            return new Result(file, null, null, null, new IOException(e));
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) return;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) { }
+    }
+}
@@ -0,0 +1,191 @@
+package com.jgit.Stage;
+
+import com.jgit.Blobs.BlobPool;
+import com.jgit.Commits.Tree;
+import com.jgit.Commits.TreeDiff;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 把工作目录从一个commit的树切换到另一个commit的树
+ *
+ * 只处理两棵树之间发生变化的文件：新增和修改的写出快照，删除的从工作目录删掉，
+ * 开销和变化的文件数成正比，和整棵树的大小无关。没有变化的文件保持原样，包括用户在工作目录里的修改。
+ * 切换之后暂存区记录的是新树的版本，写出的文件同时记下文件状态，下次比较时不用重新计算hash
+ *
+ * 文件由多个工作线程并行写出，SSD和网络文件系统上单线程写远远用不满带宽；
+ * 需要的文件夹事先在调用线程里按路径顺序建好，暂存区也只在调用线程里修改
+ */
+public class Checkout {
+
+    private final Stage stage;
+    private final BlobPool blobPool;
+    private final int workers;
+
+    public Checkout(Stage stage, BlobPool blobPool) {
+        this(stage, blobPool, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param workers 并行写文件的线程数，见Config.getCheckoutWorkers
+     */
+    public Checkout(Stage stage, BlobPool blobPool, int workers) {
+        this.stage = stage;
+        this.blobPool = blobPool;
+        this.workers = workers;
+    }
+
+    /**
+     * @param oldTree 切换前head的根树hash
+     * @param newTree 切换后head的根树hash
+     * @return 更新失败的文件，每个失败的文件都已经打印了错误信息，其余文件照常更新
+     */
+    public List<String> run(String oldTree, String newTree) {
+        //暂存区是空的（例如老版本在切换分支时清空了暂存区），没法增量更新，按新树完整地重建
+        if (stage.getNumberOfStagedFiles() == 0) {
+            for (Map.Entry<String, String> file : Tree.flatten(newTree).entrySet())
+                stage.trackHash(toStageName(file.getKey()), file.getValue());
+        }
+        List<TreeDiff.Change> changes = TreeDiff.diff(oldTree, newTree);
+        List<String> failed = new ArrayList<>();
+        //先删除再写入，文件变成同名文件夹（或者反过来）时不会冲突
+        for (TreeDiff.Change change : changes) {
+            if (change.getNewHash() != null)
+                continue;
+            String filename = toStageName(change.getPath());
+            try {
+                remove(Paths.get(filename));
+                stage.untrack(filename);
+            } catch (IOException e) {
+                fail(filename, e, failed);
+            }
+        }
+        List<TreeDiff.Change> writes = new ArrayList<>();
+        for (TreeDiff.Change change : changes) {
+            if (change.getNewHash() != null)
+                writes.add(change);
+        }
+        if (!writes.isEmpty())
+            writeAll(writes, failed);
+        return failed;
+    }
+
+    private void writeAll(List<TreeDiff.Change> writes, List<String> failed) {
+        createDirectories(writes);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, writes.size()));
+        try {
+            List<Future<BasicFileAttributes>> results = new ArrayList<>(writes.size());
+            for (TreeDiff.Change change : writes) {
+                String filename = toStageName(change.getPath());
+                results.add(pool.submit(() -> write(Paths.get(filename), filename, change.getNewHash())));
+            }
+            //全部写完之后再统一修改暂存区，工作线程查询暂存区时不会有其他线程同时修改它
+            BasicFileAttributes[] attrs = new BasicFileAttributes[writes.size()];
+            for (int i = 0; i < writes.size(); i++) {
+                try {
+                    attrs[i] = results.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    fail(toStageName(writes.get(i).getPath()),
+                            cause instanceof IOException ? (IOException) cause : new IOException(cause), failed);
+                }
+            }
+            for (int i = 0; i < writes.size(); i++) {
+                if (attrs[i] != null)
+                    stage.trackFile(toStageName(writes.get(i).getPath()), writes.get(i).getNewHash(), attrs[i]);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * 按路径顺序创建所有需要的文件夹，上级文件夹总是先于下级创建，工作线程不需要再创建文件夹
+     */
+    private static void createDirectories(List<TreeDiff.Change> writes) {
+        Set<Path> dirs = new TreeSet<>();
+        for (TreeDiff.Change change : writes) {
+            Path parent = Paths.get(toStageName(change.getPath())).getParent();
+            if (parent != null)
+                dirs.add(parent);
+        }
+        for (Path dir : dirs) {
+            try {
+                Files.createDirectories(dir);
+            } catch (IOException ignored) {
+                //文件夹下的每个文件写入时都会失败，并且会逐个报告
+            }
+        }
+    }
+
+    /**
+     * 写出一个文件
+     * @return 写完之后的文件状态，工作目录里已经是这个版本、不需要写时返回null
+     */
+    private BasicFileAttributes write(Path file, String filename, String hash) throws IOException {
+        //工作目录里已经是新版本了（状态和暂存区记录一致），不用再写；暂存的hash都不一样时连文件状态都不用读
+        if (hash.equals(stage.getHash(filename))) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                if (hash.equals(stage.getCachedHash(filename, attrs)))
+                    return null;
+            } catch (NoSuchFileException ignored) { }
+        }
+        //先写到同一文件夹下的临时文件再改名，不会留下写了一半的文件。
+        //同一文件夹下文件名不会重复，临时文件名也就不会冲突，省掉createTempFile多出来的一次打开文件
+        Path tmp = file.resolveSibling(".jgit-" + file.getFileName() + ".tmp");
+        try {
+            blobPool.copyObject(hash, tmp);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+    /**
+     * 删除文件，然后删掉因此变空的上级文件夹
+     */
+    private static void remove(Path file) throws IOException {
+        Files.deleteIfExists(file);
+        for (Path dir = file.getParent(); dir != null; dir = dir.getParent()) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                if (children.iterator().hasNext())
+                    break;
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static void fail(String filename, IOException e, List<String> failed) {
+        System.err.println("error: could not update " + filename + ": " + e);
+        failed.add(filename);
+    }
+
+    /**
+     * 树里的路径统一用'/'分隔，暂存区和工作目录使用系统的分隔符
+     */
+    private static String toStageName(String treePath) {
+        return Paths.get(treePath).toString();
+    }
+}
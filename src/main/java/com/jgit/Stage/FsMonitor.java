@@ -0,0 +1,377 @@
+package com.jgit.Stage;
+
+import com.jgit.Utility.BinaryReader;
+import com.jgit.Utility.BinaryWriter;
+import com.jgit.Utility.Utils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * 文件系统监视进程：用WatchService监视工作目录，记录变化过的路径，status和add只需要检查这些路径
+ *
+ * 监视进程把"路径 -> 最后一次变化的序号"写进.git/fsmonitor，会话id加上当前序号就是token。
+ * status记下查询时的token，下次只复查序号比它大的路径和上次不干净的文件（见Stage.getUnclean）。
+ * 监视进程运行期间一直持有.git/fsmonitor.lock上的文件锁，锁能拿到说明监视进程没在运行；
+ * 监视进程重启或者事件溢出时换一个会话id，之前的token全部失效；任何一个.jgitignore变过时，
+ * 哪些文件被忽略都可能变了。这几种情况下都退回到完整扫描
+ *
+ * 监视进程收到事件后要等一会儿才写状态文件，有的平台上WatchService还是轮询实现的，
+ * 所以刚改完文件马上查询时状态文件可能还没记下这次修改。查询前先在.git/fsmonitor-cookies下
+ * 建一个cookie文件，等状态文件里出现这个cookie，说明在它之前发生的事件都已经记下了；
+ * 等不到就完整扫描
+ */
+public class FsMonitor {
+
+    //状态文件的魔数"JFSM"和版本号，见BinaryWriter
+    private static final int MAGIC = 0x4a46534d;
+    private static final int VERSION = 2;
+
+    //收到事件后再等这么久，把一批事件合在一起写一次状态文件
+    private static final long BATCH_MILLIS = 50;
+    //事件一直不断时，最多攒这么久也要写一次
+    private static final long MAX_BATCH_MILLIS = 1000;
+
+    //查询时最多等这么久，监视进程还没记下cookie就完整扫描
+    private static final long COOKIE_TIMEOUT_MILLIS = 1000;
+    //等cookie时每隔这么久重读一次状态文件
+    private static final long COOKIE_POLL_MILLIS = 2;
+
+    /**
+     * 一次查询的结果
+     */
+    public static class Changes {
+        private final String token;
+        private final Set<String> paths;
+
+        private Changes(String token, Set<String> paths) {
+            this.token = token;
+            this.paths = paths;
+        }
+
+        //查询时监视进程的token，这次检查完之后记进暂存区
+        public String getToken() { return token; }
+
+        //自上次token以来变化过的路径（可能是文件夹，也可能已经不存在），为null表示需要完整扫描
+        public Set<String> getPaths() { return paths; }
+    }
+
+    /**
+     * 查询自token以来变化过的路径
+     * @param token 暂存区记录的token，可以为null
+     * @return 监视进程没在运行或者没能和它同步时返回null
+     */
+    public static Changes query(String token) {
+        if (!isRunning())
+            return null;
+        Path cookie = Utils.getFsMonitorCookiesPath().resolve(UUID.randomUUID().toString());
+        try {
+            Files.createFile(cookie);
+        } catch (IOException e) {
+            //cookie文件夹由监视进程创建，不存在说明监视进程还没开始监视
+            return null;
+        }
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COOKIE_TIMEOUT_MILLIS);
+            while (true) {
+                Changes changes = read(token, cookie.getFileName().toString());
+                if (changes != null)
+                    return changes;
+                if (System.nanoTime() >= deadline)
+                    return null;
+                Thread.sleep(COOKIE_POLL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            try {
+                Files.deleteIfExists(cookie);
+            } catch (IOException ignored) {
+                //删不掉的cookie不影响结果，监视进程重启时会清掉
+            }
+        }
+    }
+
+    /**
+     * 读状态文件
+     * @param cookie 这次查询建的cookie文件名
+     * @return 状态文件里还没有这个cookie，或者还没写出来、已经损坏时返回null
+     */
+    private static Changes read(String token, String cookie) {
+        try {
+            BinaryReader in = new BinaryReader(BinaryReader.readFile(Utils.getFsMonitorPath()), MAGIC, VERSION);
+            String session = in.readString();
+            long seq = in.readVarInt();
+            String current = session + ":" + seq;
+            int n = in.readInt();
+            Map<String, Long> changed = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++)
+                changed.put(in.readString(), in.readVarInt());
+            if (!readCookies(in).contains(cookie))
+                return null;
+            long since = sequenceSince(token, session);
+            if (since < 0 || since > seq)
+                return new Changes(current, null);
+            Set<String> paths = new HashSet<>();
+            for (Map.Entry<String, Long> e : changed.entrySet()) {
+                if (e.getValue() <= since)
+                    continue;
+                //忽略规则变了，原来被忽略的文件可能不再被忽略，反过来也一样，只能完整扫描
+                if (Paths.get(e.getKey()).getFileName().toString().equals(IgnoreRules.FILE_NAME))
+                    return new Changes(current, null);
+                paths.add(e.getKey());
+            }
+            return new Changes(current, paths);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 版本1的状态文件没有cookie，返回空集合，查询会一直等到超时然后完整扫描
+     */
+    private static Set<String> readCookies(BinaryReader in) throws IOException {
+        Set<String> cookies = new HashSet<>();
+        if (in.getVersion() < 2)
+            return cookies;
+        int n = in.readInt();
+        for (int i = 0; i < n; i++)
+            cookies.add(in.readString());
+        return cookies;
+    }
+
+    /**
+     * @return token里的序号，token为null或者属于别的会话时返回-1
+     */
+    private static long sequenceSince(String token, String session) {
+        if (token == null)
+            return -1;
+        int colon = token.lastIndexOf(':');
+        if (colon < 0 || !token.substring(0, colon).equals(session))
+            return -1;
+        try {
+            return Long.parseLong(token.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 监视进程持有锁文件上的锁；锁文件不存在或者锁能拿到，说明监视进程没在运行
+     */
+    private static boolean isRunning() {
+        try (FileChannel channel = FileChannel.open(Utils.getFsMonitorLockPath(), StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null)
+                return true;
+            lock.release();
+            return false;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            //不确定时按没在运行处理，最多多做一次完整扫描
+            return false;
+        }
+    }
+
+    private final WatchService watcher;
+    //WatchKey -> 被监视的文件夹，相对于仓库主文件夹
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    //路径 -> 最后一次变化的序号
+    private final Map<String, Long> changed = new HashMap<>();
+    //收到过创建事件、还没被删掉的cookie
+    private final Set<String> cookies = new HashSet<>();
+    //这一批事件里有没有新的cookie，有的话马上写状态文件，不再等后面的事件
+    private boolean cookieSeen;
+    private String session;
+    private long seq;
+
+    private FsMonitor(WatchService watcher) {
+        this.watcher = watcher;
+    }
+
+    /**
+     * 在前台运行监视进程，直到进程被杀掉或者.git被删除
+     * @return 已经有监视进程在运行时返回false
+     */
+    public static boolean run() throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(Utils.getFsMonitorLockPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock();
+             WatchService watcher = Paths.get("").toAbsolutePath().getFileSystem().newWatchService()) {
+            if (lock == null)
+                return false;
+            new FsMonitor(watcher).loop();
+            return true;
+        }
+    }
+
+    private void loop() throws IOException, InterruptedException {
+        newSession();
+        registerCookies();
+        register(Paths.get(""), false);
+        save();
+        while (Files.isDirectory(Utils.getGitDirPath())) {
+            WatchKey key = watcher.poll(MAX_BATCH_MILLIS, TimeUnit.MILLISECONDS);
+            if (key == null)
+                continue;
+            seq++;
+            boolean overflow = false;
+            cookieSeen = false;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_BATCH_MILLIS);
+            //WatchService按事件发生的顺序排队，处理到cookie时它之前的事件都已经处理过了
+            do {
+                overflow |= handle(key);
+            } while (!cookieSeen && System.nanoTime() < deadline
+                    && (key = watcher.poll(BATCH_MILLIS, TimeUnit.MILLISECONDS)) != null);
+            //丢了事件，已经不知道哪些文件变过了，换一个会话，所有人下次都完整扫描
+            if (overflow)
+                newSession();
+            save();
+        }
+    }
+
+    /**
+     * @return 是否发生了事件溢出
+     */
+    private boolean handle(WatchKey key) throws IOException {
+        Path dir = keys.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || dir == null) {
+                overflow = true;
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (dir.equals(Utils.getFsMonitorCookiesPath())) {
+                handleCookie(event, path.getFileName().toString());
+                continue;
+            }
+            if (isIgnored(path))
+                continue;
+            boolean isDir = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+            //文件夹的修改事件只表示其中的文件变了，那些文件各自有事件
+            if (event.kind() == ENTRY_MODIFY && isDir)
+                continue;
+            changed.put(path.toString(), seq);
+            //新建的文件夹要开始监视，监视之前就已经在里面的文件直接算作变化过
+            if (event.kind() == ENTRY_CREATE && isDir)
+                register(path, true);
+        }
+        if (!key.reset())
+            keys.remove(key);
+        return overflow;
+    }
+
+    private void handleCookie(WatchEvent<?> event, String cookie) {
+        if (event.kind() == ENTRY_CREATE) {
+            cookies.add(cookie);
+            cookieSeen = true;
+        } else if (event.kind() == ENTRY_DELETE) {
+            cookies.remove(cookie);
+        }
+    }
+
+    /**
+     * 建好cookie文件夹并开始监视，上次运行留下的cookie没人再等了，直接删掉
+     */
+    private void registerCookies() throws IOException {
+        Path dir = Utils.getFsMonitorCookiesPath();
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path cookie : stream)
+                Files.deleteIfExists(cookie);
+        }
+        keys.put(dir.toAbsolutePath().register(watcher, ENTRY_CREATE, ENTRY_DELETE), dir);
+    }
+
+    /**
+     * 监视一个文件夹及其所有子文件夹
+     * @param markFiles 是否把其中已有的文件都记为变化过
+     */
+    private void register(Path start, boolean markFiles) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (isIgnored(dir))
+                    return FileVisitResult.SKIP_SUBTREE;
+                WatchKey key = dir.toAbsolutePath().register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                keys.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (markFiles)
+                    changed.put(file.toString(), seq);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                //建好就被删掉的文件夹，删除事件会另外报告
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * 和add、status一样，忽略主文件夹下以'.'开头的文件和文件夹（包括.git），
+     * 但是主文件夹下的.jgitignore要报告，它变了之后需要完整扫描，见query
+     */
+    private static boolean isIgnored(Path path) {
+        String s = path.toString();
+        return !s.isEmpty() && s.charAt(0) == '.' && !s.equals(IgnoreRules.FILE_NAME);
+    }
+
+    private void newSession() {
+        session = UUID.randomUUID().toString();
+        seq = 0;
+        changed.clear();
+    }
+
+    /**
+     * 状态文件格式：会话id、当前序号、路径数，然后每个路径依次为路径和最后一次变化的序号，
+     * 最后是cookie数和各个cookie的文件名
+     */
+    private void save() throws IOException {
+        BinaryWriter out = new BinaryWriter(MAGIC, VERSION);
+        out.writeString(session);
+        out.writeVarInt(seq);
+        out.writeVarInt(changed.size());
+        for (Map.Entry<String, Long> e : changed.entrySet()) {
+            out.writeString(e.getKey());
+            out.writeVarInt(e.getValue());
+        }
+        out.writeVarInt(cookies.size());
+        for (String cookie : cookies)
+            out.writeString(cookie);
+        out.writeTo(Utils.getFsMonitorPath());
+    }
+}
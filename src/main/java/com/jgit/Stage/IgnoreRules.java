@@ -0,0 +1,282 @@
+package com.jgit.Stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * .jgitignore忽略规则，语义和.gitignore一致
+ *
+ * 每个文件夹下都可以有.jgitignore，其中的规则相对于所在文件夹；下层文件夹的规则优先，同一个文件里后面的规则优先。
+ * 支持'#'注释、'!'取反、结尾的'/'（只匹配文件夹）、中间含'/'的规则（相对于所在文件夹定位）、'*'、'?'、'[...]'和'**'。
+ * 不含通配符的文件名规则放在hash表里直接查，其余规则编译成正则自动机。
+ * 遍历工作目录时整个跳过被忽略的文件夹，和git一样，被忽略的文件夹里的文件不能再被规则重新包含
+ *
+ * 一个对象对应一个.jgitignore，通过parent连到上层文件夹的规则；对象创建之后不再修改，可以被多个线程共用
+ */
+public class IgnoreRules {
+
+    public static final String FILE_NAME = ".jgitignore";
+
+    private static class Rule {
+        final boolean negate;
+        final boolean dirOnly;
+        //含'/'的规则匹配相对于base的整个路径，否则只匹配文件名
+        final boolean anchored;
+        //不含通配符的文件名规则为null
+        final Pattern pattern;
+
+        Rule(boolean negate, boolean dirOnly, boolean anchored, Pattern pattern) {
+            this.negate = negate;
+            this.dirOnly = dirOnly;
+            this.anchored = anchored;
+            this.pattern = pattern;
+        }
+    }
+
+    private final IgnoreRules parent;
+    //规则文件所在的文件夹，相对于仓库主文件夹，用'/'分隔并以'/'结尾，主文件夹为""
+    private final String base;
+    private final List<Rule> rules;
+    //不含通配符的文件名规则：文件名 -> 最后一条规则的下标，分别用于匹配文件和文件夹
+    private final Map<String, Integer> literalFiles = new HashMap<>();
+    private final Map<String, Integer> literalDirs = new HashMap<>();
+    //仓库主文件夹和按文件夹缓存的规则，只在主文件夹的对象里使用，见isIgnoredPath
+    private Path root;
+    private final Map<String, IgnoreRules> frames;
+
+    private IgnoreRules(IgnoreRules parent, String base, List<Rule> rules, List<String> literals) {
+        this.parent = parent;
+        this.base = base;
+        this.rules = rules;
+        for (int i = 0; i < rules.size(); i++) {
+            if (rules.get(i).pattern != null)
+                continue;
+            literalDirs.put(literals.get(i), i);
+            if (!rules.get(i).dirOnly)
+                literalFiles.put(literals.get(i), i);
+        }
+        this.frames = parent == null ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * 读取主文件夹下的.jgitignore，没有时返回不忽略任何文件的规则
+     * @param root 仓库主文件夹
+     */
+    public static IgnoreRules load(Path root) {
+        IgnoreRules rules = parse(null, root, "");
+        rules.root = root;
+        return rules;
+    }
+
+    /**
+     * 进入一个子文件夹，文件夹下有.jgitignore时返回叠加了其中规则的对象，否则返回this
+     * @param dir 子文件夹
+     * @param prefix 子文件夹相对于仓库主文件夹的路径，以分隔符结尾
+     */
+    public IgnoreRules enter(Path dir, String prefix) {
+        IgnoreRules child = parse(this, dir, toSlashes(prefix));
+        return child == null ? this : child;
+    }
+
+    /**
+     * 只根据当前对象及其上层的规则判断，不检查上层文件夹本身是否被忽略，遍历时用
+     * @param path 相对于仓库主文件夹的路径
+     */
+    public boolean isIgnored(String path, boolean isDir) {
+        String p = toSlashes(path);
+        String name = p.substring(p.lastIndexOf('/') + 1);
+        for (IgnoreRules frame = this; frame != null; frame = frame.parent) {
+            int i = frame.lastMatch(p, name, isDir);
+            if (i >= 0)
+                return !frame.rules.get(i).negate;
+        }
+        return false;
+    }
+
+    /**
+     * 判断任意路径是否被忽略：上层文件夹被忽略时，其中所有文件都被忽略。只能在load返回的对象上调用
+     * @param path 相对于仓库主文件夹的路径
+     */
+    public boolean isIgnoredPath(String path, boolean isDir) {
+        IgnoreRules frame = parentFrame(path);
+        return frame == null || frame.isIgnored(path, isDir);
+    }
+
+    /**
+     * 求判断一个路径时适用的规则，即从主文件夹到它所在文件夹的各层规则叠加的结果，沿途文件夹的规则会缓存下来。
+     * 只能在load返回的对象上调用
+     * @param path 相对于仓库主文件夹的路径
+     * @return 沿途有文件夹被忽略时返回null
+     */
+    public IgnoreRules parentFrame(String path) {
+        IgnoreRules frame = this;
+        StringBuilder prefix = new StringBuilder();
+        Path p = Paths.get(path);
+        for (int i = 0; i < p.getNameCount() - 1; i++) {
+            prefix.append(p.getName(i)).append(File.separator);
+            String dir = prefix.toString();
+            if (frame.isIgnored(dir.substring(0, dir.length() - 1), true))
+                return null;
+            IgnoreRules parent = frame;
+            frame = frames.computeIfAbsent(dir, d -> parent.enter(root.resolve(d), d));
+        }
+        return frame;
+    }
+
+    /**
+     * @return 当前文件中最后一条匹配的规则的下标，没有匹配的规则时返回-1
+     */
+    private int lastMatch(String path, String name, boolean isDir) {
+        if (rules.isEmpty() || !path.startsWith(base))
+            return -1;
+        String relative = path.substring(base.length());
+        Integer literal = (isDir ? literalDirs : literalFiles).get(name);
+        int best = literal == null ? -1 : literal;
+        for (int i = rules.size() - 1; i > best; i--) {
+            Rule rule = rules.get(i);
+            if (rule.pattern == null || (rule.dirOnly && !isDir))
+                continue;
+            if (rule.pattern.matcher(rule.anchored ? relative : name).matches())
+                return i;
+        }
+        return best;
+    }
+
+    /**
+     * @return 文件夹下没有.jgitignore时返回null
+     */
+    private static IgnoreRules parse(IgnoreRules parent, Path dir, String base) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(dir.resolve(FILE_NAME), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return parent == null ? new IgnoreRules(null, base, new ArrayList<>(), new ArrayList<>()) : null;
+        } catch (IOException e) {
+            System.err.println("warning: could not read " + dir.resolve(FILE_NAME) + ": " + e);
+            return parent == null ? new IgnoreRules(null, base, new ArrayList<>(), new ArrayList<>()) : null;
+        }
+        List<Rule> rules = new ArrayList<>();
+        List<String> literals = new ArrayList<>();
+        for (String line : lines) {
+            line = trimTrailingSpaces(line);
+            if (line.isEmpty() || line.charAt(0) == '#')
+                continue;
+            boolean negate = line.charAt(0) == '!';
+            if (negate || line.startsWith("\\!") || line.startsWith("\\#"))
+                line = line.substring(1);
+            boolean dirOnly = line.endsWith("/");
+            if (dirOnly)
+                line = line.substring(0, line.length() - 1);
+            boolean anchored = line.indexOf('/') >= 0;
+            if (line.startsWith("/"))
+                line = line.substring(1);
+            if (line.isEmpty())
+                continue;
+            boolean literal = !anchored && !hasWildcard(line);
+            rules.add(new Rule(negate, dirOnly, anchored, literal ? null : Pattern.compile(toRegex(line))));
+            literals.add(literal ? line : null);
+        }
+        return new IgnoreRules(parent, base, rules, literals);
+    }
+
+    /**
+     * 去掉行尾没有用'\'转义的空格
+     */
+    private static String trimTrailingSpaces(String line) {
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\'))
+            end--;
+        return line.substring(0, end);
+    }
+
+    private static boolean hasWildcard(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '\\')
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * 把通配符规则翻译成正则：'*'和'?'不跨越'/'，"**&#47;"匹配任意层文件夹，"/**"匹配文件夹下的一切
+     */
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int n = glob.length();
+        for (int i = 0; i < n; i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < n && glob.charAt(i + 1) == '*'
+                    && (i == 0 || glob.charAt(i - 1) == '/')) {
+                if (i + 2 == n) {
+                    regex.append(".*");
+                    i++;
+                    continue;
+                }
+                if (glob.charAt(i + 2) == '/') {
+                    regex.append("(?:.*/)?");
+                    i += 2;
+                    continue;
+                }
+            }
+            switch (c) {
+                case '*':
+                    while (i + 1 < n && glob.charAt(i + 1) == '*')
+                        i++;
+                    regex.append("[^/]*");
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[': {
+                    int close = glob.indexOf(']', i + 2);
+                    if (close < 0) {
+                        regex.append("\\[");
+                        break;
+                    }
+                    regex.append('[');
+                    int j = i + 1;
+                    if (glob.charAt(j) == '!' || glob.charAt(j) == '^') {
+                        regex.append('^');
+                        j++;
+                    }
+                    for (; j < close; j++) {
+                        char k = glob.charAt(j);
+                        if (k == '\\' || k == '[' || k == '&' || k == '^')
+                            regex.append('\\');
+                        regex.append(k);
+                    }
+                    regex.append(']');
+                    i = close;
+                    break;
+                }
+                case '\\':
+                    if (i + 1 < n)
+                        c = glob.charAt(++i);
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                    break;
+                default:
+                    if (Character.isLetterOrDigit(c) || c == '/')
+                        regex.append(c);
+                    else
+                        regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+
+    private static String toSlashes(String path) {
+        return File.separatorChar == '/' ? path : path.replace(File.separatorChar, '/');
+    }
+}
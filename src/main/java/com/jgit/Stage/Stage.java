@@ -2,52 +2,259 @@ package com.jgit.Stage;
 
 
 
+import com.jgit.Utility.BinaryReader;
+import com.jgit.Utility.BinaryWriter;
 import com.jgit.Utility.Exceptions.NotStagedException;
+import com.jgit.Utility.ObjectId;
 import com.jgit.Utility.Utils;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 抽象暂存区相关操作的类
  */
 public class Stage implements Serializable {
 
+    private static final long serialVersionUID = 617035807658734068L;
+
+    //文件系统修改时间的粒度可能粗到秒级，判断记录是否可疑时留出余量
+    private static final long RACY_WINDOW_MILLIS = 2000;
+
+    //二进制格式的魔数"JSTG"和版本号，见BinaryWriter
+    private static final int MAGIC = 0x4a535447;
+    //版本2增加了文件系统监视进程的token和待复查的文件，见FsMonitor
+    private static final int VERSION = 2;
+
     //tracking files list.
-    //map the name of a file to the hash of the newest version of the file.
-    private Map<String, String> tracking = new HashMap<>();
+    //map the name of a file to the hash and stat data of the newest version of the file.
+    private Map<String, StageEntry> tracking = new HashMap<>();
+    //暂存区文件上次写入磁盘的时间（纳秒），修改时间不早于它的记录是"可疑"的，见StageEntry.isUpToDate
+    private transient long racyCutoff = Long.MAX_VALUE;
+    //暂存的文件或者文件状态变过，需要写回stage
+    private transient boolean dirty = true;
+    //上次status对应的FsMonitor token，null表示下次status需要完整扫描
+    private transient String monitorToken;
+    //上次status时不干净的文件（修改、删除、未跟踪），以及之后在工作目录之外改动过暂存记录的文件，
+    //有monitorToken时这些文件即使没有变化也要复查
+    private transient Set<String> unclean = new HashSet<>();
 
+    /**
+     * 读取暂存区文件，老版本Repo的Java序列化格式也能读，读出来之后标记为修改过，下次写回时转换成二进制格式
+     */
     public static Stage deSerialFrom(Path path) {
         try {
-            ObjectInputStream in = new ObjectInputStream(new FileInputStream(path.toString()));
-            return (Stage) in.readObject();
+            ByteBuffer buf = BinaryReader.readFile(path);
+            Stage stage;
+            if (BinaryReader.isJavaSerialized(buf)) {
+                stage = (Stage) new ObjectInputStream(BinaryReader.asStream(buf)).readObject();
+                stage.dirty = true;
+            } else {
+                stage = decode(new BinaryReader(buf, MAGIC, VERSION));
+            }
+            stage.racyCutoff = Files.getLastModifiedTime(path).to(TimeUnit.NANOSECONDS);
+            return stage;
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
             return null;
         }
     }
 
-    public void trackFile(List<Path> files) {
-        for(Path file : files) {
-            String s = Utils.getRelativeDir(file);
-            String sha1 = Utils.encrypt(file, "SHA-1");
-            tracking.put(s, sha1);
+    /**
+     * 二进制格式：记录数，然后每条记录依次为文件名和StageEntry；
+     * 版本2接着是monitorToken、待复查的文件数和文件名
+     */
+    public void saveTo(Path path) throws IOException {
+        smudgeRacyEntries();
+        BinaryWriter out = new BinaryWriter(MAGIC, VERSION);
+        out.writeVarInt(tracking.size());
+        for (Map.Entry<String, StageEntry> e : tracking.entrySet()) {
+            out.writeString(e.getKey());
+            e.getValue().encode(out);
+        }
+        out.writeString(monitorToken);
+        out.writeVarInt(unclean.size());
+        for (String filename : unclean)
+            out.writeString(filename);
+        out.writeTo(path);
+    }
+
+    private static Stage decode(BinaryReader in) throws IOException {
+        Stage stage = new Stage();
+        int n = in.readInt();
+        stage.tracking = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++)
+            stage.tracking.put(in.readString(), StageEntry.decode(in));
+        if (in.getVersion() >= 2) {
+            stage.monitorToken = in.readString();
+            int m = in.readInt();
+            for (int i = 0; i < m; i++)
+                stage.unclean.add(in.readString());
+        }
+        stage.dirty = false;
+        return stage;
+    }
+
+    /**
+     * 老版本暂存区只记录了hash，并且hash丢掉了前导0，
+     * 反序列化时转换成状态未知的记录，hash补齐成定长，下次比较时会重新计算hash
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        unclean = new HashSet<>();
+        Map<String, Object> raw = (Map<String, Object>) (Map<String, ?>) tracking;
+        raw.replaceAll((name, v) -> v instanceof String ? StageEntry.ofHash(Utils.padHash((String) v)) : v);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        smudgeRacyEntries();
+        out.defaultWriteObject();
+    }
+
+    /**
+     * 写入磁盘前，抹掉修改时间离现在太近的记录的文件状态
+     *
+     * 这些文件可能在暂存之后、同一个时间刻度内又被修改过，修改时间却没有变化，
+     * 如果留着它们的状态，等暂存区文件本身的修改时间越过去之后，就再也发现不了这次修改了
+     */
+    private void smudgeRacyEntries() {
+        long cutoff = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - RACY_WINDOW_MILLIS);
+        tracking.replaceAll((name, entry) -> entry.getMtime() >= cutoff ? entry.smudge() : entry);
+    }
+
+    /**
+     * 暂存一个文件的最新版本
+     * @param filename 相对于仓库主文件夹的路径
+     * @param hash 文件内容的hash
+     * @param attrs 计算hash之前读取的文件状态
+     */
+    public void trackFile(String filename, String hash, BasicFileAttributes attrs) {
+        trackFile(filename, ObjectId.fromString(hash), attrs);
+    }
+
+    public void trackFile(String filename, ObjectId id, BasicFileAttributes attrs) {
+        tracking.put(filename, StageEntry.of(id, attrs));
+        dirty = true;
+    }
+
+    /**
+     * 只知道hash、不知道文件状态时暂存，下次比较时一定会重新计算hash
+     */
+    public void trackHash(String filename, String hash) {
+        tracking.put(filename, StageEntry.ofHash(hash));
+        markUnclean(filename);
+        dirty = true;
+    }
+
+    /**
+     * 取消暂存，文件不在暂存区时什么都不做
+     */
+    public void untrack(String filename) {
+        if (tracking.remove(filename) != null) {
+            markUnclean(filename);
+            dirty = true;
         }
     }
 
-    public List<String> getHashesOfStagedFiles(){
-        return new ArrayList<>(tracking.values());
+    /**
+     * 暂存记录变了，工作目录里的文件却没有变化，FsMonitor不会报告它，下次status要专门复查
+     */
+    private void markUnclean(String filename) {
+        if (monitorToken != null)
+            unclean.add(filename);
+    }
+
+    public String getMonitorToken() {
+        return monitorToken;
+    }
+
+    /**
+     * @return 有monitorToken时，除了FsMonitor报告的变化之外还需要复查的文件
+     */
+    public Set<String> getUnclean() {
+        return Collections.unmodifiableSet(unclean);
+    }
+
+    /**
+     * status之后记录FsMonitor的token和这次不干净的文件
+     */
+    public void setMonitorState(String token, Collection<String> uncleanFiles) {
+        if (Objects.equals(token, monitorToken) && unclean.size() == uncleanFiles.size() && unclean.containsAll(uncleanFiles))
+            return;
+        monitorToken = token;
+        unclean = new HashSet<>(uncleanFiles);
+        dirty = true;
+    }
+
+    /**
+     * 文件状态和暂存时一致时，直接返回暂存的hash，不用重新读文件
+     * @return 暂存的hash，文件未暂存、状态不一致或者记录可疑时返回null
+     */
+    public String getCachedHash(String filename, BasicFileAttributes attrs) {
+        ObjectId id = getCachedObjectId(filename, attrs);
+        return id == null ? null : id.name();
+    }
+
+    /**
+     * 同上，不转换成十六进制字符串
+     */
+    public ObjectId getCachedObjectId(String filename, BasicFileAttributes attrs) {
+        StageEntry entry = tracking.get(filename);
+        return entry != null && entry.isUpToDate(attrs, racyCutoff) ? entry.getObjectId() : null;
+    }
+
+    /**
+     * @return 文件已暂存，并且状态和暂存时一致
+     */
+    public boolean isUpToDate(String filename, BasicFileAttributes attrs) {
+        return getCachedObjectId(filename, attrs) != null;
+    }
+
+    public boolean isTracked(String filename) {
+        return tracking.containsKey(filename);
+    }
+
+    /**
+     * @return 暂存的hash，文件未暂存时返回null
+     */
+    public String getHash(String filename) {
+        StageEntry entry = tracking.get(filename);
+        return entry == null ? null : entry.getHash();
+    }
+
+    /**
+     * 暂存区的只读快照，供其他线程查询状态缓存
+     */
+    public Stage snapshot() {
+        Stage copy = new Stage();
+        copy.tracking = new HashMap<>(tracking);
+        copy.racyCutoff = racyCutoff;
+        return copy;
+    }
+
+    public Set<Map.Entry<String, StageEntry>> getEntries() {
+        return tracking.entrySet();
     }
 
     public Map<String, String> getTrackingFiles() {
-        return new HashMap<>(tracking);
+        Map<String, String> files = new HashMap<>();
+        tracking.forEach((name, entry) -> files.put(name, entry.getHash()));
+        return files;
     }
 
     public int getNumberOfStagedFiles() {
@@ -55,13 +262,28 @@ public class Stage implements Serializable {
     }
 
     public void clear() {
-        tracking.clear();
+        if (!tracking.isEmpty()) {
+            tracking.clear();
+            //整个工作目录都变成了未跟踪文件，下次status重新完整扫描
+            monitorToken = null;
+            unclean.clear();
+            dirty = true;
+        }
     }
 
     public String untrackFile(Path file) throws NotStagedException {
         String filename = file.getFileName().toString();
         if (!tracking.containsKey(filename))
             throw new NotStagedException();
-        return tracking.remove(filename);
+        markUnclean(filename);
+        dirty = true;
+        return tracking.remove(filename).getHash();
+    }
+
+    /**
+     * 读取之后是否被修改过，没有修改过就不需要写回磁盘
+     */
+    public boolean isDirty() {
+        return dirty;
     }
 }
@@ -0,0 +1,135 @@
+package com.jgit.Stage;
+
+import com.jgit.Utility.BinaryReader;
+import com.jgit.Utility.BinaryWriter;
+import com.jgit.Utility.ObjectId;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 暂存区中的一条记录：文件内容的hash，以及暂存时文件的大小、修改时间和文件标识（inode）
+ *
+ * 文件状态和记录的完全一致时，可以认为文件没有被修改过，不需要重新计算hash
+ */
+public class StageEntry implements Serializable {
+
+    //和用Java序列化保存暂存区的版本一致，那时的暂存区文件依然可以读取
+    private static final long serialVersionUID = -6275608999004214508L;
+
+    //Java序列化格式里hash依然是十六进制字符串，见readObject和writeObject
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("hash", String.class),
+            new ObjectStreamField("size", long.class),
+            new ObjectStreamField("mtime", long.class),
+            new ObjectStreamField("fileKey", String.class),
+    };
+
+    //状态未知，任何文件状态都不会和它匹配
+    private static final long UNKNOWN_SIZE = -1;
+
+    //反序列化时需要赋值，所以不是final，对象创建之后不再修改
+    private transient ObjectId id;
+    private transient long size;
+    private transient long mtime;
+    private transient String fileKey;
+
+    private StageEntry(ObjectId id, long size, long mtime, String fileKey) {
+        this.id = id;
+        this.size = size;
+        this.mtime = mtime;
+        this.fileKey = fileKey;
+    }
+
+    public static StageEntry of(ObjectId id, BasicFileAttributes attrs) {
+        return new StageEntry(id, attrs.size(), mtimeOf(attrs), fileKeyOf(attrs));
+    }
+
+    /**
+     * 只知道hash、不知道文件状态的记录，例如老版本暂存区里的记录
+     */
+    public static StageEntry ofHash(String hash) {
+        return new StageEntry(ObjectId.fromString(hash), UNKNOWN_SIZE, 0, null);
+    }
+
+    /**
+     * 二进制格式：20字节hash、大小、修改时间、文件标识
+     */
+    void encode(BinaryWriter out) {
+        out.writeObjectId(id);
+        out.writeSignedVarLong(size);
+        out.writeSignedVarLong(mtime);
+        out.writeString(fileKey);
+    }
+
+    static StageEntry decode(BinaryReader in) throws IOException {
+        return new StageEntry(in.readObjectId(), in.readSignedVarLong(), in.readSignedVarLong(), in.readString());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        id = ObjectId.fromString((String) fields.get("hash", null));
+        size = fields.get("size", UNKNOWN_SIZE);
+        mtime = fields.get("mtime", 0L);
+        fileKey = (String) fields.get("fileKey", null);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("hash", id.name());
+        fields.put("size", size);
+        fields.put("mtime", mtime);
+        fields.put("fileKey", fileKey);
+        out.writeFields();
+    }
+
+    /**
+     * @return 40个字符的十六进制hash
+     */
+    public String getHash() {
+        return id.name();
+    }
+
+    public ObjectId getObjectId() {
+        return id;
+    }
+
+    public long getMtime() {
+        return mtime;
+    }
+
+    /**
+     * 保留hash，抹掉文件状态，下次比较时一定会重新计算hash
+     */
+    StageEntry smudge() {
+        return new StageEntry(id, UNKNOWN_SIZE, mtime, fileKey);
+    }
+
+    /**
+     * 判断文件当前的状态是否和记录一致
+     * @param racyCutoff 修改时间不早于这个时间（纳秒）的记录是"可疑"的：
+     *                   文件可能在暂存之后的同一个时间刻度内又被修改过，此时不能相信状态比较的结果
+     */
+    public boolean isUpToDate(BasicFileAttributes attrs, long racyCutoff) {
+        return size != UNKNOWN_SIZE
+                && mtime < racyCutoff
+                && size == attrs.size()
+                && mtime == mtimeOf(attrs)
+                && Objects.equals(fileKey, fileKeyOf(attrs));
+    }
+
+    static long mtimeOf(BasicFileAttributes attrs) {
+        return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    private static String fileKeyOf(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return key == null ? null : key.toString();
+    }
+}
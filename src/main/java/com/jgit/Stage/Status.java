@@ -0,0 +1,323 @@
+package com.jgit.Stage;
+
+import com.jgit.Commits.Tree;
+import com.jgit.Utility.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * status命令：比较HEAD、暂存区和工作目录
+ *
+ * 用fork-join并行地递归遍历工作目录，每个文件夹是一个任务，文件很多的文件夹再按文件切分；
+ * 暂存区和HEAD都用hash表查找，总开销和文件数成线性关系。
+ * 文件状态和暂存区记录一致时不用重新计算hash，内容其实没变的文件会刷新记录的文件状态。
+ * 被.jgitignore忽略的文件夹整个跳过（见IgnoreRules），其中已经跟踪的文件单独检查
+ */
+public class Status {
+
+    //一个任务最多直接处理这么多个文件，再多就切分成子任务
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * 比较的结果，每个列表都按文件名排序
+     */
+    public static class Result {
+        private final List<String> tracking, stagedNew, stagedModified, stagedRemoved,
+                modified, deleted, untracked;
+
+        private Result(List<String> tracking, List<String> stagedNew, List<String> stagedModified,
+                       List<String> stagedRemoved, List<String> modified, List<String> deleted,
+                       List<String> untracked) {
+            this.tracking = tracking;
+            this.stagedNew = stagedNew;
+            this.stagedModified = stagedModified;
+            this.stagedRemoved = stagedRemoved;
+            this.modified = modified;
+            this.deleted = deleted;
+            this.untracked = untracked;
+        }
+
+        //暂存区里的所有文件
+        public List<String> getTracking() { return tracking; }
+
+        //暂存了但是HEAD里没有的文件
+        public List<String> getStagedNew() { return stagedNew; }
+
+        //暂存的版本和HEAD不一样的文件
+        public List<String> getStagedModified() { return stagedModified; }
+
+        //HEAD里有但是已经不在暂存区的文件
+        public List<String> getStagedRemoved() { return stagedRemoved; }
+
+        //工作目录里的版本和暂存的不一样的文件
+        public List<String> getModified() { return modified; }
+
+        //暂存了但是工作目录里已经没有的文件
+        public List<String> getDeleted() { return deleted; }
+
+        //工作目录里有但是没有暂存的文件
+        public List<String> getUntracked() { return untracked; }
+    }
+
+    /**
+     * 内容没变、但是文件状态和记录的不一样的文件，遍历结束后在调用线程里刷新暂存区
+     */
+    private static class Refresh {
+        final String filename;
+        final String hash;
+        final BasicFileAttributes attrs;
+
+        Refresh(String filename, String hash, BasicFileAttributes attrs) {
+            this.filename = filename;
+            this.hash = hash;
+            this.attrs = attrs;
+        }
+    }
+
+    private final Stage stage;
+    private final String headTree;
+    private final int parallelism;
+
+    private Path root;
+
+    private final Set<String> seen = ConcurrentHashMap.newKeySet();
+    private final Collection<String> modified = new ConcurrentLinkedQueue<>();
+    private final Collection<String> untracked = new ConcurrentLinkedQueue<>();
+    private final Collection<Refresh> refreshes = new ConcurrentLinkedQueue<>();
+
+    public Status(Stage stage, String headTree) {
+        this(stage, headTree, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param headTree HEAD的根树hash
+     * @param parallelism 遍历工作目录的线程数
+     */
+    public Status(Stage stage, String headTree, int parallelism) {
+        this.stage = stage;
+        this.headTree = headTree;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * FsMonitor在运行并且暂存区的token还有效时，只检查它报告的变化过的路径和上次不干净的文件，
+     * 否则完整扫描；检查完之后把新的token和这次不干净的文件记进暂存区
+     * @param root 仓库主文件夹
+     */
+    public Result run(Path root) {
+        this.root = root;
+        FsMonitor.Changes changes = FsMonitor.query(stage.getMonitorToken());
+        Set<String> candidates = changes == null ? null : changes.getPaths();
+        //变化过的路径里已经不存在的和是文件夹的，它们下面的暂存文件都可能被删除了
+        Set<String> dirs = new HashSet<>();
+        IgnoreRules ignore = IgnoreRules.load(root);
+        List<RecursiveAction> tasks = new ArrayList<>();
+        if (candidates == null) {
+            tasks.add(new DirectoryTask(root, "", ignore));
+        } else {
+            candidates.addAll(stage.getUnclean());
+            List<String> files = new ArrayList<>();
+            for (String name : candidates) {
+                Path path = root.resolve(name);
+                IgnoreRules frame = ignore.parentFrame(name);
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    dirs.add(name);
+                    if (frame != null && !frame.isIgnored(name, true))
+                        tasks.add(new DirectoryTask(path, name + File.separator, frame));
+                } else if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                    if (frame != null && !frame.isIgnored(name, false))
+                        files.add(name);
+                } else {
+                    dirs.add(name);
+                }
+            }
+            addBatches(files, tasks);
+        }
+        Map<String, String> staged = stage.getTrackingFiles();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            invoke(pool, tasks);
+            //忽略规则只对未跟踪的文件起作用，被跳过的已跟踪文件逐个检查，检查不到的才是被删除了
+            List<String> skipped = new ArrayList<>();
+            for (String filename : staged.keySet()) {
+                if (!seen.contains(filename) && inScope(filename, candidates, dirs))
+                    skipped.add(filename);
+            }
+            tasks.clear();
+            addBatches(skipped, tasks);
+            invoke(pool, tasks);
+        } finally {
+            pool.shutdown();
+        }
+        for (Refresh r : refreshes)
+            stage.trackFile(r.filename, r.hash, r.attrs);
+
+        Map<String, String> head = new HashMap<>();
+        if (headTree != null)
+            Tree.flatten(headTree).forEach((path, hash) -> head.put(Paths.get(path).toString(), hash));
+        List<String> stagedNew = new ArrayList<>(), stagedModified = new ArrayList<>(),
+                stagedRemoved = new ArrayList<>(), deleted = new ArrayList<>();
+        for (Map.Entry<String, String> e : staged.entrySet()) {
+            String headHash = head.get(e.getKey());
+            if (headHash == null)
+                stagedNew.add(e.getKey());
+            else if (!headHash.equals(e.getValue()))
+                stagedModified.add(e.getKey());
+            if (!seen.contains(e.getKey()) && inScope(e.getKey(), candidates, dirs))
+                deleted.add(e.getKey());
+        }
+        for (String path : head.keySet()) {
+            if (!staged.containsKey(path))
+                stagedRemoved.add(path);
+        }
+        Result result = new Result(sorted(staged.keySet()), sorted(stagedNew), sorted(stagedModified),
+                sorted(stagedRemoved), sorted(modified), sorted(deleted), sorted(untracked));
+        if (changes != null) {
+            Set<String> unclean = new HashSet<>(result.modified);
+            unclean.addAll(result.deleted);
+            unclean.addAll(result.untracked);
+            stage.setMonitorState(changes.getToken(), unclean);
+        }
+        return result;
+    }
+
+    /**
+     * @return 这次是否检查了这个暂存文件：完整扫描时都检查了，否则只检查了报告的路径和这些路径下的文件
+     */
+    private static boolean inScope(String filename, Set<String> candidates, Set<String> dirs) {
+        if (candidates == null || candidates.contains(filename))
+            return true;
+        if (dirs.isEmpty())
+            return false;
+        for (Path p = Paths.get(filename).getParent(); p != null; p = p.getParent()) {
+            if (dirs.contains(p.toString()))
+                return true;
+        }
+        return false;
+    }
+
+    private void addBatches(List<String> files, List<RecursiveAction> tasks) {
+        for (int i = 0; i < files.size(); i += BATCH_SIZE)
+            tasks.add(new FileBatch(files.subList(i, Math.min(files.size(), i + BATCH_SIZE))));
+    }
+
+    private static void invoke(ForkJoinPool pool, List<RecursiveAction> tasks) {
+        if (tasks.isEmpty())
+            return;
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * 排序并去重，FsMonitor报告的文件夹和其中的文件可能都被检查了一遍
+     */
+    private static List<String> sorted(Collection<String> names) {
+        return new ArrayList<>(new TreeSet<>(names));
+    }
+
+    /**
+     * 处理一个文件夹：子文件夹各自作为子任务，文件按批处理
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private final Path dir;
+        private final String prefix;
+        private final IgnoreRules rules;
+
+        /**
+         * @param rules 上层文件夹的忽略规则，主文件夹的规则已经读好了
+         */
+        DirectoryTask(Path dir, String prefix, IgnoreRules rules) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.rules = rules;
+        }
+
+        @Override
+        protected void compute() {
+            IgnoreRules frame = prefix.isEmpty() ? rules : rules.enter(dir, prefix);
+            List<RecursiveAction> subtasks = new ArrayList<>();
+            List<String> files = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                for (Path child : children) {
+                    String name = child.getFileName().toString();
+                    //和add一样，跳过主文件夹下以'.'开头的文件和文件夹（包括.git）
+                    if (prefix.isEmpty() && name.charAt(0) == '.')
+                        continue;
+                    boolean isDir = Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+                    //被忽略的文件夹整个跳过，不再往下遍历
+                    if (frame.isIgnored(prefix + name, isDir))
+                        continue;
+                    if (isDir)
+                        subtasks.add(new DirectoryTask(child, prefix + name + File.separator, frame));
+                    else
+                        files.add(prefix + name);
+                }
+            } catch (IOException e) {
+                //读不了的文件夹当作不存在，其中暂存过的文件会报告为已删除
+                return;
+            }
+            addBatches(files, subtasks);
+            invokeAll(subtasks);
+        }
+    }
+
+    private class FileBatch extends RecursiveAction {
+        private final List<String> filenames;
+
+        FileBatch(List<String> filenames) {
+            this.filenames = filenames;
+        }
+
+        @Override
+        protected void compute() {
+            for (String filename : filenames)
+                check(root.resolve(filename), filename);
+        }
+    }
+
+    private void check(Path file, String filename) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return;
+        }
+        if (!stage.isTracked(filename)) {
+            untracked.add(filename);
+            return;
+        }
+        seen.add(filename);
+        //文件状态和暂存时完全一样，不需要重新计算hash
+        if (stage.isUpToDate(filename, attrs))
+            return;
+        String stagedHash = stage.getHash(filename);
+        if (!Utils.encrypt(file, "SHA-1").equals(stagedHash))
+            modified.add(filename);
+        else
+            //内容其实没变，刷新记录的文件状态，下次就不用再算hash了
+            refreshes.add(new Refresh(filename, stagedHash, attrs));
+    }
+}
@@ -0,0 +1,147 @@
+package com.jgit.Utility;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 按前缀查找ObjectId的有序索引，用于把用户输入的缩写解析成完整的id
+ *
+ * 所有id排好序后连续保存，另有一张按首字节划分的扇出表（和git的pack索引一样），
+ * 先用前缀的首字节直接定位到区间，再在区间内二分查找第一个不小于前缀的id，从那里往后数以前缀开头的id。
+ * 区间平均只有总数的1/256，查找代价是O(前缀长度 + log(n/256))，和直接比较完整的id一样不需要读取任何对象。
+ * 索引可以直接架在文件的映射内存上（例如commit图的每一层），不用先把id读出来再排序。
+ * 对象创建之后不再修改，可以被多个线程共用
+ */
+public class AbbreviationIndex {
+
+    private static final int FANOUT_SIZE = 256 * 4;
+
+    private final ByteBuffer buf;
+    //扇出表的位置，第b项为首字节不大于b的id个数
+    private final int fanoutAt;
+    //有序表的位置，每一项以20字节的id开头，项与项相隔stride字节
+    private final int entriesAt;
+    private final int stride;
+
+    /**
+     * 在已经排好序的表上查找，不复制数据
+     * @param buf 扇出表和有序表所在的内存，只按绝对位置读取
+     * @param fanoutAt 256项扇出表的位置，每项4字节，第b项为首字节不大于b的id个数
+     * @param entriesAt 有序表的位置，id按字节序排列且不重复
+     * @param stride 有序表每一项的长度，不小于20
+     */
+    public AbbreviationIndex(ByteBuffer buf, int fanoutAt, int entriesAt, int stride) {
+        this.buf = buf;
+        this.fanoutAt = fanoutAt;
+        this.entriesAt = entriesAt;
+        this.stride = stride;
+    }
+
+    /**
+     * @param ids 十六进制的完整id，可以有重复
+     */
+    public AbbreviationIndex(Collection<String> ids) {
+        ObjectId[] sorted = new ObjectId[ids.size()];
+        int n = 0;
+        for (String id : ids)
+            sorted[n++] = ObjectId.fromString(id);
+        Arrays.sort(sorted);
+        byte[] data = new byte[FANOUT_SIZE + n * Utils.HASH_LENGTH];
+        int[] fanout = new int[256];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && sorted[i].equals(sorted[i - 1]))
+                continue;
+            int at = FANOUT_SIZE + size * Utils.HASH_LENGTH;
+            sorted[i].copyRawTo(data, at);
+            fanout[data[at] & 0xFF]++;
+            size++;
+        }
+        this.buf = ByteBuffer.wrap(data);
+        for (int b = 0, sum = 0; b < 256; b++) {
+            sum += fanout[b];
+            buf.putInt(b * 4, sum);
+        }
+        this.fanoutAt = 0;
+        this.entriesAt = FANOUT_SIZE;
+        this.stride = Utils.HASH_LENGTH;
+    }
+
+    public int size() {
+        return buf.getInt(fanoutAt + 255 * 4);
+    }
+
+    /**
+     * 查找以prefix开头的id
+     * @param prefix 十六进制前缀，不区分大小写，长度1到40
+     * @param limit 最多返回这么多个，传2就足以判断前缀是否唯一
+     * @return 按顺序排列的完整id；prefix不是合法的十六进制前缀时返回空列表
+     */
+    public List<String> resolve(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        int len = prefix.length();
+        if (len == 0 || len > Utils.HASH_HEX_LENGTH)
+            return result;
+        //前缀后面补0，就是以它开头的id中最小的那个
+        byte[] low = new byte[Utils.HASH_LENGTH];
+        for (int i = 0; i < len; i++) {
+            int digit = Character.digit(prefix.charAt(i), 16);
+            if (digit < 0)
+                return result;
+            low[i >> 1] |= (i & 1) == 0 ? digit << 4 : digit;
+        }
+        int first = low[0] & 0xFF;
+        //只有一位时首字节的低4位不确定，区间覆盖16个首字节
+        int from = first == 0 ? 0 : fanout(first - 1), to = fanout(len == 1 ? first + 15 : first);
+        for (int i = lowerBound(from, to, low); i < to && result.size() < limit && startsWith(i, low, len); i++) {
+            byte[] id = new byte[Utils.HASH_LENGTH];
+            for (int k = 0; k < id.length; k++)
+                id[k] = buf.get(entriesAt + i * stride + k);
+            result.add(Utils.toHex(id));
+        }
+        return result;
+    }
+
+    private int fanout(int b) {
+        return buf.getInt(fanoutAt + b * 4);
+    }
+
+    /**
+     * @return [from, to)中第一个不小于key的id的下标
+     */
+    private int lowerBound(int from, int to, byte[] key) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (compare(mid, key) < 0)
+                from = mid + 1;
+            else
+                to = mid;
+        }
+        return from;
+    }
+
+    private int compare(int index, byte[] key) {
+        int offset = entriesAt + index * stride;
+        for (int i = 0; i < Utils.HASH_LENGTH; i++) {
+            int c = (buf.get(offset + i) & 0xFF) - (key[i] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    /**
+     * 第index个id的前len位十六进制数字是否和prefix相同，prefix按resolve里的方式编码
+     */
+    private boolean startsWith(int index, byte[] prefix, int len) {
+        int offset = entriesAt + index * stride;
+        for (int i = 0; i < len >> 1; i++) {
+            if (buf.get(offset + i) != prefix[i])
+                return false;
+        }
+        return (len & 1) == 0 || (buf.get(offset + (len >> 1)) & 0xF0) == (prefix[len >> 1] & 0xF0);
+    }
+}
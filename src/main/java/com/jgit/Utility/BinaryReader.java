@@ -0,0 +1,138 @@
+package com.jgit.Utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 读取BinaryWriter写出的元数据文件
+ */
+public class BinaryReader {
+
+    //Java序列化流的开头两个字节，老版本Repo的元数据文件都是这种格式
+    private static final short JAVA_SERIALIZATION_MAGIC = (short) 0xACED;
+
+    private final ByteBuffer buf;
+    private final int version;
+    private final String[] strings;
+
+    /**
+     * @param magic 期望的魔数
+     * @param maxVersion 本程序能读的最高格式版本
+     * @throws IOException 魔数不对、版本太新或者文件已经损坏
+     */
+    public BinaryReader(ByteBuffer buf, int magic, int maxVersion) throws IOException {
+        this.buf = buf;
+        try {
+            if (buf.getInt() != magic)
+                throw new IOException("bad magic number");
+            version = VarInt.readInt(buf);
+            if (version < 1 || version > maxVersion)
+                throw new IOException("unsupported format version " + version);
+            strings = new String[VarInt.readInt(buf)];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[VarInt.readInt(buf)];
+                buf.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("truncated file", e);
+        }
+    }
+
+    /**
+     * 通过FileChannel把整个文件读进内存
+     */
+    public static ByteBuffer readFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("file too large: " + path);
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining() && channel.read(buf) >= 0) { }
+            buf.flip();
+            return buf;
+        }
+    }
+
+    /**
+     * 判断文件内容是不是老版本用Java序列化写的
+     */
+    public static boolean isJavaSerialized(ByteBuffer buf) {
+        return buf.remaining() >= 2 && buf.getShort(buf.position()) == JAVA_SERIALIZATION_MAGIC;
+    }
+
+    /**
+     * 把文件内容包装成输入流，交给ObjectInputStream读取老格式
+     */
+    public static InputStream asStream(ByteBuffer buf) {
+        return new ByteArrayInputStream(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int readByte() throws IOException {
+        try {
+            return buf.get() & 0xFF;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated file", e);
+        }
+    }
+
+    public long readVarInt() throws IOException {
+        try {
+            return VarInt.read(buf);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated file", e);
+        }
+    }
+
+    public int readInt() throws IOException {
+        return (int) readVarInt();
+    }
+
+    public long readSignedVarLong() throws IOException {
+        long v = readVarInt();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public String readString() throws IOException {
+        int index = readInt();
+        if (index == 0)
+            return null;
+        if (index > strings.length)
+            throw new IOException("bad string index " + index);
+        return strings[index - 1];
+    }
+
+    public String readHash() throws IOException {
+        byte[] hash = new byte[Utils.HASH_LENGTH];
+        try {
+            buf.get(hash);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated file", e);
+        }
+        return Utils.toHex(hash);
+    }
+
+    /**
+     * 读取writeObjectId或者writeHash写入的20字节
+     */
+    public ObjectId readObjectId() throws IOException {
+        byte[] raw = new byte[Utils.HASH_LENGTH];
+        try {
+            buf.get(raw);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated file", e);
+        }
+        return ObjectId.wrap(raw);
+    }
+}
@@ -0,0 +1,126 @@
+package com.jgit.Utility;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Repo元数据文件（commitChain、stage、blobs、commit记录）的二进制编码
+ *
+ * 文件格式：魔数(4字节)、格式版本(varint)、字符串表、正文。
+ * 正文里的字符串只写它在字符串表里的下标，同一个路径、作者名出现多少次都只保存一份；
+ * hash按20字节原样保存，整数都用变长编码。读取见BinaryReader
+ */
+public class BinaryWriter {
+
+    private final int magic;
+    private final int version;
+    //正文直接写进字节数组，不经过流，省掉每个字节一次的方法调用和加锁
+    private byte[] body = new byte[4096];
+    private int size;
+    private final Map<String, Integer> stringIndex = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    public BinaryWriter(int magic, int version) {
+        this.magic = magic;
+        this.version = version;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > body.length)
+            body = Arrays.copyOf(body, Math.max(body.length * 2, size + extra));
+    }
+
+    public void writeByte(int b) {
+        ensureCapacity(1);
+        body[size++] = (byte) b;
+    }
+
+    /**
+     * 非负整数
+     */
+    public void writeVarInt(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            body[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        body[size++] = (byte) value;
+    }
+
+    /**
+     * 可能为负的整数，zigzag编码后绝对值小的数依然很短
+     */
+    public void writeSignedVarLong(long value) {
+        writeVarInt((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * 字符串写成字符串表里的下标加一，null写成0
+     */
+    public void writeString(String s) {
+        if (s == null) {
+            writeByte(0);
+            return;
+        }
+        Integer index = stringIndex.get(s);
+        if (index == null) {
+            index = strings.size();
+            strings.add(s);
+            stringIndex.put(s, index);
+        }
+        writeVarInt(index + 1);
+    }
+
+    /**
+     * 十六进制hash按20字节原样写入
+     */
+    public void writeHash(String hash) {
+        ensureCapacity(Utils.HASH_LENGTH);
+        Utils.fromHex(hash, body, size);
+        size += Utils.HASH_LENGTH;
+    }
+
+    /**
+     * 和writeHash的格式相同
+     */
+    public void writeObjectId(ObjectId id) {
+        ensureCapacity(Utils.HASH_LENGTH);
+        id.copyRawTo(body, size);
+        size += Utils.HASH_LENGTH;
+    }
+
+    public ByteBuffer toByteBuffer() {
+        List<byte[]> encoded = new ArrayList<>(strings.size());
+        int headerSize = 4 + 10 + 5;
+        for (String s : strings) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            headerSize += 5 + bytes.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(headerSize + size);
+        buf.putInt(magic);
+        VarInt.write(buf, version);
+        VarInt.write(buf, encoded.size());
+        for (byte[] bytes : encoded) {
+            VarInt.write(buf, bytes.length);
+            buf.put(bytes);
+        }
+        buf.put(body, 0, size);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * 写入文件，先写临时文件再改名，见Utils.writeAtomically
+     */
+    public void writeTo(Path path) throws IOException {
+        Utils.writeAtomically(path, toByteBuffer());
+    }
+}
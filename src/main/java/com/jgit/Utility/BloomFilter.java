@@ -0,0 +1,79 @@
+package com.jgit.Utility;
+
+import java.util.Collection;
+
+/**
+ * 字符串的Bloom过滤器：mightContain返回false时一定不包含，返回true时可能包含
+ *
+ * 每个元素占10位，用7个hash函数，误判率约1%。7个hash由一个64位FNV-1a hash的高低两半
+ * 按h1 + i * h2组合出来，每个元素只需要计算一次hash。对象创建之后不再修改
+ */
+public class BloomFilter {
+
+    private static final int BITS_PER_KEY = 10;
+    private static final int NUM_HASHES = 7;
+    //过滤器至少这么多字节，元素很少时误判率也不会太高
+    private static final int MIN_BYTES = 8;
+
+    private final byte[] bits;
+
+    private BloomFilter(byte[] bits) {
+        this.bits = bits;
+    }
+
+    public static BloomFilter of(Collection<String> keys) {
+        int bytes = keys.isEmpty() ? 1 : Math.max(MIN_BYTES, (keys.size() * BITS_PER_KEY + 7) / 8);
+        BloomFilter filter = new BloomFilter(new byte[bytes]);
+        for (String key : keys)
+            filter.add(key);
+        return filter;
+    }
+
+    /**
+     * @param bits toBytes返回的字节，之后不能再修改
+     */
+    public static BloomFilter fromBytes(byte[] bits) {
+        if (bits.length == 0)
+            throw new IllegalArgumentException("empty bloom filter");
+        return new BloomFilter(bits);
+    }
+
+    public byte[] toBytes() {
+        return bits.clone();
+    }
+
+    private void add(String key) {
+        long h = hash(key);
+        int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+        long n = bits.length * 8L;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (int) (((h1 + i * h2) & 0xFFFFFFFFL) % n);
+            bits[bit >> 3] |= 1 << (bit & 7);
+        }
+    }
+
+    public boolean mightContain(String key) {
+        long h = hash(key);
+        int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+        long n = bits.length * 8L;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (int) (((h1 + i * h2) & 0xFFFFFFFFL) % n);
+            if ((bits[bit >> 3] & (1 << (bit & 7))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 64位FNV-1a，按UTF-16的char计算，不需要先编码成字节
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            h = (h ^ (c & 0xFF)) * 0x100000001b3L;
+            h = (h ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        return h;
+    }
+}
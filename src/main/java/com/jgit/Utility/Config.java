@@ -0,0 +1,100 @@
+package com.jgit.Utility;
+
+import com.jgit.Blobs.Compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Repo的配置文件，保存在.git/config，格式为java properties
+ *
+ * core.repositoryformatversion是Repo格式的标记：
+ * 0（或者没有config文件）表示老版本的Repo，对象库里都是未压缩的原始快照；
+ * 1表示对象库中可能存在压缩过的快照
+ */
+public class Config {
+
+    public static final String FORMAT_VERSION_KEY = "core.repositoryformatversion";
+    public static final String COMPRESSION_KEY = "core.compression";
+    public static final String CHECKOUT_WORKERS_KEY = "checkout.workers";
+
+    //本程序能读取的最高Repo格式版本
+    public static final int SUPPORTED_FORMAT_VERSION = 1;
+
+    private final Properties properties = new Properties();
+    private final Path path;
+
+    private Config(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * 新建Repo时使用的默认配置
+     */
+    public static Config defaultFor(Path path) {
+        Config config = new Config(path);
+        config.set(FORMAT_VERSION_KEY, String.valueOf(SUPPORTED_FORMAT_VERSION));
+        config.set(COMPRESSION_KEY, Compression.DEFLATE.getConfigName());
+        return config;
+    }
+
+    /**
+     * 从指定路径读取配置，文件不存在时返回空配置（即老版本Repo）
+     */
+    public static Config load(Path path) throws IOException {
+        Config config = new Config(path);
+        try (InputStream in = Files.newInputStream(path)) {
+            config.properties.load(in);
+        } catch (NoSuchFileException ignored) { }
+        return config;
+    }
+
+    public void save() throws IOException {
+        try (OutputStream out = Files.newOutputStream(path)) {
+            properties.store(out, null);
+        }
+    }
+
+    public String get(String key) {
+        return properties.getProperty(key);
+    }
+
+    public void set(String key, String value) {
+        properties.setProperty(key, value);
+    }
+
+    public int getFormatVersion() {
+        return Integer.parseInt(properties.getProperty(FORMAT_VERSION_KEY, "0"));
+    }
+
+    /**
+     * 新写入对象库的快照所用的压缩方式，老版本Repo默认不压缩
+     */
+    public Compression getCompression() {
+        return Compression.of(properties.getProperty(COMPRESSION_KEY, Compression.NONE.getConfigName()));
+    }
+
+    /**
+     * checkout时并行写文件的线程数，默认为CPU核数
+     * @throws IllegalArgumentException 配置值不是正整数
+     */
+    public int getCheckoutWorkers() {
+        String value = properties.getProperty(CHECKOUT_WORKERS_KEY);
+        if (value == null)
+            return Runtime.getRuntime().availableProcessors();
+        int workers;
+        try {
+            workers = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            workers = 0;
+        }
+        if (workers <= 0)
+            throw new IllegalArgumentException(CHECKOUT_WORKERS_KEY + " must be a positive integer: " + value);
+        return workers;
+    }
+}
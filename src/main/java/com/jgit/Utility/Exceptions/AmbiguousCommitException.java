@@ -0,0 +1,16 @@
+package com.jgit.Utility.Exceptions;
+
+import java.util.List;
+
+public class AmbiguousCommitException extends Exception {
+
+    private List<String> candidates;
+
+    public AmbiguousCommitException(List<String> candidates) {
+        this.candidates = candidates;
+    }
+
+    public List<String> getCandidates() {
+        return candidates;
+    }
+}
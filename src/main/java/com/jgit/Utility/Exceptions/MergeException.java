@@ -1,14 +1,24 @@
 package com.jgit.Utility.Exceptions;
 
+import java.util.List;
+
 public class MergeException extends Exception {
 
-    private String conflictSource;
+    //有冲突的文件
+    private final List<String> conflicts;
+    //合并结果的根树hash，有冲突的文件是带冲突标记的版本
+    private final String tree;
+
+    public MergeException(List<String> conflicts, String tree) {
+        this.conflicts = conflicts;
+        this.tree = tree;
+    }
 
-    public MergeException(String conflictSource) {
-        this.conflictSource = conflictSource;
+    public List<String> getConflicts() {
+        return conflicts;
     }
 
-    public String getConflictSource() {
-        return conflictSource;
+    public String getTree() {
+        return tree;
     }
 }
@@ -0,0 +1,87 @@
+package com.jgit.Utility;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 流式计算文件摘要
+ *
+ * 文件通过每个线程复用的一块直接内存分段读入，不管文件多大，占用的内存都是固定的；
+ * MessageDigest对象也按线程缓存，避免每次都重新查找算法实现
+ */
+public class Hasher {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<Map<String, MessageDigest>> DIGESTS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private Hasher() { }
+
+    /**
+     * 获取当前线程缓存的摘要对象，返回前已经reset过
+     */
+    public static MessageDigest digest(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, MessageDigest> digests = DIGESTS.get();
+        MessageDigest md = digests.get(algorithm);
+        if (md == null) {
+            md = MessageDigest.getInstance(algorithm);
+            digests.put(algorithm, md);
+        }
+        md.reset();
+        return md;
+    }
+
+    public static byte[] hash(String str, String algorithm) throws NoSuchAlgorithmException {
+        return digest(algorithm).digest(str.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static byte[] hash(Path file, String algorithm) throws IOException, NoSuchAlgorithmException {
+        MessageDigest md = digest(algorithm);
+        ByteBuffer buf = BUFFERS.get();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf.clear();
+            while (channel.read(buf) >= 0) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * 读一遍文件，同时计算摘要并把内容写到out
+     */
+    public static byte[] hashAndCopy(Path file, String algorithm, OutputStream out)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest md = digest(algorithm);
+        ByteBuffer buf = BUFFERS.get();
+        WritableByteChannel sink = Channels.newChannel(out);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf.clear();
+            while (channel.read(buf) >= 0) {
+                buf.flip();
+                buf.mark();
+                md.update(buf);
+                buf.reset();
+                while (buf.hasRemaining())
+                    sink.write(buf);
+                buf.clear();
+            }
+        }
+        return md.digest();
+    }
+}
@@ -0,0 +1,171 @@
+package com.jgit.Utility;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 两个序列之间的最短编辑脚本，Myers的O(ND)差分算法的线性空间版本
+ *
+ * 序列元素是整数（例如按内容编号的行），相等就是同一个元素。先去掉公共的前缀和后缀，
+ * 再从两端同时搜索，找到最短路径中间的一段对角线（middle snake），以它为界把问题分成两半递归求解。
+ * 每一层只需要两个长度为N+M的数组，而且整个递归共用，额外空间是O(N+M)，时间是O((N+M)D)，D是编辑距离；
+ * 每次划分编辑距离减半，递归深度是O(log D)
+ */
+public class MyersDiff {
+
+    /**
+     * 一处修改：a的[beginA, endA)被替换成b的[beginB, endB)，其中一边可以为空（纯插入或纯删除）
+     */
+    public static class Edit {
+        private final int beginA, endA, beginB, endB;
+
+        Edit(int beginA, int endA, int beginB, int endB) {
+            this.beginA = beginA;
+            this.endA = endA;
+            this.beginB = beginB;
+            this.endB = endB;
+        }
+
+        public int getBeginA() { return beginA; }
+
+        public int getEndA() { return endA; }
+
+        public int getBeginB() { return beginB; }
+
+        public int getEndB() { return endB; }
+
+        @Override
+        public String toString() {
+            return "Edit[" + beginA + "-" + endA + ", " + beginB + "-" + endB + "]";
+        }
+    }
+
+    private final int[] a, b;
+    //向前和向后搜索时每条对角线走到的最远位置，下标加上offset
+    private final int[] vf, vb;
+    private final int offset;
+    private final List<Edit> edits = new ArrayList<>();
+
+    private MyersDiff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+        int max = (a.length + b.length + 1) / 2;
+        this.offset = max + 1;
+        this.vf = new int[2 * max + 3];
+        this.vb = new int[2 * max + 3];
+    }
+
+    /**
+     * @return 从a变成b的修改，按位置排序，相邻的修改已经合并
+     */
+    public static List<Edit> diff(int[] a, int[] b) {
+        if (a.length == 0 && b.length == 0)
+            return Collections.emptyList();
+        MyersDiff d = new MyersDiff(a, b);
+        d.findPath(0, 0, a.length, b.length);
+        return d.edits;
+    }
+
+    /**
+     * 求a的[left, right)和b的[top, bottom)之间的修改，按顺序加入edits
+     */
+    private void findPath(int left, int top, int right, int bottom) {
+        while (left < right && top < bottom && a[left] == b[top]) {
+            left++;
+            top++;
+        }
+        while (left < right && top < bottom && a[right - 1] == b[bottom - 1]) {
+            right--;
+            bottom--;
+        }
+        if (left == right || top == bottom) {
+            if (left != right || top != bottom)
+                addEdit(left, right, top, bottom);
+            return;
+        }
+        int[] snake = midpoint(left, top, right, bottom);
+        findPath(left, top, snake[0], snake[1]);
+        walkSnake(snake[0], snake[1], snake[2], snake[3]);
+        findPath(snake[2], snake[3], right, bottom);
+    }
+
+    /**
+     * 中间的一段：一步插入或删除，前后可能各有一段对角线
+     */
+    private void walkSnake(int x1, int y1, int x2, int y2) {
+        while (x1 < x2 && y1 < y2 && a[x1] == b[y1]) {
+            x1++;
+            y1++;
+        }
+        if (x2 - x1 > y2 - y1)
+            addEdit(x1, x1 + 1, y1, y1);
+        else if (y2 - y1 > x2 - x1)
+            addEdit(x1, x1, y1, y1 + 1);
+    }
+
+    private void addEdit(int beginA, int endA, int beginB, int endB) {
+        int last = edits.size() - 1;
+        if (last >= 0 && edits.get(last).endA == beginA && edits.get(last).endB == beginB) {
+            Edit prev = edits.get(last);
+            edits.set(last, new Edit(prev.beginA, endA, prev.beginB, endB));
+        } else {
+            edits.add(new Edit(beginA, endA, beginB, endB));
+        }
+    }
+
+    /**
+     * 从左上角和右下角同时搜索，两边在某条对角线上相遇时返回相遇的那一段
+     *
+     * 对角线k上的点满足(x - left) - (y - top) = k；向后搜索按c = k - delta编号，delta是两边长度之差
+     * @return 这一段的起点和终点{x1, y1, x2, y2}
+     */
+    private int[] midpoint(int left, int top, int right, int bottom) {
+        int delta = (right - left) - (bottom - top);
+        boolean odd = (delta & 1) != 0;
+        int max = (right - left + bottom - top + 1) / 2;
+        vf[offset + 1] = left;
+        vb[offset + 1] = bottom;
+        for (int d = 0; d <= max; d++) {
+            for (int k = d; k >= -d; k -= 2) {
+                int c = k - delta;
+                int px, x;
+                if (k == -d || (k != d && vf[offset + k - 1] < vf[offset + k + 1])) {
+                    px = x = vf[offset + k + 1];
+                } else {
+                    px = vf[offset + k - 1];
+                    x = px + 1;
+                }
+                int y = top + (x - left) - k;
+                int py = (d == 0 || x != px) ? y : y - 1;
+                while (x < right && y < bottom && a[x] == b[y]) {
+                    x++;
+                    y++;
+                }
+                vf[offset + k] = x;
+                if (odd && c >= -(d - 1) && c <= d - 1 && y >= vb[offset + c])
+                    return new int[]{px, py, x, y};
+            }
+            for (int c = d; c >= -d; c -= 2) {
+                int k = c + delta;
+                int py, y;
+                if (c == -d || (c != d && vb[offset + c - 1] > vb[offset + c + 1])) {
+                    py = y = vb[offset + c + 1];
+                } else {
+                    py = vb[offset + c - 1];
+                    y = py - 1;
+                }
+                int x = left + (y - top) + k;
+                int px = (d == 0 || y != py) ? x : x + 1;
+                while (x > left && y > top && a[x - 1] == b[y - 1]) {
+                    x--;
+                    y--;
+                }
+                vb[offset + c] = y;
+                if (!odd && k >= -d && k <= d && x <= vf[offset + k])
+                    return new int[]{x, y, px, py};
+            }
+        }
+        throw new IllegalStateException("no middle snake");
+    }
+}
@@ -0,0 +1,110 @@
+package com.jgit.Utility;
+
+import java.util.Arrays;
+
+/**
+ * 20字节的SHA-1对象id
+ *
+ * 直接保存原始字节，hashCode在创建时算好；和40个字符的十六进制String相比，
+ * 堆上只占不到一半的空间，比较时也只需要比较20个字节。对象创建之后不再修改
+ */
+public final class ObjectId implements Comparable<ObjectId> {
+
+    private final byte[] bytes;
+    private final int hash;
+
+    private ObjectId(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = hashOf(bytes, 0);
+    }
+
+    /**
+     * @param hex 十六进制hash，老版本丢了前导0的也可以
+     */
+    public static ObjectId fromString(String hex) {
+        return new ObjectId(Utils.fromHex(hex));
+    }
+
+    /**
+     * 复制raw从offset开始的20个字节
+     */
+    public static ObjectId fromRaw(byte[] raw, int offset) {
+        return new ObjectId(Arrays.copyOfRange(raw, offset, offset + Utils.HASH_LENGTH));
+    }
+
+    public static ObjectId fromRaw(byte[] raw) {
+        return fromRaw(raw, 0);
+    }
+
+    /**
+     * 直接使用raw，调用方之后不能再修改它
+     */
+    static ObjectId wrap(byte[] raw) {
+        return new ObjectId(raw);
+    }
+
+    /**
+     * SHA-1本身就是均匀分布的，直接取前4个字节作为hashCode
+     */
+    static int hashOf(byte[] raw, int offset) {
+        return (raw[offset] & 0xFF) << 24 | (raw[offset + 1] & 0xFF) << 16
+                | (raw[offset + 2] & 0xFF) << 8 | (raw[offset + 3] & 0xFF);
+    }
+
+    /**
+     * 把20个字节复制到dst从offset开始的位置
+     */
+    public void copyRawTo(byte[] dst, int offset) {
+        System.arraycopy(bytes, 0, dst, offset, Utils.HASH_LENGTH);
+    }
+
+    public byte[] getRaw() {
+        return bytes.clone();
+    }
+
+    /**
+     * 和raw从offset开始的20个字节是否相同
+     */
+    boolean equalsRaw(byte[] raw, int offset) {
+        for (int i = 0; i < Utils.HASH_LENGTH; i++) {
+            if (bytes[i] != raw[offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return 40个字符的十六进制hash
+     */
+    public String name() {
+        return Utils.toHex(bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof ObjectId && hash == ((ObjectId) o).hash && Arrays.equals(bytes, ((ObjectId) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * 按无符号字节的字典序比较，和十六进制字符串的顺序一致
+     */
+    @Override
+    public int compareTo(ObjectId o) {
+        for (int i = 0; i < Utils.HASH_LENGTH; i++) {
+            int c = (bytes[i] & 0xFF) - (o.bytes[i] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
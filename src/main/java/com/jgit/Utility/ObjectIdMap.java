@@ -0,0 +1,170 @@
+package com.jgit.Utility;
+
+import java.util.function.BiConsumer;
+
+/**
+ * 以ObjectId为键的开放寻址hash表
+ *
+ * 所有键的20个字节连续保存在一个byte数组里，hashCode保存在int数组里，值保存在Object数组里，
+ * 不为每个键值对单独分配Entry和ObjectId对象；线性探测，删除时把后面的元素往前挪，不留墓碑。
+ * 不是线程安全的，多个线程只读地使用时需要先copy
+ */
+public class ObjectIdMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+    //装填因子上限3/4
+    private static final int LOAD_NUMERATOR = 3, LOAD_DENOMINATOR = 4;
+
+    private byte[] keys;
+    private int[] hashes;
+    private Object[] values;
+    private int size;
+
+    public ObjectIdMap() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize 预计的元素个数，放进这么多元素之前不需要扩容
+     */
+    public ObjectIdMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while ((long) capacity * LOAD_NUMERATOR / LOAD_DENOMINATOR <= size)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new byte[capacity * Utils.HASH_LENGTH];
+        hashes = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(ObjectId id) {
+        return indexOf(id) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(ObjectId id) {
+        int i = indexOf(id);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    /**
+     * @param value 不能为null，null表示空槽
+     * @return 原来的值，没有时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(ObjectId id, V value) {
+        if (value == null)
+            throw new NullPointerException("null value");
+        int mask = values.length - 1;
+        int i = id.hashCode() & mask;
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (hashes[i] == id.hashCode() && id.equalsRaw(keys, i * Utils.HASH_LENGTH)) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        id.copyRawTo(keys, i * Utils.HASH_LENGTH);
+        hashes[i] = id.hashCode();
+        values[i] = value;
+        if (++size * LOAD_DENOMINATOR > values.length * LOAD_NUMERATOR)
+            resize(values.length << 1);
+        return null;
+    }
+
+    /**
+     * @return 删除的值，没有时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(ObjectId id) {
+        int i = indexOf(id);
+        if (i < 0)
+            return null;
+        V old = (V) values[i];
+        values[i] = null;
+        size--;
+        //把同一探测序列上后面的元素往前挪，保证查找时不会提前遇到空槽
+        int mask = values.length - 1;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = hashes[j] & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                System.arraycopy(keys, j * Utils.HASH_LENGTH, keys, i * Utils.HASH_LENGTH, Utils.HASH_LENGTH);
+                hashes[i] = hashes[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+        return old;
+    }
+
+    /**
+     * 遍历所有键值对，键是临时创建的ObjectId
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<ObjectId, V> action) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null)
+                action.accept(ObjectId.fromRaw(keys, i * Utils.HASH_LENGTH), (V) values[i]);
+        }
+    }
+
+    /**
+     * 浅复制，只复制三个数组，不复制值
+     */
+    public ObjectIdMap<V> copy() {
+        ObjectIdMap<V> copy = new ObjectIdMap<>();
+        copy.keys = keys.clone();
+        copy.hashes = hashes.clone();
+        copy.values = values.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    private int indexOf(ObjectId id) {
+        int mask = values.length - 1;
+        for (int i = id.hashCode() & mask; values[i] != null; i = (i + 1) & mask) {
+            if (hashes[i] == id.hashCode() && id.equalsRaw(keys, i * Utils.HASH_LENGTH))
+                return i;
+        }
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        byte[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        Object[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] == null)
+                continue;
+            int i = oldHashes[j] & mask;
+            while (values[i] != null)
+                i = (i + 1) & mask;
+            System.arraycopy(oldKeys, j * Utils.HASH_LENGTH, keys, i * Utils.HASH_LENGTH, Utils.HASH_LENGTH);
+            hashes[i] = oldHashes[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ObjectIdMap[size=" + size + ", capacity=" + values.length + "]";
+    }
+}
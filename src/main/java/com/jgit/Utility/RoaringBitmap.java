@@ -0,0 +1,439 @@
+package com.jgit.Utility;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * 非负整数集合的压缩位图，结构和Roaring bitmap相同
+ *
+ * 整数按高16位分块，每块一个容器，容器里只存低16位：元素不超过4096个时是有序的char数组，否则是65536位的位图。
+ * 稀疏的块只占元素个数的两倍字节，稠密的块最多8KB；求并、求差都是逐块进行，两个数组容器做归并，有位图时按64位一字处理。
+ * 写入文件时每块选数组、位图和连续区间三种编码中最小的一种，连续的大片元素（例如一条线性历史）只需要几个字节。
+ * or和andNot不修改参与运算的对象，结果和它们不共享容器
+ */
+public class RoaringBitmap {
+
+    //数组容器最多这么多个元素，再多就不如位图省空间
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private static final byte ARRAY = 0;
+    private static final byte BITMAP = 1;
+    private static final byte RUNS = 2;
+
+    //各块的高16位，递增
+    private char[] keys = new char[4];
+    //keys[i]对应的容器：char[]（前cardinality[i]个有效）或者long[BITMAP_WORDS]
+    private Object[] containers = new Object[4];
+    private int[] cardinality = new int[4];
+    private int size;
+
+    public void add(int x) {
+        if (x < 0)
+            throw new IllegalArgumentException("negative value: " + x);
+        char key = (char) (x >>> 16), low = (char) x;
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        if (i < 0) {
+            i = -i - 1;
+            insertContainer(i, key, new char[4], 0);
+        }
+        Object c = containers[i];
+        if (c instanceof long[]) {
+            long[] words = (long[]) c;
+            long mask = 1L << low;
+            if ((words[low >>> 6] & mask) == 0) {
+                words[low >>> 6] |= mask;
+                cardinality[i]++;
+            }
+            return;
+        }
+        char[] values = (char[]) c;
+        int n = cardinality[i];
+        int j = Arrays.binarySearch(values, 0, n, low);
+        if (j >= 0)
+            return;
+        j = -j - 1;
+        if (n == MAX_ARRAY_SIZE) {
+            long[] words = toWords(values, n);
+            words[low >>> 6] |= 1L << low;
+            containers[i] = words;
+            cardinality[i] = n + 1;
+            return;
+        }
+        if (n == values.length)
+            values = Arrays.copyOf(values, Math.min(MAX_ARRAY_SIZE, n * 2));
+        System.arraycopy(values, j, values, j + 1, n - j);
+        values[j] = low;
+        containers[i] = values;
+        cardinality[i] = n + 1;
+    }
+
+    public boolean contains(int x) {
+        if (x < 0)
+            return false;
+        int i = Arrays.binarySearch(keys, 0, size, (char) (x >>> 16));
+        if (i < 0)
+            return false;
+        char low = (char) x;
+        Object c = containers[i];
+        if (c instanceof long[])
+            return (((long[]) c)[low >>> 6] & (1L << low)) != 0;
+        return Arrays.binarySearch((char[]) c, 0, cardinality[i], low) >= 0;
+    }
+
+    public int cardinality() {
+        int n = 0;
+        for (int i = 0; i < size; i++)
+            n += cardinality[i];
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return this和other的并集
+     */
+    public RoaringBitmap or(RoaringBitmap other) {
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0, j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+                result.appendCopy(keys[i], containers[i], cardinality[i]);
+                i++;
+            } else if (i == size || other.keys[j] < keys[i]) {
+                result.appendCopy(other.keys[j], other.containers[j], other.cardinality[j]);
+                j++;
+            } else {
+                result.appendUnion(keys[i], containers[i], cardinality[i], other.containers[j], other.cardinality[j]);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return 在this中而不在other中的元素
+     */
+    public RoaringBitmap andNot(RoaringBitmap other) {
+        RoaringBitmap result = new RoaringBitmap();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i])
+                j++;
+            if (j < other.size && other.keys[j] == keys[i])
+                result.appendDifference(keys[i], containers[i], cardinality[i], other.containers[j], other.cardinality[j]);
+            else
+                result.appendCopy(keys[i], containers[i], cardinality[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return andNot(other).cardinality()，但不生成中间结果
+     */
+    public int andNotCardinality(RoaringBitmap other) {
+        int n = 0, j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i])
+                j++;
+            if (j < other.size && other.keys[j] == keys[i])
+                n += cardinality[i] - intersectionCardinality(containers[i], cardinality[i], other.containers[j], other.cardinality[j]);
+            else
+                n += cardinality[i];
+        }
+        return n;
+    }
+
+    private static int intersectionCardinality(Object a, int cardA, Object b, int cardB) {
+        if (a instanceof long[] && b instanceof long[]) {
+            long[] x = (long[]) a, y = (long[]) b;
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++)
+                n += Long.bitCount(x[w] & y[w]);
+            return n;
+        }
+        if (a instanceof long[])
+            return intersectionCardinality(b, cardB, a, cardA);
+        char[] x = (char[]) a;
+        int n = 0;
+        if (b instanceof long[]) {
+            long[] words = (long[]) b;
+            for (int k = 0; k < cardA; k++) {
+                if ((words[x[k] >>> 6] & (1L << x[k])) != 0)
+                    n++;
+            }
+            return n;
+        }
+        char[] y = (char[]) b;
+        for (int i = 0, j = 0; i < cardA && j < cardB; ) {
+            if (x[i] < y[j]) i++;
+            else if (y[j] < x[i]) j++;
+            else { n++; i++; j++; }
+        }
+        return n;
+    }
+
+    /**
+     * 按从小到大的顺序访问每个元素
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            int high = keys[i] << 16;
+            Object c = containers[i];
+            if (c instanceof long[]) {
+                long[] words = (long[]) c;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    for (long word = words[w]; word != 0; word &= word - 1)
+                        action.accept(high | (w << 6) | Long.numberOfTrailingZeros(word));
+                }
+            } else {
+                char[] values = (char[]) c;
+                for (int k = 0; k < cardinality[i]; k++)
+                    action.accept(high | values[k]);
+            }
+        }
+    }
+
+    /**
+     * 写入out：块数，然后每块高16位、编码类型和内容
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeChar(keys[i]);
+            char[] runs = toRuns(i);
+            int arrayBytes = cardinality[i] * 2, bitmapBytes = BITMAP_WORDS * 8, runBytes = runs.length * 2;
+            if (runBytes < arrayBytes && runBytes < bitmapBytes) {
+                out.writeByte(RUNS);
+                out.writeChar(runs.length / 2 - 1);
+                for (char r : runs)
+                    out.writeChar(r);
+            } else if (arrayBytes <= bitmapBytes) {
+                out.writeByte(ARRAY);
+                out.writeChar(cardinality[i] - 1);
+                char[] values = (char[]) containers[i];
+                for (int k = 0; k < cardinality[i]; k++)
+                    out.writeChar(values[k]);
+            } else {
+                out.writeByte(BITMAP);
+                for (long word : (long[]) containers[i])
+                    out.writeLong(word);
+            }
+        }
+    }
+
+    /**
+     * 读取write写入的内容
+     * @throws IOException 内容不合法
+     */
+    public static RoaringBitmap read(DataInput in) throws IOException {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        int n = in.readInt();
+        if (n < 0 || n > 1 << 16)
+            throw new IOException("bad bitmap: " + n + " containers");
+        int lastKey = -1;
+        for (int i = 0; i < n; i++) {
+            char key = in.readChar();
+            if (key <= lastKey)
+                throw new IOException("bad bitmap: keys out of order");
+            lastKey = key;
+            byte type = in.readByte();
+            if (type == BITMAP) {
+                long[] words = new long[BITMAP_WORDS];
+                for (int w = 0; w < BITMAP_WORDS; w++)
+                    words[w] = in.readLong();
+                bitmap.appendWords(key, words);
+            } else if (type == ARRAY) {
+                int card = in.readChar() + 1;
+                if (card > MAX_ARRAY_SIZE)
+                    throw new IOException("bad bitmap: array container too large");
+                char[] values = new char[card];
+                for (int k = 0; k < card; k++) {
+                    values[k] = in.readChar();
+                    if (k > 0 && values[k] <= values[k - 1])
+                        throw new IOException("bad bitmap: values out of order");
+                }
+                bitmap.appendContainer(key, values, card);
+            } else if (type == RUNS) {
+                int runs = in.readChar() + 1;
+                long[] words = new long[BITMAP_WORDS];
+                for (int r = 0; r < runs; r++) {
+                    int start = in.readChar(), end = start + in.readChar();
+                    if (end > 0xFFFF)
+                        throw new IOException("bad bitmap: run out of range");
+                    for (int v = start; v <= end; v++)
+                        words[v >>> 6] |= 1L << v;
+                }
+                bitmap.appendWords(key, words);
+            } else {
+                throw new IOException("bad bitmap: container type " + type);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return 第i块的连续区间编码：起点、长度减一，交替排列
+     */
+    private char[] toRuns(int i) {
+        char[] runs = new char[8];
+        int n = 0, start = -1, prev = -2;
+        for (int v = next(i, 0); v >= 0; v = next(i, v + 1)) {
+            if (v != prev + 1) {
+                if (start >= 0) {
+                    if (n + 2 > runs.length)
+                        runs = Arrays.copyOf(runs, runs.length * 2);
+                    runs[n++] = (char) start;
+                    runs[n++] = (char) (prev - start);
+                }
+                start = v;
+            }
+            prev = v;
+        }
+        if (n + 2 > runs.length)
+            runs = Arrays.copyOf(runs, n + 2);
+        runs[n++] = (char) start;
+        runs[n++] = (char) (prev - start);
+        return Arrays.copyOf(runs, n);
+    }
+
+    /**
+     * @return 第i块中不小于from的最小元素（低16位），没有时返回-1
+     */
+    private int next(int i, int from) {
+        if (from > 0xFFFF)
+            return -1;
+        Object c = containers[i];
+        if (c instanceof long[]) {
+            long[] words = (long[]) c;
+            int w = from >>> 6;
+            long word = words[w] & (-1L << from);
+            while (word == 0) {
+                if (++w == BITMAP_WORDS)
+                    return -1;
+                word = words[w];
+            }
+            return (w << 6) | Long.numberOfTrailingZeros(word);
+        }
+        int k = Arrays.binarySearch((char[]) c, 0, cardinality[i], (char) from);
+        if (k < 0)
+            k = -k - 1;
+        return k < cardinality[i] ? ((char[]) c)[k] : -1;
+    }
+
+    private void insertContainer(int i, char key, Object container, int card) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+            cardinality = Arrays.copyOf(cardinality, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        System.arraycopy(cardinality, i, cardinality, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = container;
+        cardinality[i] = card;
+        size++;
+    }
+
+    private void appendContainer(char key, Object container, int card) {
+        insertContainer(size, key, container, card);
+    }
+
+    private void appendCopy(char key, Object c, int card) {
+        appendContainer(key, c instanceof long[] ? ((long[]) c).clone() : Arrays.copyOf((char[]) c, card), card);
+    }
+
+    /**
+     * 加入一个位图形式的块，元素少时转成数组，没有元素时不加
+     */
+    private void appendWords(char key, long[] words) {
+        int card = 0;
+        for (long word : words)
+            card += Long.bitCount(word);
+        if (card == 0)
+            return;
+        if (card > MAX_ARRAY_SIZE) {
+            appendContainer(key, words, card);
+            return;
+        }
+        char[] values = new char[card];
+        int k = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            for (long word = words[w]; word != 0; word &= word - 1)
+                values[k++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+        }
+        appendContainer(key, values, card);
+    }
+
+    private void appendUnion(char key, Object a, int cardA, Object b, int cardB) {
+        if (a instanceof char[] && b instanceof char[]) {
+            char[] x = (char[]) a, y = (char[]) b;
+            char[] merged = new char[cardA + cardB];
+            int i = 0, j = 0, n = 0;
+            while (i < cardA && j < cardB) {
+                if (x[i] < y[j]) merged[n++] = x[i++];
+                else if (y[j] < x[i]) merged[n++] = y[j++];
+                else { merged[n++] = x[i++]; j++; }
+            }
+            while (i < cardA) merged[n++] = x[i++];
+            while (j < cardB) merged[n++] = y[j++];
+            if (n <= MAX_ARRAY_SIZE)
+                appendContainer(key, Arrays.copyOf(merged, n), n);
+            else
+                appendContainer(key, toWords(merged, n), n);
+            return;
+        }
+        long[] words = a instanceof long[] ? ((long[]) a).clone() : toWords((char[]) a, cardA);
+        if (b instanceof long[]) {
+            long[] other = (long[]) b;
+            for (int w = 0; w < BITMAP_WORDS; w++)
+                words[w] |= other[w];
+        } else {
+            char[] values = (char[]) b;
+            for (int k = 0; k < cardB; k++)
+                words[values[k] >>> 6] |= 1L << values[k];
+        }
+        appendWords(key, words);
+    }
+
+    private void appendDifference(char key, Object a, int cardA, Object b, int cardB) {
+        if (a instanceof char[]) {
+            char[] x = (char[]) a, rest = new char[cardA];
+            int n = 0;
+            for (int i = 0; i < cardA; i++) {
+                boolean inB = b instanceof long[] ? (((long[]) b)[x[i] >>> 6] & (1L << x[i])) != 0
+                        : Arrays.binarySearch((char[]) b, 0, cardB, x[i]) >= 0;
+                if (!inB)
+                    rest[n++] = x[i];
+            }
+            if (n > 0)
+                appendContainer(key, Arrays.copyOf(rest, n), n);
+            return;
+        }
+        long[] words = ((long[]) a).clone();
+        if (b instanceof long[]) {
+            long[] other = (long[]) b;
+            for (int w = 0; w < BITMAP_WORDS; w++)
+                words[w] &= ~other[w];
+        } else {
+            char[] values = (char[]) b;
+            for (int k = 0; k < cardB; k++)
+                words[values[k] >>> 6] &= ~(1L << values[k]);
+        }
+        appendWords(key, words);
+    }
+
+    private static long[] toWords(char[] values, int n) {
+        long[] words = new long[BITMAP_WORDS];
+        for (int k = 0; k < n; k++)
+            words[values[k] >>> 6] |= 1L << values[k];
+        return words;
+    }
+}
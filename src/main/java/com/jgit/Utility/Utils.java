@@ -2,22 +2,19 @@ package com.jgit.Utility;
 
 
 
-import com.jgit.Blobs.Blob;
 import com.jgit.Blobs.BlobPool;
 import com.jgit.Commits.CommitChain;
 import com.jgit.Stage.Stage;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.security.MessageDigest;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collection;
 
 /**
  * 工具类，封装一些常用操作
@@ -34,6 +31,23 @@ public class Utils {
     public static final String COMMIT_CHAIN_SERIALIZATION_NAME = "commitchain";
     public static final String FILES_DIR_NAME = "objects";
     public static final String BLOB_POOL_SERIALIZATION_NAME = "blobs";
+    public static final String CONFIG_NAME = "config";
+    public static final String PACKS_DIR_NAME = "packs";
+    public static final String TREES_DIR_NAME = "trees";
+    public static final String COMMIT_GRAPH_NAME = "commit-graph";
+    public static final String COMMIT_INDEX_NAME = "commit-index";
+    public static final String COMMIT_BLOOM_NAME = "commit-bloom";
+    public static final String COMMIT_BITMAPS_NAME = "commit-bitmaps";
+    public static final String COMMITS_DIR_NAME = "commits";
+    public static final String FS_MONITOR_NAME = "fsmonitor";
+    public static final String FS_MONITOR_LOCK_NAME = "fsmonitor.lock";
+    public static final String FS_MONITOR_COOKIES_NAME = "fsmonitor-cookies";
+    public static final String MERGE_HEAD_NAME = "MERGE_HEAD";
+
+    //SHA-1的字节数和十六进制字符数
+    public static final int HASH_LENGTH = 20;
+    public static final int HASH_HEX_LENGTH = HASH_LENGTH * 2;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
     public static Path getGitDirPath() {
         return Paths.get(GIT_DIR_NAME);
@@ -49,14 +63,29 @@ public class Utils {
 
     public static Path getFilesPath() { return getGitDirPath().resolve(FILES_DIR_NAME); }
 
-    /**
-     * 从SHA-1字符串中截取后6位
-     *
-     * 主要作为某次commit的目录名称使用
-     * @param hash SHA-1字符串
-     * @return hash的后六位
-     */
-    public static String fromHash2DirName(String hash) { return hash.substring(hash.length()-6); }
+    public static Path getConfigPath() { return getGitDirPath().resolve(CONFIG_NAME); }
+
+    public static Path getPacksPath() { return getGitDirPath().resolve(PACKS_DIR_NAME); }
+
+    public static Path getTreesPath() { return getGitDirPath().resolve(TREES_DIR_NAME); }
+
+    public static Path getCommitGraphPath() { return getGitDirPath().resolve(COMMIT_GRAPH_NAME); }
+
+    public static Path getCommitIndexPath() { return getGitDirPath().resolve(COMMIT_INDEX_NAME); }
+
+    public static Path getCommitBloomPath() { return getGitDirPath().resolve(COMMIT_BLOOM_NAME); }
+
+    public static Path getCommitBitmapsPath() { return getGitDirPath().resolve(COMMIT_BITMAPS_NAME); }
+
+    public static Path getCommitsPath() { return getGitDirPath().resolve(COMMITS_DIR_NAME); }
+
+    public static Path getFsMonitorPath() { return getGitDirPath().resolve(FS_MONITOR_NAME); }
+
+    public static Path getFsMonitorLockPath() { return getGitDirPath().resolve(FS_MONITOR_LOCK_NAME); }
+
+    public static Path getFsMonitorCookiesPath() { return getGitDirPath().resolve(FS_MONITOR_COOKIES_NAME); }
+
+    public static Path getMergeHeadPath() { return getGitDirPath().resolve(MERGE_HEAD_NAME); }
 
     /**
      * 检查工作目录是否已经被初始化
@@ -66,35 +95,82 @@ public class Utils {
     /**
      * 计算字符串的sha-1值
      * @param str 输入字符串
-     * @return 该字符串的sha-1值
+     * @return 该字符串的sha-1值，定长的十六进制字符串
      */
     public static String encrypt(String str, String algorithm)  {
         try {
-            MessageDigest md = MessageDigest.getInstance(algorithm);
-            byte[] bytes = md.digest(str.getBytes());
-            return new BigInteger(1, bytes).toString(16);
+            return toHex(Hasher.hash(str, algorithm));
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
             return "impossible";
         }
     }
 
+    /**
+     * 流式计算文件的摘要，不会把整个文件读进内存
+     */
     public static String encrypt(Path file, String algorithm) {
         try {
-            MessageDigest md = MessageDigest.getInstance(algorithm);
-            byte[] bytes = md.digest(Files.readAllBytes(file));
-            return new BigInteger(1, bytes).toString(16);
+            return toHex(Hasher.hash(file, algorithm));
         } catch (IOException | NoSuchAlgorithmException e) {
             e.printStackTrace();
             return "impossible";
         }
     }
 
+    /**
+     * 把字节数组编码成定长的十六进制字符串，每个字节固定两位
+     */
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0, j = 0; i < bytes.length; i++) {
+            chars[j++] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[j++] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 把十六进制的SHA-1字符串解码成20字节
+     *
+     * 老的hash由BigInteger生成，丢掉了前导0，这里在左边补齐
+     */
+    public static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[HASH_LENGTH];
+        fromHex(hex, bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * 同上，解码到dst从offset开始的20个字节，不分配新数组
+     */
+    public static void fromHex(String hex, byte[] dst, int offset) {
+        int pad = HASH_HEX_LENGTH - hex.length();
+        for (int i = 0; i < HASH_LENGTH; i++)
+            dst[offset + i] = 0;
+        for (int i = 0; i < HASH_HEX_LENGTH; i++) {
+            int digit = i < pad ? 0 : Character.digit(hex.charAt(i - pad), 16);
+            if (digit < 0)
+                throw new IllegalArgumentException("not a hex string: " + hex);
+            dst[offset + (i >> 1)] |= (i & 1) == 0 ? digit << 4 : digit;
+        }
+    }
+
+    /**
+     * 老版本的hash由BigInteger生成，丢掉了前导0，补齐成定长的hash
+     */
+    public static String padHash(String hash) {
+        if (hash == null || hash.length() >= HASH_HEX_LENGTH)
+            return hash;
+        StringBuilder sb = new StringBuilder(HASH_HEX_LENGTH);
+        for (int i = hash.length(); i < HASH_HEX_LENGTH; i++)
+            sb.append('0');
+        return sb.append(hash).toString();
+    }
+
     public static void serializeCommitChain(CommitChain cc) {
         try {
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(getCommitChainPath().toString()));
-            oos.writeObject(cc);
-            oos.close();
+            cc.saveTo(getCommitChainPath());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -102,9 +178,7 @@ public class Utils {
 
     public static void serializeBlobPool(BlobPool bp) {
         try {
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(getBlobsPath().toString()));
-            oos.writeObject(bp);
-            oos.close();
+            bp.saveTo(getBlobsPath());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -112,32 +186,45 @@ public class Utils {
 
     public static void serializeStage(Stage stage) {
         try {
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(getStageFilePath().toString()));
-            oos.writeObject(stage);
-            oos.close();
+            stage.saveTo(getStageFilePath());
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public static void serializeAll(CommitChain cc, Stage stage, BlobPool bp) {
-        serializeCommitChain(cc);
-        serializeStage(stage);
-        serializeBlobPool(bp);
-    }
-
-    public static void syncFilesWithHeadCommit(CommitChain commitChain, BlobPool blobPool) {
-        Collection<String> hashesOfBackupFiles = commitChain.getHeadCommit().getFileHashes();
-        for (String hash : hashesOfBackupFiles) {
-            Blob blob = blobPool.getFile(hash);
-            try {
-                Files.copy(blob.getPathGit(), blob.getPathRaw(), StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * 先通过FileChannel写到同一文件夹下的临时文件，写完再改名覆盖原文件
+     *
+     * 改名是原子操作，中途崩溃时原文件保持原样，不会留下写了一半的文件
+     * @param data 依次写入的各段内容
+     */
+    public static void writeAtomically(Path path, ByteBuffer... data) throws IOException {
+        Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), "tmp-", null);
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                for (ByteBuffer part : data) {
+                    while (part.hasRemaining())
+                        channel.write(part);
+                }
             }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
         }
     }
 
+    /**
+     * 只写回修改过的文件，没有读取过的（为null）或者没有修改过的都不需要写
+     *
+     * 三个对象的dirty标记初始为true，新建的（例如init时）一定会写盘；从文件读出时置为false，
+     * 修改过才重新变成true。老版本用Java序列化写的文件读出来也置为true，借这次写回转换成新格式
+     */
+    public static void serializeAll(CommitChain cc, Stage stage, BlobPool bp) {
+        if (cc != null && cc.isDirty()) serializeCommitChain(cc);
+        if (stage != null && stage.isDirty()) serializeStage(stage);
+        if (bp != null && bp.isDirty()) serializeBlobPool(bp);
+    }
+
     public static String getRelativeDir(Path path) {
         return Paths.get("").relativize(path).toString();
     }